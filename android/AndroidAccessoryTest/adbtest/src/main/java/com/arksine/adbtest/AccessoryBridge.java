@@ -16,11 +16,13 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -54,6 +56,10 @@ class AccessoryBridge {
     private static final byte[] CMD_START_CONNECTION = {(byte) 0x02, (byte) 0x02};
     private static final short CMD_EXIT = 15;
 
+    // Accessory reads must be a multiple of the bulk endpoint packet size
+    private static final int MIN_READ_SIZE = 4096;
+    private static final int MAX_READ_SIZE = 65536;
+
     interface Callbacks {
         void onAccessoryConnected(boolean connected);
         void onSocketConnected(boolean connected);
@@ -104,10 +110,10 @@ class AccessoryBridge {
     private FileInputStream mAccessoryInputStream = null;
     private FileOutputStream mAccessoryOutputStream = null;
 
-    private volatile ServerSocket mServerSocket = null;
+    private volatile ServerSocketChannel mServerSocket = null;
+    private volatile SocketChannel mSocketChannel = null;
     private volatile Socket mServerConnection = null;
     private volatile InputStream mSocketInputStream = null;
-    private volatile OutputStream mSocketOutputStream = null;
 
     private Thread mAccessoryReadThread = null;
     private Thread mSocketReadThread = null;
@@ -285,32 +291,39 @@ class AccessoryBridge {
         @Override
         public void run() {
             int bytesRead;
-            byte[] inputBuffer = new byte[16384];
+            FileChannel accessoryChannel = mAccessoryInputStream.getChannel();
+            AdaptiveReadBuffer readBuffer = new AdaptiveReadBuffer(MIN_READ_SIZE, MAX_READ_SIZE);
 
             while (mAccessoryConnected.get()) {
+                // Read straight into a direct buffer and hand it to the socket channel, so
+                // forwarded data never passes through the Java heap
+                ByteBuffer inputBuffer = readBuffer.acquire();
                 try {
-                    bytesRead = mAccessoryInputStream.read(inputBuffer);
+                    bytesRead = accessoryChannel.read(inputBuffer);
                 } catch (IOException e) {
                     break;
                 }
 
                 if (bytesRead > 0) {
+                    inputBuffer.flip();
                     if (mServerConnection.isConnected()) {
                         try {
-                            mSocketOutputStream.write(inputBuffer, 0, bytesRead);
-                            mSocketOutputStream.flush();
+                            while (inputBuffer.hasRemaining()) {
+                                mSocketChannel.write(inputBuffer);
+                            }
                         } catch (IOException e) {
                             break;
                         }
                     } else if (bytesRead == 2) {
                         // If the socket is not connected listen for a disconnect
                         // command
-                        short cmd = ByteBuffer.wrap(inputBuffer).getShort();
+                        short cmd = inputBuffer.getShort(0);
                         if (cmd == CMD_EXIT) {
                             break;
                         }
                     }
                 }
+                readBuffer.onRead(bytesRead, 0);
             }
 
             if (mAccessoryConnected.get()) {
@@ -354,10 +367,11 @@ class AccessoryBridge {
         public void run() {
             try {
                 // TODO: probably don't need to bind to all interfaces, only localhost
-                mServerSocket = new ServerSocket(8000);
-                mServerConnection = mServerSocket.accept();
+                mServerSocket = ServerSocketChannel.open();
+                mServerSocket.socket().bind(new InetSocketAddress(8000));
+                mSocketChannel = mServerSocket.accept();
+                mServerConnection = mSocketChannel.socket();
                 mSocketInputStream = mServerConnection.getInputStream();
-                mSocketOutputStream = mServerConnection.getOutputStream();
                 mSocketConnected.set(true);
                 mAccessoryOutputStream.write(CMD_START_CONNECTION);  // Notify the usb connection
                 mSocketReadThread = new Thread(null, mSocketReadRunnable, "Socket Read Thread");
@@ -381,7 +395,7 @@ class AccessoryBridge {
             closeItem(mServerSocket);
             closeItem(mServerConnection);
             closeItem(mSocketInputStream);
-            closeItem(mSocketOutputStream);
+            closeItem(mSocketChannel);
 
             // Stop socket threads
             stopThread(mConnectionListenerThread);
@@ -400,7 +414,7 @@ class AccessoryBridge {
             mServerSocket = null;
             mServerConnection = null;
             mSocketInputStream = null;
-            mSocketOutputStream = null;
+            mSocketChannel = null;
             mAccessoryInputStream = null;
             mAccessoryOutputStream = null;
             mFileDescriptor = null;
@@ -0,0 +1,90 @@
+package com.arksine.adbtest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct read buffer for a FileChannel whose size adapts to the observed traffic.  Sizes are
+ * powers of two between a minimum and maximum, and each size is allocated once and then
+ * reused, so switching sizes back and forth does not allocate.
+ *
+ * The size grows when reads completely fill the buffer (the link has more data waiting than
+ * we asked for) and shrinks when the average read only uses a small fraction of it, so
+ * sparse traffic is read with small transfers and bulk traffic with large ones.  If
+ * the driver caps the transfer size, reads stop filling the buffer and the size settles at
+ * the cap on its own.
+ */
+
+class AdaptiveReadBuffer {
+    // Weight of a new sample in the moving average, as a shift (1/8)
+    private static final int AVERAGE_SHIFT = 3;
+
+    private final ByteBuffer[] mBuffers;
+    private final int mMinShift;
+    private final int mMaxShift;
+    private int mShift;
+    private int mAverage;
+
+    /**
+     * @param minSize smallest read size, rounded up to a power of two
+     * @param maxSize largest read size, rounded up to a power of two
+     */
+    AdaptiveReadBuffer(int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid read size range: " + minSize +
+                    " - " + maxSize);
+        }
+
+        mMinShift = shiftFor(minSize);
+        mMaxShift = shiftFor(maxSize);
+        mBuffers = new ByteBuffer[mMaxShift - mMinShift + 1];
+        mShift = mMinShift;
+        mAverage = 1 << mMinShift;
+    }
+
+    /**
+     * Returns a cleared buffer of the current read size, ready for FileChannel.read()
+     */
+    ByteBuffer acquire() {
+        int index = mShift - mMinShift;
+        ByteBuffer buffer = mBuffers[index];
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << mShift);
+            mBuffers[index] = buffer;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Updates the read size after a read has completed.
+     *
+     * @param bytesRead   number of bytes returned by the read
+     * @param bytesWanted number of bytes known to still be on their way, or zero if unknown
+     */
+    void onRead(int bytesRead, int bytesWanted) {
+        if (bytesRead <= 0) {
+            return;
+        }
+
+        mAverage += (bytesRead - mAverage) >> AVERAGE_SHIFT;
+        int size = 1 << mShift;
+
+        if (bytesRead >= size && (bytesWanted >= size || mAverage >= (size >> 1))) {
+            // Saturated read, and either a large payload is in flight or the traffic is
+            // consistently heavy
+            if (mShift < mMaxShift) {
+                mShift++;
+            }
+        } else if (mAverage < (size >> 2) && mShift > mMinShift) {
+            mShift--;
+        }
+    }
+
+    int size() {
+        return 1 << mShift;
+    }
+
+    private static int shiftFor(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -2,9 +2,6 @@ package arksine.com.androidaccessorytest;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
-
-import java.nio.ByteBuffer;
 
 /**
  * Enumeration to represent command sent to and received from the android accessory.
@@ -13,6 +10,10 @@ import java.nio.ByteBuffer;
  * a Parcel ID.
  *
  * This Enum implements Parcelable so that it may be passed via Intent, Message, or AIDL.
+ *
+ * Values are resolved through a two level lookup table indexed by the high and low byte of
+ * the command value, so fromValue() is constant time and never allocates.  Only pages that
+ * contain a command are populated.
  */
 
 public enum AccessoryCommand implements Parcelable {
@@ -21,13 +22,28 @@ public enum AccessoryCommand implements Parcelable {
     CAM_FRAME(new byte[]{(byte)0x00, (byte)0x02}),
     CAM_START(new byte[]{(byte)0x00, (byte)0x03}),
     CAM_STOP(new byte[]{(byte)0x00, (byte)0x04}),
+    CREDIT(new byte[]{(byte)0xFF, (byte)0xFB}),
+    LINK_CONFIG(new byte[]{(byte)0xFF, (byte)0xFC}),
     APP_CONNECTED(new byte[]{(byte)0xFF, (byte)0xFD}),
     TERMINATE(new byte[]{(byte)0xFF, (byte)0xFE}),
     EXIT(new byte[]{(byte)0xFF, (byte)0xFF});
 
-    private static final String TAG = AccessoryCommand.class.getSimpleName();
     private static final AccessoryCommand[] COMMAND_ARRAY = AccessoryCommand.values();
+    private static final AccessoryCommand[][] VALUE_TABLE = new AccessoryCommand[256][];
     final byte[] mBytes;
+    private final short mValue;
+
+    static {
+        for (AccessoryCommand cmd : COMMAND_ARRAY) {
+            int value = cmd.mValue & 0xFFFF;
+            AccessoryCommand[] page = VALUE_TABLE[value >>> 8];
+            if (page == null) {
+                page = new AccessoryCommand[256];
+                VALUE_TABLE[value >>> 8] = page;
+            }
+            page[value & 0xFF] = cmd;
+        }
+    }
 
     public static final Creator<AccessoryCommand> CREATOR = new Creator<AccessoryCommand>() {
         @Override
@@ -43,6 +59,7 @@ public enum AccessoryCommand implements Parcelable {
 
     AccessoryCommand(byte[] bytes) {
         this.mBytes = bytes;
+        this.mValue = (short) (((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF));
     }
 
     public byte[] getBytes() {
@@ -50,7 +67,7 @@ public enum AccessoryCommand implements Parcelable {
     }
 
     public short getValue() {
-        return (ByteBuffer.wrap(this.mBytes).getShort());
+        return this.mValue;
     }
 
     @Override
@@ -71,15 +88,14 @@ public enum AccessoryCommand implements Parcelable {
         }
     }
 
+    /**
+     * Returns the command matching the low 16 bits of byteValue, or NONE if there is no
+     * match.  Both signed (short) and unsigned values are accepted.
+     */
     public static AccessoryCommand fromValue(int byteValue) {
-
-        for (AccessoryCommand cmd : COMMAND_ARRAY) {
-            if (cmd.getValue() == byteValue) {
-                return cmd;
-            }
-        }
-
-        Log.i(TAG, "No matching Command found for value: " + byteValue);
-        return AccessoryCommand.NONE;
+        int value = byteValue & 0xFFFF;
+        AccessoryCommand[] page = VALUE_TABLE[value >>> 8];
+        AccessoryCommand cmd = (page != null) ? page[value & 0xFF] : null;
+        return (cmd != null) ? cmd : AccessoryCommand.NONE;
     }
 }
@@ -1,6 +1,11 @@
 package arksine.com.androidaccessorytest;
 
 import android.hardware.usb.UsbAccessory;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Created by eric on 2/27/17.
@@ -9,8 +14,59 @@ import android.hardware.usb.UsbAccessory;
 public interface AccessoryControlInterface {
     void attemptConnect(UsbAccessory accessory);
     boolean isOpen();
+
+    /**
+     * Queues a command.  Called on the main thread this never waits for the writer, so a
+     * full write queue drops the command.
+     *
+     * @return false if the accessory is not open or the command was dropped
+     */
     boolean sendCommand(AccessoryCommand cmd, byte[] data);
+
+    /**
+     * Sends a command without waiting for it to be written.  The returned handle completes
+     * once the packet is on the link, or with the error that kept it from being written, and
+     * listener, which may be null, is notified on the writer thread.  Until then data must
+     * not be modified.
+     *
+     * @return the completion handle, or null if the accessory is not open or too many bytes
+     * are already in flight
+     */
+    WriteFuture sendCommandAsync(AccessoryCommand cmd, byte[] data,
+                                 WriteFuture.Listener listener);
+
+    /**
+     * Sends the remaining bytes of data, direct or not, without copying them onto the heap.
+     * The buffer's position and limit are left alone, but its contents must not be modified
+     * until the write completes.
+     */
+    WriteFuture sendCommandAsync(AccessoryCommand cmd, ByteBuffer data,
+                                 WriteFuture.Listener listener);
+
+    /**
+     * Sends length bytes of a regular file starting at offset, streamed from memory mapped
+     * chunks.  The descriptor is duplicated, so the caller may close fd once this returns.
+     *
+     * @throws IOException if the region extends past the end of the file
+     */
+    WriteFuture sendCommandAsync(AccessoryCommand cmd, ParcelFileDescriptor fd, long offset,
+                                 int length, WriteFuture.Listener listener) throws IOException;
+
+    /**
+     * Sends the whole of file, streamed from memory mapped chunks
+     *
+     * @throws IOException if the file cannot be opened or is too large for a single payload
+     */
+    WriteFuture sendCommandAsync(AccessoryCommand cmd, File file,
+                                 WriteFuture.Listener listener) throws IOException;
     boolean writeBytes(byte[] data);
+
+    /**
+     * Returns a reusable builder that encodes a packet of cmd straight into an outbound
+     * buffer, or null if the accessory is not open.  The message is queued by its send().
+     */
+    MessageBuilder obtainMessage(AccessoryCommand cmd);
+
     boolean writeShort(short data);
     boolean writeInt(int data);
     boolean writeString(String data);
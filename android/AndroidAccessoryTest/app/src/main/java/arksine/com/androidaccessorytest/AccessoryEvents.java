@@ -7,6 +7,11 @@ import android.os.RemoteException;
 
 /**
  * Created by eric on 2/27/17.
+ *
+ * Every registered callback is given its own reference to a received PacketBuffer, and must
+ * release it, or clear it, once done.  The buffer is shared between callbacks, so its contents
+ * must not be written.  Each call to getPayloadBuffer() or getHeaderBuffer() returns a new view
+ * with its own position, so callbacks may read through their views at the same time.
  */
 
 public abstract class AccessoryEvents implements IInterface {
@@ -2,16 +2,15 @@ package arksine.com.androidaccessorytest;
 
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbAccessory;
 import android.hardware.usb.UsbManager;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
-import android.os.Process;
 import android.util.Log;
 
 import java.io.Closeable;
@@ -20,6 +19,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -29,7 +31,42 @@ import java.util.concurrent.atomic.AtomicBoolean;
 class AccessoryManager implements Runnable {
     private static final String TAG = AccessoryManager.class.getSimpleName();
 
-    private static final int PACKET_HEADER_SIZE = 6;
+    // The accessory driver services reads in multiples of the bulk endpoint packet size,
+    // so keep the smallest channel read at a multiple of 512
+    private static final int MIN_CHANNEL_READ_SIZE = 4096;
+    private static final int MAX_CHANNEL_READ_SIZE = 65536;
+
+    // Memory all pooled buffers together may use
+    private static final long BUFFER_BUDGET = 16 * 1024 * 1024;
+    // How long the reader waits for a buffer to be returned before dropping a message
+    private static final long BUFFER_WAIT_MS = 500;
+    // Default pooled buffer size, and how many of them are allocated up front
+    private static final int BUFFER_SIZE = 32768;
+    private static final int INITIAL_BUFFER_COUNT = 10;
+    // Control and small test packets are kept in direct memory.  Camera frames land in the
+    // larger classes, which stay on the heap so BitmapFactory decodes them in place.
+    private static final int MAX_DIRECT_BUFFER_SIZE = 8192;
+    // How long an asynchronous write waits for bytes in flight to drain before it is rejected
+    private static final long WRITE_WAIT_MS = 500;
+    // Idle pooled buffers beyond the recent peak are released after this long
+    private static final long POOL_DECAY_MS = 10000;
+    // Buffers made ready for camera frames when the camera is started
+    private static final int CAMERA_WARM_UP_COUNT = 8;
+    private static final int DEFAULT_CAMERA_FRAME_SIZE = 65536;
+    // Share of the budget preallocated from the profile of earlier sessions
+    private static final long PROFILE_PREALLOCATION = BUFFER_BUDGET / 2;
+    // Supersede key shared by the commands that set the camera state
+    private static final int KEY_CAMERA_STATE = 0;
+    // Packets waiting for an executor subscriber before the read thread waits for it
+    static final int SUBSCRIBER_CAPACITY = 64;
+
+    // Capabilities offered to the host when connecting
+    private static final LinkCapabilities LOCAL_CAPABILITIES = new LinkCapabilities(
+            LinkCapabilities.PROTOCOL_VERSION, LinkConfig.DEFAULT_MAX_FRAME_SIZE,
+            MAX_CHANNEL_READ_SIZE,
+            LinkCapabilities.FEATURE_SYNC_MARKER | LinkCapabilities.FEATURE_CHECKSUM |
+                    LinkCapabilities.FEATURE_COMPRESSION | LinkCapabilities.FEATURE_TIMESTAMPS |
+                    LinkCapabilities.FEATURE_FRAGMENTS | LinkCapabilities.FEATURE_FLOW_CONTROL);
 
     private static final String MANUFACTURER = "Arksine";
     private static final String MODEL = "AccesoryTest";
@@ -79,51 +116,126 @@ class AccessoryManager implements Runnable {
     private FileInputStream mInputStream;
     private FileOutputStream mOutputStream;
     private Thread mReadThread;
-
-    private Handler mWriteHandler;
+    private volatile LinkConfig mLinkConfig = LinkConfig.LEGACY;
+    private volatile int mCreditWindow = FlowController.DEFAULT_WINDOW;
+    private volatile int mCameraFrameSize = DEFAULT_CAMERA_FRAME_SIZE;
+
+    // Only accessed from the read thread
+    private PacketDecoder mDecoder;
+    private AdaptiveReadBuffer mReadBuffer;
+    private final SequenceTracker mSequenceTracker = new SequenceTracker();
+    private final EnumSet<AccessoryCommand> mWholePayloads =
+            EnumSet.noneOf(AccessoryCommand.class);
+
+    private AccessoryWriter mWriter;
+    private FlowController mFlowController;
     private BufferManager mBufferManager;
+    private PoolProfile mPoolProfile;
+    private CommandRegistry mCommandRegistry;
+    private final TopicRegistry mTopicRegistry = new TopicRegistry();
+
+    private final Runnable mPoolDecayTask = new Runnable() {
+        @Override
+        public void run() {
+            mBufferManager.decayIdle();
+            if (mAccessoryConnected.get()) {
+                mEventHandler.postDelayed(this, POOL_DECAY_MS);
+            }
+        }
+    };
 
+    private final PacketDecoder.Listener mPacketListener = new PacketDecoder.Listener() {
+        private int mPacketIndex = 60;
+        private boolean mStreamStart = false;
+
+        @Override
+        public boolean onPacketReceived(AccessoryCommand command, PacketBuffer packet) {
+            if (command == AccessoryCommand.EXIT) {
+                Log.i(TAG, "Exit recieved");
+                packet.clear();
+                return false;
+            } else if (command == AccessoryCommand.APP_CONNECTED) {
+                // Handled inline so the decoder switches framing before the next packet
+                onHostCapabilities(packet);
+                packet.clear();
+                return true;
+            }
 
-    AccessoryManager(Context context, Handler eventHandler) {
-        this.mContext = context;
-        this.mEventHandler = eventHandler;
-        this.mUsbManger = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
-        this.mBufferManager = new BufferManager(10, 32768);
-
-        HandlerThread handlerThread = new HandlerThread("Write Handler",
-                Process.THREAD_PRIORITY_DEFAULT);
-        handlerThread.start();
-        Handler.Callback handlerCb = new Handler.Callback() {
-            @Override
-            public boolean handleMessage(Message msg) {
-                byte[] data = (byte[])msg.obj;
-                if (mOutputStream != null) {
-                    AccessoryCommand cmd = AccessoryCommand.fromOrdinal(msg.arg1);
-                    Log.d(TAG, "Write Command: " + cmd);
-
-                    if (cmd != AccessoryCommand.NONE) {
-                        ByteBuffer headerBuf = ByteBuffer.allocate(PACKET_HEADER_SIZE);
-                        int payloadSize = (data != null) ?  data.length : 0;
-                        headerBuf.put(cmd.getBytes());
-                        headerBuf.putInt(payloadSize);
+            if (command == AccessoryCommand.CAM_FRAME) {
+                mCameraFrameSize = packet.getPayloadSize();
+            }
 
-                        try {
-                            mOutputStream.write(headerBuf.array());
-                            if (data != null) {
-                                mOutputStream.write(data);
-                            }
+            int gap = mSequenceTracker.onPacket(command, packet);
+            if (gap > 0) {
+                Log.d(TAG, gap + " " + command + " packets lost before sequence " +
+                        packet.getSequence());
+            }
 
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+            mPacketIndex--;
+            if (mPacketIndex == 0) {
+                Log.i(TAG, "Header Command: " + command.toString());
+                Log.i(TAG, "Payload size: " + String.valueOf(packet.getPayloadSize()));
+                mPacketIndex = 60;
+            }
 
+            // Commands without a registered handler go to their subscribers
+            if (!mCommandRegistry.dispatch(command, packet) &&
+                    !mTopicRegistry.publish(command, packet)) {
+                packet.clear();
+            }
+            return true;
+        }
 
-                }
-                return true;
+        @Override
+        public void onStreamBegin(AccessoryCommand command, int payloadSize) {
+            Log.d(TAG, "Streaming " + command + " payload of " + payloadSize + " bytes");
+            mStreamStart = true;
+            mTopicRegistry.publishStreamBegin(command, payloadSize);
+        }
+
+        @Override
+        public void onStreamChunk(AccessoryCommand command, PacketBuffer chunk) {
+            // Every chunk carries the sequence of its frame, only the first one counts
+            if (mStreamStart) {
+                mStreamStart = false;
+                mSequenceTracker.onPacket(command, chunk);
             }
-        };
-        mWriteHandler = new Handler(handlerThread.getLooper(), handlerCb);
+            mTopicRegistry.publishStreamChunk(command, chunk);
+        }
+
+        @Override
+        public void onStreamEnd(AccessoryCommand command, boolean complete) {
+            mTopicRegistry.publishStreamEnd(command, complete);
+        }
+    };
+
+
+    AccessoryManager(Context context, Handler eventHandler) {
+        this.mContext = context;
+        this.mEventHandler = eventHandler;
+        this.mUsbManger = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
+        // The pool starts empty so the buffers preallocated for it are held to the budget
+        this.mBufferManager = new BufferManager(0, BUFFER_SIZE, MAX_DIRECT_BUFFER_SIZE);
+        this.mBufferManager.setBudget(BUFFER_BUDGET, BufferManager.EXHAUSTED_BLOCK,
+                BUFFER_WAIT_MS);
+        this.mBufferManager.warmUp(BUFFER_SIZE - PacketDecoder.PACKET_HEADER_SIZE,
+                INITIAL_BUFFER_COUNT);
+        this.mBufferManager.setSpillDirectory(context.getCacheDir(),
+                BufferManager.DEFAULT_SPILL_THRESHOLD);
+        this.mBufferManager.setLeakDetection(BuildConfig.DEBUG);
+        // Frames are decoded in one piece, so large ones are spilled rather than streamed
+        keepPayloadWhole(AccessoryCommand.CAM_FRAME);
+        this.mPoolProfile = PoolProfile.load(context, mBufferManager.getClassCount());
+        this.mCommandRegistry = new CommandRegistry(eventHandler.getLooper());
+
+        this.mWriter = new AccessoryWriter();
+        // Only the newest camera state change still queued matters to the host
+        this.mWriter.setSupersedeKey(AccessoryCommand.CAM_START, KEY_CAMERA_STATE);
+        this.mWriter.setSupersedeKey(AccessoryCommand.CAM_STOP, KEY_CAMERA_STATE);
+        this.mWriter.setInFlightLimit(AccessoryWriter.DEFAULT_IN_FLIGHT_LIMIT,
+                AccessoryWriter.LIMIT_BLOCK, WRITE_WAIT_MS);
+        this.mFlowController = new FlowController(mWriter);
+        this.mBufferManager.setFlowController(mFlowController);
 
         registerReceiver();
     }
@@ -214,6 +326,7 @@ class AccessoryManager implements Runnable {
                         }
                     }
 
+                    mWriter.close();
                     closeItem(mInputStream);
                     closeItem(mOutputStream);
                     closeItem(mFileDescriptor);
@@ -232,11 +345,72 @@ class AccessoryManager implements Runnable {
         }
     }
 
-    void write(AccessoryCommand command, final byte[] data) {
-        Message msg = mWriteHandler.obtainMessage();
-        msg.obj = data;
-        msg.arg1 = command.ordinal();
-        mWriteHandler.sendMessage(msg);
+    /**
+     * @return false if the packet was dropped, see AccessoryWriter.write()
+     */
+    boolean write(AccessoryCommand command, final byte[] data) {
+        prepareWrite(command);
+        return mWriter.write(command, data);
+    }
+
+    /**
+     * Writes asynchronously, see AccessoryWriter.writeAsync()
+     *
+     * @return the completion handle, or null if the in-flight limit was reached
+     */
+    WriteFuture writeAsync(AccessoryCommand command, byte[] data,
+                           WriteFuture.Listener listener) {
+        prepareWrite(command);
+        return mWriter.writeAsync(command, data, listener);
+    }
+
+    /**
+     * Writes the payload of source asynchronously without copying it onto the heap
+     *
+     * @return the completion handle, or null if the in-flight limit was reached
+     */
+    WriteFuture writeAsync(AccessoryCommand command, PayloadSource source,
+                           WriteFuture.Listener listener) {
+        prepareWrite(command);
+        return mWriter.writeAsync(command, source, listener);
+    }
+
+    /**
+     * Returns a pooled builder for a packet of command, queued by its send()
+     */
+    MessageBuilder obtainMessage(AccessoryCommand command) {
+        prepareWrite(command);
+        return mWriter.obtainMessage(command);
+    }
+
+    private void prepareWrite(AccessoryCommand command) {
+        if (command == AccessoryCommand.CAM_START) {
+            // Have buffers ready before the first frames arrive
+            mEventHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mBufferManager.warmUp(mCameraFrameSize, CAMERA_WARM_UP_COUNT);
+                }
+            });
+        }
+    }
+
+    /**
+     * Releases pooled buffers according to the level passed to the service's onTrimMemory().
+     * Every idle buffer is released when memory is critical or the process is in the
+     * background, otherwise the pool only decays.  TRIM_MEMORY_UI_HIDDEN ranks above the
+     * running levels but only means the activity went away, the accessory may still be
+     * streaming.
+     */
+    void onTrimMemory(int level) {
+        long released;
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ||
+                level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            released = mBufferManager.trimIdle();
+        } else {
+            released = mBufferManager.decayIdle();
+        }
+        Log.d(TAG, "Trim memory level " + level + ", released " + released + " bytes");
     }
 
     private boolean isValidAccessory(UsbAccessory acc) {
@@ -281,87 +455,220 @@ class AccessoryManager implements Runnable {
         }
     }
 
-    @Override
-    public void run() {
-        mIsReading.set(true);
-        int bytesRead;
-        int packetIndex = 60;
-        boolean isHeader = true;
-        AccessoryCommand command;
-        byte[] inputBuffer = new byte[16384];
-        PacketBuffer packetBuffer = mBufferManager.getBuffer();
+    void registerCommandHandler(AccessoryCommand command, CommandHandler handler) {
+        mCommandRegistry.register(command, handler);
+    }
 
-        outerloop:
-        while (mIsReading.get()) {
-            try {
-                bytesRead = mInputStream.read(inputBuffer);
-            } catch (IOException e) {
-                mIsReading.set(false);
-                break;
-            }
+    void unregisterCommandHandler(AccessoryCommand command, CommandHandler handler) {
+        mCommandRegistry.unregister(command, handler);
+    }
 
-            if (bytesRead > 0) {
+    /**
+     * Registers consumer to receive every packet without a command handler or a subscriber of
+     * its own, on a thread of its own fed from the read thread through a ring of capacity
+     * slots.  Packets that arrive while the ring is full are dropped rather than holding up
+     * the read thread.  A StreamConsumer also receives streamed payloads.
+     *
+     * @param name         name of the consumer thread
+     * @param waitStrategy WaitStrategy.BUSY_SPIN, YIELDING or BLOCKING
+     * @param priority     android.os.Process priority of the consumer thread
+     */
+    void registerConsumer(String name, PacketConsumer consumer, int capacity,
+                          int waitStrategy, int priority) {
+        PacketRing ring = new PacketRing(name, capacity, waitStrategy, priority, consumer);
+        ring.setOverflow(PacketRing.OVERFLOW_DROP);
+        mTopicRegistry.subscribeFallback(ring);
+    }
 
-                packetBuffer.readIntoBuffer(inputBuffer, bytesRead);
-
-                // TODO: I should have a confirmation packet as well.  It can't be a checksum
-                // because packets are too large.
-                boolean packetChecked = false;
-                while (!packetChecked) {
-                    packetChecked = true;
-
-                    if (isHeader && packetBuffer.headerRemaining() <= 0) {
-                        ByteBuffer headerBuf = packetBuffer.getHeaderBuffer();
-                        command = AccessoryCommand.fromValue(headerBuf.getShort());
-                        if (command == AccessoryCommand.EXIT) {
-                            Log.i(TAG, "Exit recieved");
-                            mIsReading.set(false);
-                            break outerloop;
-                        }
+    /**
+     * Subscribes consumer to packets for commands, run on executor one batch at a time.
+     * Packets that arrive while SUBSCRIBER_CAPACITY packets are already waiting for the
+     * consumer are dropped, so a busy executor such as the main thread never holds up the
+     * read thread.
+     */
+    void subscribe(PacketConsumer consumer, Executor executor, AccessoryCommand... commands) {
+        PacketRing ring = new PacketRing("Subscriber", SUBSCRIBER_CAPACITY, executor, consumer);
+        ring.setOverflow(PacketRing.OVERFLOW_DROP);
+        mTopicRegistry.subscribe(ring, commands);
+    }
 
-                        int size = headerBuf.getInt();
-                        packetBuffer.setPayloadsize(size);
-                        isHeader = false;
-                        packetIndex--;
-                        if (packetIndex == 0) {
-                            Log.i(TAG, "Header Command: " + command.toString());
-                            Log.i(TAG, "Payload size: " + String.valueOf(size));
-                            packetIndex = 60;
-                        }
+    /**
+     * Subscribes the consumer of ring to packets for commands, fed through ring so the
+     * subscriber chooses its thread, capacity and overflow policy.  The ring is started if
+     * it has not been, and halted when its consumer is unsubscribed.
+     */
+    void subscribe(PacketRing ring, AccessoryCommand... commands) {
+        mTopicRegistry.subscribe(ring, commands);
+    }
 
-                    }
+    /**
+     * Unsubscribes consumer from every command, and unregisters it if it was registered
+     * with registerConsumer().  Packets it has not yet taken are released.
+     */
+    void unsubscribe(PacketConsumer consumer) {
+        mTopicRegistry.unsubscribe(consumer);
+    }
 
-                    if (!isHeader && packetBuffer.payloadRemaining() <= 0) {
+    /**
+     * Sets the framing used on the link.  The host must be using the same framing, and the
+     * configuration takes effect the next time the accessory is opened.
+     */
+    void setLinkConfig(LinkConfig config) {
+        mLinkConfig = config;
+    }
 
-                        // check for overrun
-                        byte[] overrun = packetBuffer.checkOverrun();
+    /**
+     * Sets how many bytes the host may have in flight, received but not yet cleared by the
+     * consumers, when flow control is negotiated.  Takes effect the next time the accessory
+     * is opened.
+     */
+    void setCreditWindow(int window) {
+        mCreditWindow = window;
+    }
 
-                        // Send data for processing
-                        Message msg = mEventHandler.obtainMessage(AccessoryEvents.DATA_EVENT,
-                                packetBuffer);
-                        mEventHandler.sendMessage(msg);
+    /**
+     * Sets how small outbound packets are coalesced into one transfer.  A batch is written
+     * once it holds thresholdBytes, or once its oldest packet has waited latencyBudgetUs
+     * microseconds.  A budget of 0, the default, never delays a packet.
+     */
+    void setWriteCoalescing(int thresholdBytes, int latencyBudgetUs) {
+        mWriter.setCoalescing(thresholdBytes, latencyBudgetUs);
+    }
 
-                        isHeader = true;
+    /**
+     * Limits the payload bytes of asynchronous writes that have not completed yet.  Writes
+     * beyond the limit block for up to timeoutMs, or fail right away with LIMIT_REJECT or
+     * when made from the main thread.
+     *
+     * @param policy AccessoryWriter.LIMIT_BLOCK or AccessoryWriter.LIMIT_REJECT
+     */
+    void setWriteLimit(long maxBytes, int policy, long timeoutMs) {
+        mWriter.setInFlightLimit(maxBytes, policy, timeoutMs);
+    }
 
-                        // get the next buffer in the queue
-                        packetBuffer = mBufferManager.getBuffer();
-                        if (overrun != null) {
-                            packetBuffer.putBytes(overrun);
-                            // We need to inspect the remains of this packet before
-                            // reading again
-                            packetChecked = false;
-                        }
+    /**
+     * Requests that payloads for command are delivered whole rather than streamed, no matter
+     * how large they are.  Oversized payloads are spilled to a memory mapped temp file
+     * instead of the heap.  Takes effect the next time the accessory is opened.
+     */
+    void keepPayloadWhole(AccessoryCommand command) {
+        synchronized (mWholePayloads) {
+            mWholePayloads.add(command);
+        }
+    }
 
-                    }
-                }
+    @Override
+    public void run() {
+        mIsReading.set(true);
+        mSequenceTracker.reset();
+        PacketDecoder decoder = new PacketDecoder(mBufferManager, mPacketListener);
+        decoder.setLinkConfig(mLinkConfig);
+        mDecoder = decoder;
+        synchronized (mWholePayloads) {
+            for (AccessoryCommand command : mWholePayloads) {
+                decoder.setKeepWhole(command, true);
             }
         }
 
+        try {
+            readChannel(decoder);
+        } catch (IOException e) {
+            Log.d(TAG, "Accessory read ended: " + e.getMessage());
+        }
+        mIsReading.set(false);
+        mFlowController.stop();
+
+        // return any partially received packet to the pool
+        decoder.reset();
+        mBufferManager.recordProfile(mPoolProfile);
+        mPoolProfile.save(mContext);
+        // Nothing arrives until the next connection, so the pool does not need to stay warm
+        mBufferManager.trimIdle();
+        if (decoder.getDroppedFrameCount() > 0) {
+            Log.i(TAG, "Frames dropped due to corrupt headers: " +
+                    decoder.getDroppedFrameCount());
+        }
+        if (decoder.getCorruptFrameCount() > 0) {
+            Log.i(TAG, "Frames dropped due to checksum mismatch: " +
+                    decoder.getCorruptFrameCount());
+        }
+        if (decoder.getOverrunCount() > 0) {
+            Log.i(TAG, "Messages dropped for lack of buffers: " + decoder.getOverrunCount());
+        }
+        mBufferManager.reportLeaks();
+        Log.i(TAG, mBufferManager.toString());
+        for (AccessoryCommand command : AccessoryCommand.values()) {
+            long gaps = mSequenceTracker.getGapCount(command);
+            long reordered = mSequenceTracker.getReorderedCount(command);
+            if (gaps > 0 || reordered > 0) {
+                Log.i(TAG, command + " packets lost: " + gaps + ", out of order: " + reordered);
+            }
+        }
+        mDecoder = null;
+        mReadBuffer = null;
+
         if (mAccessoryConnected.get()) {
             close(false);
         }
     }
 
+    private void readChannel(PacketDecoder decoder) throws IOException {
+        FileChannel channel = mInputStream.getChannel();
+        AdaptiveReadBuffer readBuffer = new AdaptiveReadBuffer(MIN_CHANNEL_READ_SIZE,
+                MAX_CHANNEL_READ_SIZE);
+        mReadBuffer = readBuffer;
+        int bytesRead;
+
+        while (mIsReading.get()) {
+            // The pool is direct as well, so the decoder copies each read into its packet
+            // without passing through a heap array
+            ByteBuffer inputBuffer = readBuffer.acquire();
+            bytesRead = channel.read(inputBuffer);
+            if (bytesRead < 0) {
+                break;
+            }
+
+            if (bytesRead > 0) {
+                inputBuffer.flip();
+                if (!decoder.decode(inputBuffer)) {
+                    break;
+                }
+            }
+            readBuffer.onRead(bytesRead, decoder.bytesPending());
+        }
+    }
+
+    /**
+     * Called on the read thread when the host answers APP_CONNECTED.  The agreed
+     * capabilities are applied to the decoder immediately, since the host switches framing
+     * right after sending its answer.  The agreement is then echoed back in a LINK_CONFIG
+     * packet, which is the last packet written with the old framing, so the host knows
+     * exactly where the app's framing changes.  With flow control agreed, the initial
+     * window of credit follows it.
+     */
+    private void onHostCapabilities(PacketBuffer packet) {
+        LinkCapabilities remote = LinkCapabilities.fromPayload(packet.getPayloadBuffer());
+        if (remote == null) {
+            Log.i(TAG, "Host did not send capabilities, using legacy framing");
+            return;
+        }
+
+        LinkCapabilities agreed = LOCAL_CAPABILITIES.intersect(remote);
+        LinkConfig config = LinkConfig.fromCapabilities(agreed);
+        Log.i(TAG, "Negotiated " + agreed);
+
+        mDecoder.setLinkConfig(config);
+        if (mReadBuffer != null) {
+            mReadBuffer.setMaxSize(agreed.getPreferredReadSize());
+        }
+
+        write(AccessoryCommand.LINK_CONFIG, agreed.toByteArray());
+        mWriter.setLinkConfig(config);
+        if (config.hasFlowControl()) {
+            mFlowController.start(mCreditWindow);
+        }
+    }
+
     private void openAccessory(UsbAccessory accessory) {
         mAccessory = accessory;
         mFileDescriptor = mUsbManger.openAccessory(mAccessory);
@@ -369,11 +676,25 @@ class AccessoryManager implements Runnable {
         if (mFileDescriptor != null) {
             FileDescriptor fd = mFileDescriptor.getFileDescriptor();
             mOutputStream = new FileOutputStream(fd);
+            if (!mWriter.open(mOutputStream, mLinkConfig)) {
+                // The writer of the last connection has not exited, try again later
+                closeItem(mOutputStream);
+                closeItem(mFileDescriptor);
+                mOutputStream = null;
+                mFileDescriptor = null;
+                Message msg = mEventHandler.obtainMessage(AccessoryEvents.CONNECT_EVENT, false);
+                mEventHandler.sendMessage(msg);
+                return;
+            }
             mInputStream = new FileInputStream(fd);
             mAccessoryConnected.set(true);
+            mBufferManager.preallocate(mPoolProfile, PROFILE_PREALLOCATION);
             mReadThread = new Thread(null, this, "Accessory Read Thread");
             mReadThread.start();
-            this.write(AccessoryCommand.APP_CONNECTED, null);   // Tell the accessory we are connected
+            mEventHandler.removeCallbacks(mPoolDecayTask);
+            mEventHandler.postDelayed(mPoolDecayTask, POOL_DECAY_MS);
+            // Tell the accessory we are connected, and offer our capabilities
+            this.write(AccessoryCommand.APP_CONNECTED, LOCAL_CAPABILITIES.toByteArray());
             Message msg = mEventHandler.obtainMessage(AccessoryEvents.CONNECT_EVENT, true);
             mEventHandler.sendMessage(msg);
         } else {
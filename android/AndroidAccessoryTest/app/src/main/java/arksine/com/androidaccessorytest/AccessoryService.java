@@ -18,15 +18,24 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AccessoryService extends Service {
     private static final String TAG = AccessoryService.class.getSimpleName();
+    // Packets queued for the data callbacks before the read thread waits for them
+    private static final int DATA_RING_CAPACITY = 256;
 
     private NotificationManager mNotificationManager;
     private Notification.Builder mNotificationBuilder;
@@ -36,6 +45,10 @@ public class AccessoryService extends Service {
 
     private final RemoteCallbackList<AccessoryEvents> mCallbackList =
             new RemoteCallbackList<>();
+    // The same callbacks, broadcast to from the data consumer's thread.  A RemoteCallbackList
+    // runs one broadcast at a time, so each thread broadcasts through a list of its own.
+    private final RemoteCallbackList<AccessoryEvents> mDataCallbackList =
+            new RemoteCallbackList<>();
 
     private final BroadcastReceiver mStopReceiver = new BroadcastReceiver() {
         @Override
@@ -98,24 +111,83 @@ public class AccessoryService extends Service {
                     stopSelf();
                     break;
                 }
-                case AccessoryEvents.DATA_EVENT: {
-                    int cbCount = mCallbackList.beginBroadcast();
-                    for (int i = 0; i < cbCount; i++) {
-                        try {
-                            mCallbackList.getBroadcastItem(i).onDataReceived((PacketBuffer)msg.obj);
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    mCallbackList.finishBroadcast();
-                    break;
-                }
             }
             return true;
         }
     };
     private Handler mEventHandler;
 
+    // Streams are delivered on the same thread as packets, so each callback sees a stream's
+    // chunks and its end in the order they were received
+    private final StreamConsumer mDataConsumer = new StreamConsumer() {
+        @Override
+        public void onPacket(AccessoryCommand command, PacketBuffer packet, boolean endOfBatch) {
+            // Every callback gets a reference of its own, the consumer's is released once
+            // all of them have been called
+            int cbCount = mDataCallbackList.beginBroadcast();
+            for (int i = 0; i < cbCount; i++) {
+                try {
+                    mDataCallbackList.getBroadcastItem(i).onDataReceived(packet.retain());
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+            mDataCallbackList.finishBroadcast();
+            packet.release();
+        }
+
+        @Override
+        public void onStreamBegin(AccessoryCommand command, int totalSize) {
+            int cbCount = mDataCallbackList.beginBroadcast();
+            for (int i = 0; i < cbCount; i++) {
+                AccessoryEvents events = mDataCallbackList.getBroadcastItem(i);
+                if (events instanceof AccessoryStreamEvents) {
+                    try {
+                        ((AccessoryStreamEvents) events).onStreamBegin(command, totalSize);
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            mDataCallbackList.finishBroadcast();
+        }
+
+        @Override
+        public void onStreamChunk(AccessoryCommand command, PacketBuffer chunk) {
+            int cbCount = mDataCallbackList.beginBroadcast();
+            for (int i = 0; i < cbCount; i++) {
+                AccessoryEvents events = mDataCallbackList.getBroadcastItem(i);
+                if (events instanceof AccessoryStreamEvents) {
+                    try {
+                        ((AccessoryStreamEvents) events).onStreamChunk(chunk.retain());
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            mDataCallbackList.finishBroadcast();
+
+            // The chunk returns to the pool once every consumer has released it
+            chunk.release();
+        }
+
+        @Override
+        public void onStreamEnd(AccessoryCommand command, boolean complete) {
+            int cbCount = mDataCallbackList.beginBroadcast();
+            for (int i = 0; i < cbCount; i++) {
+                AccessoryEvents events = mDataCallbackList.getBroadcastItem(i);
+                if (events instanceof AccessoryStreamEvents) {
+                    try {
+                        ((AccessoryStreamEvents) events).onStreamEnd(command, complete);
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            mDataCallbackList.finishBroadcast();
+        }
+    };
+
     @Override
     public IBinder onBind(Intent intent) {
 
@@ -141,6 +213,8 @@ public class AccessoryService extends Service {
         eventHandlerThread.start();
         mEventHandler = new Handler(eventHandlerThread.getLooper(), mEventCallback);
         mAccessoryManager = new AccessoryManager(this, mEventHandler);
+        mAccessoryManager.registerConsumer("Data consumer thread", mDataConsumer,
+                DATA_RING_CAPACITY, WaitStrategy.BLOCKING, Process.THREAD_PRIORITY_DEFAULT);
 
         Bitmap largeIcon = getLargeNotificationIcon();
         Intent stopIntent = new Intent(getString(R.string.ACTION_STOP_SERVICE));
@@ -187,8 +261,17 @@ public class AccessoryService extends Service {
         }
         mAccessoryManager.unregisterReceiver();
 
+        mAccessoryManager.unsubscribe(mDataConsumer);
+
         unregisterReceiver(mStopReceiver);
         mCallbackList.kill();
+        mDataCallbackList.kill();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mAccessoryManager.onTrimMemory(level);
     }
 
     @Override
@@ -211,14 +294,64 @@ public class AccessoryService extends Service {
     private final AccessoryControlInterface mControlInterface = new AccessoryControlInterface() {
         @Override
         public boolean sendCommand(AccessoryCommand cmd, byte[] data) {
-            if(this.isOpen()) {
-                mAccessoryManager.write(cmd, data);
-                return true;
+            return this.isOpen() && mAccessoryManager.write(cmd, data);
+        }
+
+        @Override
+        public WriteFuture sendCommandAsync(AccessoryCommand cmd, byte[] data,
+                                            WriteFuture.Listener listener) {
+            if (this.isOpen()) {
+                return mAccessoryManager.writeAsync(cmd, data, listener);
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public WriteFuture sendCommandAsync(AccessoryCommand cmd, ByteBuffer data,
+                                            WriteFuture.Listener listener) {
+            if (this.isOpen()) {
+                return mAccessoryManager.writeAsync(cmd, PayloadSource.forBuffer(data),
+                        listener);
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public WriteFuture sendCommandAsync(AccessoryCommand cmd, ParcelFileDescriptor fd,
+                                            long offset, int length,
+                                            WriteFuture.Listener listener)
+                throws IOException {
+            if (this.isOpen()) {
+                // The payload owns a duplicate of the descriptor, closed with the channel once
+                // it has been written or dropped, so the caller may close fd at any time
+                FileChannel channel = new ParcelFileDescriptor.AutoCloseInputStream(fd.dup())
+                        .getChannel();
+                return mAccessoryManager.writeAsync(cmd,
+                        PayloadSource.forFile(channel, offset, length, true), listener);
             } else {
-                return false;
+                return null;
             }
         }
 
+        @Override
+        public WriteFuture sendCommandAsync(AccessoryCommand cmd, File file,
+                                            WriteFuture.Listener listener) throws IOException {
+            if (!this.isOpen()) {
+                return null;
+            }
+
+            FileChannel channel = new FileInputStream(file).getChannel();
+            long size = channel.size();
+            if (size > LinkConfig.MAX_PAYLOAD_SIZE) {
+                channel.close();
+                throw new IOException("File too large to send: " + file);
+            }
+            return mAccessoryManager.writeAsync(cmd,
+                    PayloadSource.forFile(channel, 0, (int) size, true), listener);
+        }
+
         @Override
         public void attemptConnect(UsbAccessory accessory) {
             if (!isOpen()) {
@@ -233,44 +366,34 @@ public class AccessoryService extends Service {
 
         @Override
         public boolean writeBytes(byte[] data) {
+            return this.isOpen() && mAccessoryManager.write(AccessoryCommand.TEST, data);
+        }
+
+        @Override
+        public MessageBuilder obtainMessage(AccessoryCommand cmd) {
             if (this.isOpen()) {
-                mAccessoryManager.write(AccessoryCommand.TEST, data);
-                return true;
+                return mAccessoryManager.obtainMessage(cmd);
             } else {
-                return false;
+                return null;
             }
         }
 
         @Override
         public boolean writeShort(short data) {
-            if (this.isOpen()) {
-                byte[] bytes = ByteBuffer.allocate(2).putShort(data).array();
-                mAccessoryManager.write(AccessoryCommand.TEST, bytes);
-                return true;
-            } else {
-                return false;
-            }
+            return this.isOpen() &&
+                    mAccessoryManager.obtainMessage(AccessoryCommand.TEST).putShort(data).send();
         }
 
         @Override
         public boolean writeInt(int data) {
-            if (this.isOpen()) {
-                byte[] bytes = ByteBuffer.allocate(4).putInt(data).array();
-                mAccessoryManager.write(AccessoryCommand.TEST, bytes);
-                return true;
-            } else {
-                return false;
-            }
+            return this.isOpen() &&
+                    mAccessoryManager.obtainMessage(AccessoryCommand.TEST).putInt(data).send();
         }
 
         @Override
         public boolean writeString(String data) {
-            if (this.isOpen()) {
-                mAccessoryManager.write(AccessoryCommand.TEST, data.getBytes());
-                return true;
-            } else {
-                return false;
-            }
+            return this.isOpen() &&
+                    mAccessoryManager.obtainMessage(AccessoryCommand.TEST).putUtf8(data).send();
         }
 
         @Override
@@ -289,6 +412,7 @@ public class AccessoryService extends Service {
         public void registerCallback(AccessoryEvents events) {
             if (events != null) {
                 mCallbackList.register(events);
+                mDataCallbackList.register(events);
             }
         }
 
@@ -297,6 +421,60 @@ public class AccessoryService extends Service {
         public void unregisterCallback(AccessoryEvents events) {
             if (events != null) {
                 mCallbackList.unregister(events);
+                mDataCallbackList.unregister(events);
+            }
+        }
+
+        /**
+         * Routes packets for command to handler instead of broadcasting them as data events
+         */
+        public void registerCommandHandler(AccessoryCommand command, CommandHandler handler) {
+            if (handler != null) {
+                mAccessoryManager.registerCommandHandler(command, handler);
+            }
+        }
+
+        public void unregisterCommandHandler(AccessoryCommand command, CommandHandler handler) {
+            if (handler != null) {
+                mAccessoryManager.unregisterCommandHandler(command, handler);
+            }
+        }
+
+        /**
+         * Feeds packets without a command handler or subscriber to consumer on a thread of its
+         * own, see AccessoryManager.registerConsumer()
+         */
+        public void registerConsumer(String name, PacketConsumer consumer, int capacity,
+                                     int waitStrategy, int priority) {
+            if (consumer != null) {
+                mAccessoryManager.registerConsumer(name, consumer, capacity, waitStrategy,
+                        priority);
+            }
+        }
+
+        /**
+         * Delivers packets for commands to consumer on executor
+         */
+        public void subscribe(PacketConsumer consumer, Executor executor,
+                              AccessoryCommand... commands) {
+            if (consumer != null && executor != null) {
+                mAccessoryManager.subscribe(consumer, executor, commands);
+            }
+        }
+
+        /**
+         * Delivers packets for commands to the consumer of ring, on the thread or executor
+         * the ring was created with
+         */
+        public void subscribe(PacketRing ring, AccessoryCommand... commands) {
+            if (ring != null) {
+                mAccessoryManager.subscribe(ring, commands);
+            }
+        }
+
+        public void unsubscribe(PacketConsumer consumer) {
+            if (consumer != null) {
+                mAccessoryManager.unsubscribe(consumer);
             }
         }
     }
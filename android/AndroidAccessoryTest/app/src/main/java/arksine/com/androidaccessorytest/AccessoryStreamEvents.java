@@ -0,0 +1,21 @@
+package arksine.com.androidaccessorytest;
+
+import android.os.RemoteException;
+
+/**
+ * Events for consumers that want to receive very large payloads.  Payloads above the
+ * streaming threshold are not delivered through onDataReceived, instead they arrive as a
+ * sequence of bounded chunks so a transfer of any size never needs a contiguous buffer.
+ *
+ * For each streamed payload onStreamBegin is called once, followed by onStreamChunk for each
+ * chunk in order, and finally onStreamEnd.  Each chunk must be released once it has been
+ * consumed, it returns to the pool when every consumer has released it.
+ */
+
+public abstract class AccessoryStreamEvents extends AccessoryEvents {
+    public abstract void onStreamBegin(final AccessoryCommand command, final int totalSize)
+            throws RemoteException;
+    public abstract void onStreamChunk(final PacketBuffer chunk) throws RemoteException;
+    public abstract void onStreamEnd(final AccessoryCommand command, final boolean complete)
+            throws RemoteException;
+}
@@ -0,0 +1,1049 @@
+package arksine.com.androidaccessorytest;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes outbound packets to the accessory on a dedicated thread.  Bulk data commands are
+ * queued on a bulk lane and everything else on a control lane, which always goes first, so
+ * with fragmentation a control packet waits for at most one fragment.  Packets on the same
+ * lane are written in the order they were queued, small frames coalesced into one transfer.
+ * Queueing is lock-free and does not allocate, and the main thread never blocks.
+ */
+
+class AccessoryWriter implements Runnable {
+    private static final String TAG = AccessoryWriter.class.getSimpleName();
+
+    static final int DEFAULT_FRAGMENT_SIZE = 16384;
+
+    private static final EnumSet<AccessoryCommand> BULK_COMMANDS =
+            EnumSet.of(AccessoryCommand.TEST, AccessoryCommand.CAM_FRAME);
+    private static final int MAX_HEADER_SIZE = LinkConfig.SYNC_MARKER_SIZE +
+            PacketDecoder.PACKET_HEADER_SIZE + LinkConfig.HEADER_EXTENSION_SIZE +
+            LinkConfig.FRAGMENT_PREFIX_SIZE;
+    // Largest payload copied into the batch buffer rather than written in place
+    private static final int FRAME_BUFFER_PAYLOAD = DEFAULT_FRAGMENT_SIZE;
+    private static final int CONTROL_QUEUE_SIZE = 256;
+    private static final int BULK_QUEUE_SIZE = 64;
+    // How long a producer waits for the writer to free a slot in a full queue before the
+    // packet is dropped.  The main thread never waits.
+    private static final long FULL_QUEUE_WAIT_MS = 500;
+    // Longest the idle writer parks, a backstop should a wakeup ever be lost
+    private static final long MAX_IDLE_NS = 50000000;
+    static final int DEFAULT_COALESCE_THRESHOLD = 16384;
+    static final int MAX_COALESCE_THRESHOLD = 65536;
+    static final int MAX_SUPERSEDE_KEYS = 16;
+    static final int NO_KEY = -1;
+
+    // Behaviour when the in-flight limit is reached
+    static final int LIMIT_BLOCK = 0;
+    static final int LIMIT_REJECT = 1;
+    static final long DEFAULT_IN_FLIGHT_LIMIT = 4 * 1024 * 1024;
+    // Message builders kept for reuse once written, enough for a full control queue
+    private static final int MESSAGE_POOL_SIZE = CONTROL_QUEUE_SIZE;
+    // Builders that grew beyond this for a large message are not pooled, so a full pool holds
+    // at most 1 MB of direct memory
+    private static final int MAX_POOLED_MESSAGE_CAPACITY = 4096;
+    // How long close() waits for the writer thread to exit
+    private static final long CLOSE_WAIT_MS = 1000;
+
+    private static final String CLOSED_MESSAGE = "Accessory closed";
+    private static final String SUPERSEDED_MESSAGE = "Superseded by a newer packet";
+    private static final String FRAMING_MESSAGE = "Framing changed";
+    private static final String QUEUE_FULL_MESSAGE = "Write queue full";
+
+    private final WriteQueue mControlQueue = new WriteQueue(CONTROL_QUEUE_SIZE);
+    private final WriteQueue mBulkQueue = new WriteQueue(BULK_QUEUE_SIZE);
+    private volatile FileChannel mChannel = null;
+    private volatile int mFragmentSize = DEFAULT_FRAGMENT_SIZE;
+    // Incremented by open() and close(), entries queued before that are dropped
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+    private volatile Thread mThread = null;
+    // Thread of the last connection, which open() must see exit before starting another
+    private Thread mLastThread = null;
+    private volatile boolean mSleeping = false;
+    private volatile int mCoalesceThreshold = DEFAULT_COALESCE_THRESHOLD;
+    private volatile long mLatencyBudgetNs = 0;
+    private final int[] mKeys = new int[AccessoryCommand.values().length];
+    // Incremented whenever a packet with the key is queued
+    private final AtomicIntegerArray mKeyVersions = new AtomicIntegerArray(MAX_SUPERSEDE_KEYS);
+    private final AtomicLong mInFlightBytes = new AtomicLong(0);
+    private volatile long mInFlightLimit = DEFAULT_IN_FLIGHT_LIMIT;
+    private volatile int mLimitPolicy = LIMIT_BLOCK;
+    private volatile long mLimitTimeout = 0;
+    private final Object mLimitLock = new Object();
+    private volatile int mLimitWaiters = 0;
+    // Producers waiting for a slot in a full queue
+    private final Object mQueueLock = new Object();
+    private volatile int mQueueWaiters = 0;
+    private final BufferRing<MessageBuilder> mMessagePool =
+            new BufferRing<>(MESSAGE_POOL_SIZE);
+
+    // Only accessed from the writer thread
+    private LinkConfig mConfig = LinkConfig.LEGACY;
+    private final Crc32c mChecksum = new Crc32c();
+    private final PayloadCodec mCodec = new PayloadCodec();
+    private final int[] mSequences = new int[AccessoryCommand.values().length];
+    private final WriteQueue.Entry mControl = new WriteQueue.Entry();
+    private final ByteBuffer mHeaderBuf = ByteBuffer.allocate(MAX_HEADER_SIZE);
+    private final ByteBuffer mBatchBuf = ByteBuffer.allocateDirect(MAX_COALESCE_THRESHOLD +
+            MAX_HEADER_SIZE + FRAME_BUFFER_PAYLOAD + LinkConfig.CHECKSUM_SIZE);
+    // Time the first frame in the batch was added, and the connection it was written for
+    private long mBatchStart;
+    private int mBatchGeneration;
+    private long mSupersededCount = 0;
+    // Asynchronous writes whose last frame is in the batch
+    private final ArrayList<WriteFuture> mBatchFutures = new ArrayList<>();
+    private final ByteBuffer mTrailerBuf = ByteBuffer.allocateDirect(LinkConfig.CHECKSUM_SIZE);
+    private final ByteBuffer[] mGather = new ByteBuffer[3];
+    // Wraps the array of the payload being written in place, rewrapped when the array changes
+    private ByteBuffer mPayloadBuf = null;
+    private byte[] mPayloadArray = null;
+
+    // Bulk message currently being written
+    private final WriteQueue.Entry mBulk = new WriteQueue.Entry();
+    private boolean mBulkActive = false;
+    private byte[] mBulkData;
+    private int mBulkLength;
+    private int mBulkOffset;
+    private int mBulkFlags;
+    private int mBulkSequence;
+    private long mBulkTimestamp;
+    private int mBulkWritten;
+
+    AccessoryWriter() {
+        Arrays.fill(mKeys, NO_KEY);
+    }
+
+    /**
+     * Starts writing to outputStream with the given framing on a new writer thread.  Anything
+     * still queued for a previous connection is discarded.
+     *
+     * @return false if the writer thread of the previous connection is still stuck in a
+     * write, since the queues only allow a single consumer
+     */
+    boolean open(FileOutputStream outputStream, LinkConfig config) {
+        if (mLastThread != null && mLastThread.isAlive()) {
+            Log.w(TAG, "Previous write thread still running, not opening");
+            return false;
+        }
+
+        mChannel = outputStream.getChannel();
+        mGeneration.incrementAndGet();
+        enqueue(mControlQueue, AccessoryCommand.NONE, null, null, config, true, null);
+
+        Thread thread = new Thread(null, this, "Accessory Write Thread");
+        mThread = thread;
+        mLastThread = thread;
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops writing and waits for the writer thread to exit.  Packets still queued are
+     * dropped.  Should the thread be stuck in a write, open() fails until it exits.
+     */
+    void close() {
+        mChannel = null;
+        mGeneration.incrementAndGet();
+
+        Thread thread = mThread;
+        mThread = null;
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        // Interrupting a write in progress closes the channel, which is being closed anyway
+        thread.interrupt();
+        try {
+            thread.join(CLOSE_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, "Write thread did not stop");
+        }
+    }
+
+    /**
+     * Queues a packet.  The main thread never waits for a slot, so a caller there must be
+     * ready for a full queue.
+     *
+     * @return false if the writer is closed or the queue stayed full, and the packet was
+     * dropped
+     */
+    boolean write(AccessoryCommand command, byte[] data) {
+        return enqueue(BULK_COMMANDS.contains(command) ? mBulkQueue : mControlQueue, command,
+                data, null, null, false, null);
+    }
+
+    /**
+     * Queues a packet like write() and returns a handle that completes once it has been
+     * written.  Blocks, or fails, while the payloads of earlier asynchronous writes that have
+     * not completed add up to the in-flight limit.  Never blocks on the main thread, where
+     * reaching the limit fails right away.
+     *
+     * @param listener notified on the writer thread when the write completes, or null
+     * @return the completion handle, or null if the in-flight limit was reached, the queue
+     * stayed full or the writer is closed
+     */
+    WriteFuture writeAsync(AccessoryCommand command, byte[] data,
+                           WriteFuture.Listener listener) {
+        int size = (data != null) ? data.length : 0;
+        if (!reserveInFlight(size)) {
+            return null;
+        }
+
+        WriteFuture future = new WriteFuture(command, size, listener);
+        if (!enqueue(BULK_COMMANDS.contains(command) ? mBulkQueue : mControlQueue, command,
+                data, null, null, false, future)) {
+            releaseInFlight(size);
+            return null;
+        }
+        return future;
+    }
+
+    /**
+     * Queues the payload of source on the same lane as a byte[] payload of command.  The
+     * source is closed once it has been written or dropped.
+     *
+     * @return false if the packet was dropped, as for write()
+     */
+    boolean writeSource(AccessoryCommand command, PayloadSource source) {
+        if (!enqueue(BULK_COMMANDS.contains(command) ? mBulkQueue : mControlQueue, command,
+                null, source, null, false, null)) {
+            source.close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a builder for a packet of command, reused from the pool if one is free
+     */
+    MessageBuilder obtainMessage(AccessoryCommand command) {
+        MessageBuilder message = mMessagePool.poll();
+        if (message == null) {
+            message = new MessageBuilder(this);
+        }
+        return message.reset(command);
+    }
+
+    /**
+     * Returns a written message to the pool, or leaves it to the GC if the pool is full or its
+     * buffer has grown past MAX_POOLED_MESSAGE_CAPACITY
+     */
+    void recycle(MessageBuilder message) {
+        if (message.capacity() <= MAX_POOLED_MESSAGE_CAPACITY) {
+            mMessagePool.offer(message);
+        }
+    }
+
+    /**
+     * Writes the payload of source asynchronously like writeAsync(), reading it frame by frame
+     * instead of copying it.  Sources are always queued on the bulk lane and are not
+     * compressed.  The source is closed once it has been written or dropped.
+     *
+     * @return the completion handle, or null if the in-flight limit was reached, the queue
+     * stayed full or the writer is closed
+     */
+    WriteFuture writeAsync(AccessoryCommand command, PayloadSource source,
+                           WriteFuture.Listener listener) {
+        if (!reserveInFlight(source.length())) {
+            source.close();
+            return null;
+        }
+
+        WriteFuture future = new WriteFuture(command, source.length(), listener);
+        if (!enqueue(mBulkQueue, command, null, source, null, false, future)) {
+            releaseInFlight(source.length());
+            source.close();
+            return null;
+        }
+        return future;
+    }
+
+    /**
+     * Switches framing once every packet queued before this call has been written
+     */
+    void setLinkConfig(LinkConfig config) {
+        enqueue(mControlQueue, AccessoryCommand.NONE, null, null, config, false, null);
+    }
+
+    /**
+     * Sets the largest payload written in one fragment, which bounds how long a control
+     * packet can wait behind a bulk message
+     */
+    void setFragmentSize(int fragmentSize) {
+        if (fragmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid fragment size: " + fragmentSize);
+        }
+        mFragmentSize = fragmentSize;
+    }
+
+    /**
+     * Sets when a batch of coalesced frames is written
+     *
+     * @param threshold       batch size in bytes that is written right away, at most
+     *                        MAX_COALESCE_THRESHOLD
+     * @param latencyBudgetUs longest a frame waits for more frames to join its batch, in
+     *                        microseconds, 0 to only coalesce frames that are already queued
+     */
+    void setCoalescing(int threshold, int latencyBudgetUs) {
+        if (threshold <= 0 || threshold > MAX_COALESCE_THRESHOLD || latencyBudgetUs < 0) {
+            throw new IllegalArgumentException("Invalid coalescing: " + threshold + " bytes, " +
+                    latencyBudgetUs + " us");
+        }
+        mCoalesceThreshold = threshold;
+        mLatencyBudgetNs = latencyBudgetUs * 1000L;
+        wake();
+    }
+
+    /**
+     * Gives command a supersede key.  A queued packet is dropped when a newer packet with the
+     * same key is queued before it has been written.
+     *
+     * @param key key from 0 to MAX_SUPERSEDE_KEYS - 1, or NO_KEY to always write the command
+     */
+    void setSupersedeKey(AccessoryCommand command, int key) {
+        if (key != NO_KEY && (key < 0 || key >= MAX_SUPERSEDE_KEYS)) {
+            throw new IllegalArgumentException("Invalid supersede key: " + key);
+        }
+        mKeys[command.ordinal()] = key;
+    }
+
+    /**
+     * Limits the payload bytes of asynchronous writes that are queued or being written.  A
+     * packet larger than the limit is accepted when nothing else is in flight.
+     *
+     * @param maxBytes  maximum number of payload bytes in flight
+     * @param policy    LIMIT_BLOCK or LIMIT_REJECT
+     * @param timeoutMs how long a blocked write waits before it is rejected, or 0 to wait
+     *                  indefinitely
+     */
+    void setInFlightLimit(long maxBytes, int policy, long timeoutMs) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid in-flight limit: " + maxBytes);
+        }
+        mInFlightLimit = maxBytes;
+        mLimitPolicy = policy;
+        mLimitTimeout = timeoutMs;
+        synchronized (mLimitLock) {
+            mLimitLock.notifyAll();
+        }
+    }
+
+    long getInFlightBytes() {
+        return mInFlightBytes.get();
+    }
+
+    /**
+     * Returns the number of packets dropped because a newer packet superseded them
+     */
+    long getSupersededCount() {
+        return mSupersededCount;
+    }
+
+    private boolean reserveInFlight(int size) {
+        long timeout = mLimitTimeout;
+        long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        while (true) {
+            long inFlight = mInFlightBytes.get();
+            if (inFlight == 0 || inFlight + size <= mInFlightLimit) {
+                if (mInFlightBytes.compareAndSet(inFlight, inFlight + size)) {
+                    return true;
+                }
+                continue;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (mLimitPolicy == LIMIT_REJECT || remaining <= 0 ||
+                    Looper.myLooper() == Looper.getMainLooper()) {
+                return false;
+            }
+
+            synchronized (mLimitLock) {
+                mLimitWaiters++;
+                try {
+                    mLimitLock.wait(Math.min(remaining, WaitStrategy.MAX_WAIT_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    mLimitWaiters--;
+                }
+            }
+        }
+    }
+
+    private void releaseInFlight(int size) {
+        mInFlightBytes.addAndGet(-size);
+        if (mLimitWaiters > 0) {
+            synchronized (mLimitLock) {
+                mLimitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queues an entry, waiting up to FULL_QUEUE_WAIT_MS for the writer to free a slot if the
+     * queue is full
+     *
+     * @return false if the writer is closed or the queue stayed full, and the entry was
+     * dropped
+     */
+    private boolean enqueue(WriteQueue queue, AccessoryCommand command, byte[] data,
+                            PayloadSource source, LinkConfig config, boolean reset,
+                            WriteFuture future) {
+        if (config == null && mThread == null) {
+            // No thread will take it until the next open(), which drops it anyway
+            Log.w(TAG, "Writer closed, " + command + " dropped");
+            return false;
+        }
+
+        int key = (config == null) ? mKeys[command.ordinal()] : NO_KEY;
+        int version = (key != NO_KEY) ? mKeyVersions.incrementAndGet(key) : 0;
+        int generation = mGeneration.get();
+        boolean queued = queue.offer(command, data, source, config, reset, generation, key,
+                version, future);
+        if (!queued && Looper.myLooper() != Looper.getMainLooper()) {
+            queued = awaitSlot(queue, command, data, source, config, reset, generation, key,
+                    version, future);
+        }
+        wake();
+        if (!queued) {
+            Log.w(TAG, "Write queue full, " + command + " dropped");
+        }
+        return queued;
+    }
+
+    private boolean awaitSlot(WriteQueue queue, AccessoryCommand command, byte[] data,
+                              PayloadSource source, LinkConfig config, boolean reset,
+                              int generation, int key, int version, WriteFuture future) {
+        long deadline = System.currentTimeMillis() + FULL_QUEUE_WAIT_MS;
+        synchronized (mQueueLock) {
+            mQueueWaiters++;
+            try {
+                while (!queue.offer(command, data, source, config, reset, generation, key,
+                        version, future)) {
+                    // The writer is behind, let it free a slot
+                    wake();
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    mQueueLock.wait(Math.min(remaining, WaitStrategy.MAX_WAIT_MS));
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mQueueWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Wakes producers waiting for a slot, called by the writer after taking an entry
+     */
+    private void slotFreed() {
+        if (mQueueWaiters > 0) {
+            synchronized (mQueueLock) {
+                mQueueLock.notifyAll();
+            }
+        }
+    }
+
+    private void wake() {
+        Thread thread = mThread;
+        if (mSleeping && thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.interrupted()) {
+            if (mControlQueue.poll(mControl)) {
+                slotFreed();
+                try {
+                    if (isCurrent(mControl)) {
+                        if (mControl.config != null) {
+                            applyConfig(mControl.config, mControl.reset);
+                        } else {
+                            writeControl(mControl.command, mControl.data, mControl.source,
+                                    mControl.future);
+                        }
+                    }
+                } catch (IOException e) {
+                    writeFailed(mControl.command, mControl.future, e);
+                } finally {
+                    release(mControl);
+                }
+            } else if (mBulkActive || startBulk()) {
+                try {
+                    writeFragment();
+                } catch (IOException e) {
+                    writeFailed(mBulk.command, mBulk.future, e);
+                    if (mBulkActive) {
+                        endBulk();
+                    }
+                }
+            } else {
+                long wait = 0;
+                if (mBatchBuf.position() > 0) {
+                    wait = mBatchStart + mLatencyBudgetNs - System.nanoTime();
+                    if (wait <= 0) {
+                        try {
+                            flushBatch();
+                        } catch (IOException e) {
+                            writeFailed(AccessoryCommand.NONE, null, e);
+                        }
+                        continue;
+                    }
+                }
+
+                // Producers publish an entry and then check mSleeping, both volatile, so
+                // either they see it set or the entry is seen here.  The park is bounded
+                // all the same.
+                mSleeping = true;
+                if (mControlQueue.isEmpty() && mBulkQueue.isEmpty()) {
+                    LockSupport.parkNanos(this, (wait > 0) ? Math.min(wait, MAX_IDLE_NS) :
+                            MAX_IDLE_NS);
+                }
+                mSleeping = false;
+            }
+        }
+
+        // Fail whatever was left for this connection, nothing polls the queues until the
+        // next open() starts a new thread
+        discardBatch(null);
+        if (mBulkActive) {
+            fail(mBulk.future, CLOSED_MESSAGE);
+            endBulk();
+        }
+        drain(mControlQueue, mControl);
+        drain(mBulkQueue, mBulk);
+        mSleeping = false;
+
+        // The deflater holds native memory that is only freed when it is ended
+        mCodec.release();
+    }
+
+    private void drain(WriteQueue queue, WriteQueue.Entry entry) {
+        while (queue.poll(entry)) {
+            slotFreed();
+            fail(entry.future, CLOSED_MESSAGE);
+            release(entry);
+        }
+    }
+
+    /**
+     * Fails the write that hit error, along with the coalesced frames lost with it.  A bulk
+     * message in progress only fails with it once the link is closed, otherwise it carries on
+     * with its next fragment.
+     */
+    private void writeFailed(AccessoryCommand command, WriteFuture future, IOException error) {
+        Log.e(TAG, "Write of " + command + " failed", error);
+        finish(future, -1, error);
+        discardBatch(error);
+
+        FileChannel channel = mChannel;
+        if (mBulkActive && (channel == null || !channel.isOpen())) {
+            finish(mBulk.future, -1, error);
+            endBulk();
+        }
+    }
+
+    /**
+     * Returns false, failing its write, if the entry belongs to a previous connection or has
+     * been superseded
+     */
+    private boolean isCurrent(WriteQueue.Entry entry) {
+        String dropped = null;
+        if (entry.generation != mGeneration.get()) {
+            dropped = CLOSED_MESSAGE;
+        } else if (entry.key != NO_KEY && mKeyVersions.get(entry.key) != entry.version) {
+            mSupersededCount++;
+            dropped = SUPERSEDED_MESSAGE;
+        }
+        if (dropped == null) {
+            return true;
+        }
+
+        fail(entry.future, dropped);
+        return false;
+    }
+
+    /**
+     * Closes the entry's source, if any, and clears it
+     */
+    private void release(WriteQueue.Entry entry) {
+        if (entry.source != null) {
+            entry.source.close();
+        }
+        entry.clear();
+    }
+
+    /**
+     * Completes future once its last frame, written bytes long, is on the link, or fails it
+     * if the frame was not written
+     */
+    private void finished(WriteFuture future, int written) {
+        if (future == null) {
+            return;
+        } else if (written < 0) {
+            fail(future, CLOSED_MESSAGE);
+            return;
+        }
+
+        future.addPendingBytes(written);
+        if (mBatchBuf.position() > 0) {
+            mBatchFutures.add(future);
+        } else {
+            finish(future, future.getPendingBytes(), null);
+        }
+    }
+
+    private void fail(WriteFuture future, String message) {
+        if (future != null) {
+            finish(future, -1, new IOException(message));
+        }
+    }
+
+    private void finish(WriteFuture future, int bytesWritten, IOException error) {
+        if (future == null || future.isDone()) {
+            return;
+        }
+
+        releaseInFlight(future.getSize());
+        try {
+            future.complete(bytesWritten, error);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Write listener for " + future.getCommand() + " failed", e);
+        }
+    }
+
+    private void applyConfig(LinkConfig config, boolean reset) {
+        // A bulk message half written with the old framing cannot be finished with the new
+        if (mBulkActive && (reset || mBulkOffset > 0)) {
+            Log.w(TAG, "Framing changed while writing " + mBulk.command + ", dropped");
+            fail(mBulk.future, FRAMING_MESSAGE);
+            endBulk();
+        }
+        mConfig = config;
+        Arrays.fill(mSequences, 0);
+    }
+
+    private void writeControl(AccessoryCommand command, byte[] data, PayloadSource source,
+                              WriteFuture future) throws IOException {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Write Command: " + command);
+        }
+        if (command == AccessoryCommand.NONE) {
+            finished(future, 0);
+            return;
+        }
+
+        if (source != null) {
+            int length = source.length();
+            finished(future, writeFrame(command, length, -1, nextSequence(command),
+                    SystemClock.elapsedRealtimeNanos(), source, 0, length));
+        } else {
+            int length = (data != null) ? data.length : 0;
+            finished(future, writeFrame(command, length, -1, nextSequence(command),
+                    SystemClock.elapsedRealtimeNanos(), data, 0, length));
+        }
+    }
+
+    /**
+     * Takes the next bulk message of the current connection off the queue and prepares it for
+     * writing, compressing it if the link allows
+     *
+     * @return false if there is none
+     */
+    private boolean startBulk() {
+        while (mBulkQueue.poll(mBulk)) {
+            slotFreed();
+            if (isCurrent(mBulk)) {
+                break;
+            }
+            release(mBulk);
+        }
+        if (mBulk.command == null) {
+            return false;
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Write Command: " + mBulk.command);
+        }
+        mBulkActive = true;
+        mBulkData = mBulk.data;
+        mBulkLength = (mBulk.data != null) ? mBulk.data.length : 0;
+        mBulkOffset = 0;
+        mBulkFlags = 0;
+        mBulkWritten = 0;
+
+        if (mBulk.source != null) {
+            mBulkLength = mBulk.source.length();
+        } else if (mConfig.hasCompression()) {
+            int compressedSize = mCodec.compress(mBulk.command, mBulk.data);
+            if (compressedSize >= 0) {
+                mBulkData = mCodec.getOutput();
+                mBulkLength = compressedSize;
+                mBulkFlags = PayloadCodec.COMPRESSED_FLAG;
+            }
+        }
+        if (mConfig.hasFragments() && mBulkLength > mFragmentSize) {
+            mBulkFlags |= LinkConfig.FRAGMENT_FLAG;
+        }
+        mBulkSequence = nextSequence(mBulk.command);
+        mBulkTimestamp = SystemClock.elapsedRealtimeNanos();
+        return true;
+    }
+
+    private void endBulk() {
+        mBulkActive = false;
+        release(mBulk);
+        mBulkData = null;
+        if (mPayloadArray != mCodec.getOutput()) {
+            // Do not hold on to the caller's payload
+            mPayloadArray = null;
+            mPayloadBuf = null;
+        }
+    }
+
+    /**
+     * Writes the next fragment of the current bulk message, or all of it if it is not being
+     * fragmented
+     */
+    private void writeFragment() throws IOException {
+        if (mBulk.generation != mGeneration.get()) {
+            fail(mBulk.future, CLOSED_MESSAGE);
+            endBulk();
+            return;
+        }
+
+        boolean fragmented = (mBulkFlags & LinkConfig.FRAGMENT_FLAG) != 0;
+        int length = fragmented ? Math.min(mFragmentSize, mBulkLength - mBulkOffset) :
+                mBulkLength;
+        int total = (fragmented && mBulkOffset == 0) ? mBulkLength : -1;
+
+        int written = 0;
+        PayloadSource source = mBulk.source;
+        if (mBulk.command == AccessoryCommand.NONE) {
+            // Nothing to write
+        } else if (source == null) {
+            written = writeFrame(mBulk.command, length | mBulkFlags, total, mBulkSequence,
+                    mBulkTimestamp, mBulkData, mBulkOffset, length);
+        } else {
+            written = writeFrame(mBulk.command, length | mBulkFlags, total, mBulkSequence,
+                    mBulkTimestamp, source, mBulkOffset, length);
+        }
+        mBulkOffset += length;
+        if (written < 0) {
+            fail(mBulk.future, CLOSED_MESSAGE);
+            endBulk();
+        } else {
+            mBulkWritten += written;
+            if (mBulkOffset >= mBulkLength) {
+                finished(mBulk.future, mBulkWritten);
+                endBulk();
+            }
+        }
+    }
+
+    private int nextSequence(AccessoryCommand command) {
+        return mSequences[command.ordinal()]++;
+    }
+
+    /**
+     * Writes a single frame using the current framing
+     *
+     * @param sizeField payload length along with any flags
+     * @param total     total message size following the header of a first fragment, or -1
+     * @return the size of the frame, or -1 if the accessory is closed
+     */
+    private int writeFrame(AccessoryCommand command, int sizeField, int total, int sequence,
+                           long timestamp, byte[] data, int offset, int length)
+            throws IOException {
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            return -1;
+        }
+
+        int headerSize = buildHeader(command, sizeField, total, sequence, timestamp);
+        int checksum = 0;
+        if (mConfig.hasChecksum()) {
+            mChecksum.reset();
+            mChecksum.update(mHeaderBuf.array(), 0, headerSize);
+            if (length > 0) {
+                mChecksum.update(data, offset, length);
+            }
+            checksum = (int) mChecksum.getValue();
+        }
+
+        if (length <= FRAME_BUFFER_PAYLOAD) {
+            beginBatchFrame(headerSize);
+            if (length > 0) {
+                mBatchBuf.put(data, offset, length);
+            }
+            endBatchFrame(checksum);
+        } else {
+            writeGathered(channel, headerSize, wrapPayload(data, offset, length), checksum);
+        }
+        return frameSize(headerSize, length);
+    }
+
+    /**
+     * Writes a single frame with the remaining bytes of payload as its payload.  The
+     * payload's position is not changed.
+     */
+    private int writeFrame(AccessoryCommand command, int sizeField, int total, int sequence,
+                           long timestamp, ByteBuffer payload) throws IOException {
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            return -1;
+        }
+
+        int headerSize = buildHeader(command, sizeField, total, sequence, timestamp);
+        int position = payload.position();
+        int length = payload.remaining();
+        int checksum = 0;
+        if (mConfig.hasChecksum()) {
+            mChecksum.reset();
+            mChecksum.update(mHeaderBuf.array(), 0, headerSize);
+            mChecksum.update(payload, position, length);
+            checksum = (int) mChecksum.getValue();
+        }
+
+        if (length <= FRAME_BUFFER_PAYLOAD) {
+            beginBatchFrame(headerSize);
+            mBatchBuf.put(payload);
+            payload.position(position);
+            endBatchFrame(checksum);
+        } else {
+            try {
+                writeGathered(channel, headerSize, payload, checksum);
+            } finally {
+                payload.position(position);
+            }
+        }
+        return frameSize(headerSize, length);
+    }
+
+    /**
+     * Writes a single frame with length bytes of source starting at offset as its payload
+     */
+    private int writeFrame(AccessoryCommand command, int sizeField, int total, int sequence,
+                           long timestamp, PayloadSource source, int offset, int length)
+            throws IOException {
+        if (length <= source.maxView()) {
+            return writeFrame(command, sizeField, total, sequence, timestamp,
+                    source.view(offset, length));
+        }
+        return writeStreamedFrame(command, sizeField, total, sequence, timestamp, source,
+                offset, length);
+    }
+
+    /**
+     * Writes a frame whose payload is too large to view at once, streaming it from source
+     * one view at a time
+     */
+    private int writeStreamedFrame(AccessoryCommand command, int sizeField, int total,
+                                   int sequence, long timestamp, PayloadSource source,
+                                   int offset, int length) throws IOException {
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            return -1;
+        }
+
+        // The checksum trailer follows the payload, so it is computed while streaming
+        int headerSize = buildHeader(command, sizeField, total, sequence, timestamp);
+        mChecksum.reset();
+        mChecksum.update(mHeaderBuf.array(), 0, headerSize);
+        beginBatchFrame(headerSize);
+        flushBatch();
+
+        int end = offset + length;
+        while (offset < end) {
+            ByteBuffer view = source.view(offset, Math.min(source.maxView(), end - offset));
+            int count = view.remaining();
+            if (mConfig.hasChecksum()) {
+                mChecksum.update(view, view.position(), count);
+            }
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+            offset += count;
+        }
+
+        if (mConfig.hasChecksum()) {
+            mTrailerBuf.clear();
+            mTrailerBuf.putInt((int) mChecksum.getValue());
+            mTrailerBuf.flip();
+            while (mTrailerBuf.hasRemaining()) {
+                channel.write(mTrailerBuf);
+            }
+        }
+        return frameSize(headerSize, length);
+    }
+
+    /**
+     * Fills the header buffer for a frame using the current framing
+     *
+     * @return the size of the header
+     */
+    private int buildHeader(AccessoryCommand command, int sizeField, int total, int sequence,
+                            long timestamp) {
+        LinkConfig config = mConfig;
+        ByteBuffer headerBuf = mHeaderBuf;
+        headerBuf.clear();
+        if (config.hasSyncMarker()) {
+            headerBuf.put(LinkConfig.SYNC_MARKER_HIGH);
+            headerBuf.put(LinkConfig.SYNC_MARKER_LOW);
+        }
+        headerBuf.put(command.getBytes());
+        headerBuf.putInt(sizeField);
+        if (config.hasExtendedHeader()) {
+            headerBuf.putInt(sequence);
+            headerBuf.putLong(timestamp);
+        }
+        if (total >= 0) {
+            headerBuf.putInt(total);
+        }
+        return headerBuf.position();
+    }
+
+    /**
+     * Appends the header of a frame to the batch, starting a new batch if it is empty
+     */
+    private void beginBatchFrame(int headerSize) {
+        ByteBuffer batchBuf = mBatchBuf;
+        if (batchBuf.position() > 0 && mBatchGeneration != mGeneration.get()) {
+            // Left over from a previous connection
+            discardBatch(null);
+        }
+        if (batchBuf.position() == 0) {
+            mBatchStart = System.nanoTime();
+            mBatchGeneration = mGeneration.get();
+        }
+        batchBuf.put(mHeaderBuf.array(), 0, headerSize);
+    }
+
+    /**
+     * Appends the trailer of a frame whose payload has been appended to the batch, and
+     * writes the batch if it is due
+     */
+    private void endBatchFrame(int checksum) throws IOException {
+        ByteBuffer batchBuf = mBatchBuf;
+        if (mConfig.hasChecksum()) {
+            batchBuf.putInt(checksum);
+        }
+        if (batchBuf.position() >= mCoalesceThreshold || (mLatencyBudgetNs > 0 &&
+                System.nanoTime() - mBatchStart >= mLatencyBudgetNs)) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Writes the batch, then the frame whose header was last built as header, payload and
+     * trailer, all in one gathering write
+     */
+    private void writeGathered(FileChannel channel, int headerSize, ByteBuffer payload,
+                               int checksum) throws IOException {
+        ByteBuffer batchBuf = mBatchBuf;
+        if (batchBuf.position() > 0 && mBatchGeneration != mGeneration.get()) {
+            discardBatch(null);
+        }
+        batchBuf.put(mHeaderBuf.array(), 0, headerSize);
+        batchBuf.flip();
+        mGather[0] = batchBuf;
+        mGather[1] = payload;
+        int count = 2;
+        if (mConfig.hasChecksum()) {
+            mTrailerBuf.clear();
+            mTrailerBuf.putInt(checksum);
+            mTrailerBuf.flip();
+            mGather[count++] = mTrailerBuf;
+        }
+        try {
+            while (mGather[count - 1].hasRemaining()) {
+                channel.write(mGather, 0, count);
+            }
+        } finally {
+            batchBuf.clear();
+            mGather[1] = null;
+        }
+        completeBatch(null);
+    }
+
+    private int frameSize(int headerSize, int length) {
+        return headerSize + length + (mConfig.hasChecksum() ? LinkConfig.CHECKSUM_SIZE : 0);
+    }
+
+    /**
+     * Writes the frames coalesced so far
+     */
+    private void flushBatch() throws IOException {
+        ByteBuffer batchBuf = mBatchBuf;
+        FileChannel channel = mChannel;
+        if (channel == null || mBatchGeneration != mGeneration.get()) {
+            discardBatch(null);
+            return;
+        }
+
+        batchBuf.flip();
+        try {
+            while (batchBuf.hasRemaining()) {
+                channel.write(batchBuf);
+            }
+        } finally {
+            batchBuf.clear();
+        }
+        completeBatch(null);
+    }
+
+    /**
+     * Drops the frames coalesced so far, failing their writes with error, or as closed if
+     * error is null
+     */
+    private void discardBatch(IOException error) {
+        mBatchBuf.clear();
+        if (!mBatchFutures.isEmpty()) {
+            completeBatch((error != null) ? error : new IOException(CLOSED_MESSAGE));
+        }
+    }
+
+    private void completeBatch(IOException error) {
+        for (int i = 0; i < mBatchFutures.size(); i++) {
+            WriteFuture future = mBatchFutures.get(i);
+            finish(future, future.getPendingBytes(), error);
+        }
+        mBatchFutures.clear();
+    }
+
+    private ByteBuffer wrapPayload(byte[] data, int offset, int length) {
+        if (data != mPayloadArray) {
+            mPayloadArray = data;
+            mPayloadBuf = ByteBuffer.wrap(data);
+        }
+        mPayloadBuf.clear();
+        mPayloadBuf.limit(offset + length);
+        mPayloadBuf.position(offset);
+        return mPayloadBuf;
+    }
+}
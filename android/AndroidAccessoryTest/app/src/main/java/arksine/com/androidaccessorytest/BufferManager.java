@@ -1,40 +1,619 @@
 package arksine.com.androidaccessorytest;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import android.util.Log;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Created by eric on 3/4/17.
+ *
+ * Pool of PacketBuffers organized as slabs of power of two size classes, from 4KB to 512KB.
+ * A request is served from the smallest class that fits it, so a small packet never pins a
+ * large array, and a buffer always returns to the class it came from.  Buffers that were
+ * enlarged past their class are dropped when returned instead of growing the pool.
+ *
+ * The total size of all buffers the pool has allocated, idle or in use, is held under a byte
+ * budget, which also covers buffers growing past their class and payloads spilled to disk.
+ * When a request cannot be met within the budget, idle buffers of other classes are
+ * released to make room.  If that is not enough the request blocks until a buffer is
+ * returned, or fails, depending on the exhausted policy.
+ *
+ * Each class is a lock-free ring over a fixed array, so recycling a buffer never allocates.
+ * Buffers are taken by the read thread but returned by whichever consumer releases them last,
+ * so every idle buffer is kept in the shared rings where the read thread, the budget and
+ * trimming can all reach it.
+ *
+ * A pool can allocate the buffers of its smaller classes, or of all of them, in direct
+ * memory, keeping packet data off the managed heap.  Larger classes stay on the heap for
+ * payloads such as camera frames that are handed to APIs taking arrays.
+ *
+ * With leak detection enabled the pool records where each buffer was handed out.  A buffer
+ * that is garbage collected without its last reference having been released is reported with
+ * that stack trace, and its memory is removed from the budget.
+ *
+ * The pool adapts its size to demand.  For every class it tracks the most buffers in use at
+ * once since the last call to decayIdle(), and decayIdle() releases idle buffers beyond that
+ * peak, so a pool grown by a burst shrinks back once the burst is over.  trimIdle() releases
+ * every idle buffer, and warmUp() preallocates buffers ahead of expected traffic.
+ *
+ * Requests and the peak number of buffers in use are also counted per class for a whole
+ * session, and recordProfile() folds them into a PoolProfile that preallocate() uses to warm
+ * the pool when the next session starts.
  */
 
 public class BufferManager {
+    private static final String TAG = BufferManager.class.getSimpleName();
+
+    static final int DEFAULT_SPILL_THRESHOLD = 512 * 1024;
+
+    // Behaviour when the budget is exhausted
+    static final int EXHAUSTED_BLOCK = 0;
+    static final int EXHAUSTED_FAIL = 1;
+
+    static final long UNLIMITED_BUDGET = Long.MAX_VALUE;
 
-    private ConcurrentLinkedQueue<PacketBuffer> mBuffers;
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 19;
+    private static final int RING_CAPACITY = 64;
+
+    /**
+     * Tracks a buffer that has been handed out while leak detection is enabled
+     */
+    static final class LeakReference extends WeakReference<PacketBuffer> {
+        final Throwable trace;
+        final int capacity;
+        // Bytes the buffer has grown past capacity, kept up to date by the buffer
+        volatile int grown = 0;
+
+        LeakReference(PacketBuffer buf, ReferenceQueue<PacketBuffer> queue) {
+            super(buf, queue);
+            this.trace = new Throwable("PacketBuffer acquired here");
+            this.capacity = buf.pooledCapacity();
+        }
+    }
+
+    private final BufferRing<PacketBuffer>[] mSlabs;
+    private final int mDefaultClass;
+    private final int mMaxDirectCapacity;
+    private final Object mWaitLock = new Object();
+    private volatile int mWaiters = 0;
+
+    private volatile long mBudget = UNLIMITED_BUDGET;
+    private volatile int mExhaustedPolicy = EXHAUSTED_BLOCK;
+    private volatile long mBlockTimeout = 0;
+
+    private final AtomicLong mAllocatedBytes = new AtomicLong(0);
+    private final AtomicInteger mInUse = new AtomicInteger(0);
+    // Per class counts of buffers allocated, buffers in use and the peak in use since the
+    // last decay
+    private final AtomicIntegerArray mClassAllocated;
+    private final AtomicIntegerArray mClassInUse;
+    private final AtomicIntegerArray mClassPeak;
+    // Per class requests and peak in use since the last recordProfile()
+    private final AtomicLongArray mClassRequests;
+    private final AtomicIntegerArray mClassSessionPeak;
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mMisses = new AtomicLong(0);
+    private final AtomicLong mFailures = new AtomicLong(0);
+
+    private volatile boolean mLeakDetection = false;
+    private final ReferenceQueue<PacketBuffer> mLeakQueue = new ReferenceQueue<>();
+    private final Set<LeakReference> mTracked =
+            Collections.newSetFromMap(new ConcurrentHashMap<LeakReference, Boolean>());
+    private final AtomicLong mLeaks = new AtomicLong(0);
+
+    private volatile File mSpillDirectory = null;
+    private volatile int mSpillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private volatile FlowController mFlowController = null;
 
     public BufferManager() {
         this(10, 16384);
     }
 
     public BufferManager(int numBufs, int bufSize) {
-        mBuffers = new ConcurrentLinkedQueue<>();
+        this(numBufs, bufSize, false);
+    }
+
+    /**
+     * @param direct true to allocate buffers in direct memory rather than on the heap
+     */
+    public BufferManager(int numBufs, int bufSize, boolean direct) {
+        this(numBufs, bufSize, direct ? Integer.MAX_VALUE : 0);
+    }
+
+    /**
+     * @param maxDirectCapacity buffers of classes up to this capacity are allocated in direct
+     *                          memory, larger ones on the heap
+     */
+    public BufferManager(int numBufs, int bufSize, int maxDirectCapacity) {
+        mMaxDirectCapacity = maxDirectCapacity;
+        @SuppressWarnings("unchecked")
+        BufferRing<PacketBuffer>[] slabs = new BufferRing[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        mSlabs = slabs;
+        mClassAllocated = new AtomicIntegerArray(mSlabs.length);
+        mClassInUse = new AtomicIntegerArray(mSlabs.length);
+        mClassPeak = new AtomicIntegerArray(mSlabs.length);
+        mClassRequests = new AtomicLongArray(mSlabs.length);
+        mClassSessionPeak = new AtomicIntegerArray(mSlabs.length);
+        for (int i = 0; i < mSlabs.length; i++) {
+            mSlabs[i] = new BufferRing<>(RING_CAPACITY);
+        }
 
-        for (int i = 0; i < numBufs; i++) {
-            PacketBuffer buf = new PacketBuffer(bufSize, this);
-            mBuffers.add(buf);
+        int defaultClass = classFor(bufSize);
+        mDefaultClass = (defaultClass < 0) ? mSlabs.length - 1 : defaultClass;
+        for (int i = 0; i < Math.min(numBufs, RING_CAPACITY); i++) {
+            PacketBuffer buf = allocate(mDefaultClass);
+            mAllocatedBytes.addAndGet(buf.pooledCapacity());
+            mSlabs[mDefaultClass].offer(buf);
         }
     }
 
+    /**
+     * Returns a buffer of the pool's default size, or null if the budget is exhausted and the
+     * policy is to fail
+     */
     PacketBuffer getBuffer() {
-        PacketBuffer buf = mBuffers.poll();
-        if (buf == null) {
-            return new PacketBuffer(16384, this);
-        } else {
-            return buf;
+        return getBufferFromClass(mDefaultClass);
+    }
+
+    /**
+     * Returns a buffer able to hold a payload of payloadSize bytes without growing, or one of
+     * the default size if the payload is larger than the largest class or is to be spilled.
+     * Growing that buffer is charged to the budget by setPayloadsize().
+     * Returns null if the budget is exhausted and the policy is to fail.
+     */
+    PacketBuffer getBuffer(int payloadSize) {
+        if (getSpillDirectory(payloadSize) != null) {
+            return getBufferFromClass(mDefaultClass);
         }
+        int sizeClass = classFor(payloadSize + PacketDecoder.PACKET_HEADER_SIZE);
+        return getBufferFromClass((sizeClass < 0) ? mDefaultClass : sizeClass);
     }
 
     void returnToQueue(PacketBuffer buf) {
-        mBuffers.add(buf);
+        LeakReference leak = buf.takeLeakReference();
+        if (leak != null) {
+            mTracked.remove(leak);
+            leak.clear();
+        }
+        int capacity = buf.chargedCapacity();
+        if (capacity == 0) {
+            // Not allocated by the pool, so it was never charged or counted as in use
+            return;
+        }
+
+        mInUse.decrementAndGet();
+        int sizeClass = classFor(capacity);
+        mClassInUse.decrementAndGet(sizeClass);
+        if (buf.capacity() != capacity) {
+            // Enlarged, let it go rather than let the pool drift
+            freed(capacity);
+            return;
+        }
+
+        if (!mSlabs[sizeClass].offer(buf)) {
+            freed(capacity);
+        }
+        notifyWaiters();
+    }
+
+    /**
+     * Accounts for a buffer growing size bytes further past its pooled capacity.  If the
+     * budget is exhausted this blocks or fails like a request for a new buffer.
+     *
+     * @return false if the growth cannot be accommodated within the budget
+     */
+    boolean reserveGrowth(int size) {
+        if (size <= 0) {
+            return true;
+        }
+        long deadline = deadline();
+        while (!reserve(size, -1)) {
+            if (!awaitReturn(size, deadline)) {
+                return false;
+            }
+        }
+        return true;
     }
 
+    /**
+     * Accounts for size bytes a buffer had grown by having been let go
+     */
+    void releaseGrowth(int size) {
+        if (size > 0) {
+            mAllocatedBytes.addAndGet(-size);
+            notifyWaiters();
+        }
+    }
+
+    /**
+     * Limits the total size of all buffers allocated by the pool.
+     *
+     * @param budget         maximum number of bytes, or UNLIMITED_BUDGET
+     * @param policy         EXHAUSTED_BLOCK or EXHAUSTED_FAIL
+     * @param blockTimeoutMs how long a blocked request waits before failing, or 0 to wait
+     *                       indefinitely
+     */
+    void setBudget(long budget, int policy, long blockTimeoutMs) {
+        mBudget = budget;
+        mExhaustedPolicy = policy;
+        mBlockTimeout = blockTimeoutMs;
+    }
+
+    /**
+     * Enables recording where buffers are handed out so leaked buffers can be reported.
+     * Capturing a stack trace for every buffer is expensive, so this is meant for debugging.
+     */
+    void setLeakDetection(boolean enabled) {
+        mLeakDetection = enabled;
+    }
+
+    /**
+     * Logs buffers found to have been garbage collected without being released, and removes
+     * them from the pool's accounting
+     *
+     * @return the number of leaks found
+     */
+    int reportLeaks() {
+        int count = 0;
+        Reference<? extends PacketBuffer> ref;
+        while ((ref = mLeakQueue.poll()) != null) {
+            LeakReference leak = (LeakReference) ref;
+            if (mTracked.remove(leak)) {
+                count++;
+                mInUse.decrementAndGet();
+                mClassInUse.decrementAndGet(classFor(leak.capacity));
+                freed(leak.capacity);
+                releaseGrowth(leak.grown);
+                Log.e(TAG, "PacketBuffer was garbage collected without being released, " +
+                        "total leaks: " + mLeaks.incrementAndGet(), leak.trace);
+            }
+        }
+        return count;
+    }
+
+    long getLeakCount() {
+        return mLeaks.get();
+    }
+
+    /**
+     * Releases idle buffers of each class beyond the most that were in use at once since the
+     * previous call, and starts a new period.  Meant to be called periodically, so that
+     * buffers left over from a burst are released once they have sat idle for a full period.
+     *
+     * @return the number of bytes released
+     */
+    long decayIdle() {
+        long released = 0;
+        for (int i = 0; i < mSlabs.length; i++) {
+            int inUse = mClassInUse.get(i);
+            int peak = Math.max(mClassPeak.getAndSet(i, inUse), inUse);
+            int excess = mClassAllocated.get(i) - peak;
+            PacketBuffer buf;
+            while (excess-- > 0 && (buf = mSlabs[i].poll()) != null) {
+                freed(buf.pooledCapacity());
+                released += buf.pooledCapacity();
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Releases every idle buffer in the shared pool
+     *
+     * @return the number of bytes released
+     */
+    long trimIdle() {
+        long released = 0;
+        for (int i = 0; i < mSlabs.length; i++) {
+            mClassPeak.set(i, mClassInUse.get(i));
+            PacketBuffer buf;
+            while ((buf = mSlabs[i].poll()) != null) {
+                freed(buf.pooledCapacity());
+                released += buf.pooledCapacity();
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Makes sure at least count buffers able to hold payloadSize bytes are idle in the pool,
+     * as far as the budget allows, and keeps them through the next decay
+     */
+    void warmUp(int payloadSize, int count) {
+        int sizeClass = classFor(payloadSize + PacketDecoder.PACKET_HEADER_SIZE);
+        warmClass((sizeClass < 0) ? mDefaultClass : sizeClass, count);
+    }
+
+    int getClassCount() {
+        return mSlabs.length;
+    }
+
+    /**
+     * Folds the requests and peak use of each class since the previous call into profile
+     */
+    void recordProfile(PoolProfile profile) {
+        for (int i = 0; i < mSlabs.length; i++) {
+            long requests = mClassRequests.getAndSet(i, 0);
+            int peak = mClassSessionPeak.getAndSet(i, mClassInUse.get(i));
+            profile.merge(i, requests, peak);
+        }
+    }
+
+    /**
+     * Warms each class to the peak use recorded in profile, the most requested classes first,
+     * until maxBytes have been preallocated or the budget runs out
+     */
+    void preallocate(PoolProfile profile, long maxBytes) {
+        if (profile.getClassCount() != mSlabs.length) {
+            return;
+        }
+
+        boolean[] done = new boolean[mSlabs.length];
+        long remaining = maxBytes;
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < mSlabs.length; i++) {
+                if (!done[i] && profile.getPeak(i) > 0 && (next < 0 ||
+                        profile.getRequests(i) > profile.getRequests(next))) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                return;
+            }
+
+            done[next] = true;
+            int size = 1 << (next + MIN_CLASS_SHIFT);
+            int count = (int) Math.min(profile.getPeak(next), remaining / size);
+            warmClass(next, count);
+            remaining -= (long) count * size;
+        }
+    }
 
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Returns the number of requests that could not be met within the budget
+     */
+    long getFailureCount() {
+        return mFailures.get();
+    }
+
+    int getInUseCount() {
+        return mInUse.get();
+    }
+
+    long getAllocatedBytes() {
+        return mAllocatedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferManager{hits=" + mHits.get() + ", misses=" + mMisses.get() +
+                ", failures=" + mFailures.get() + ", inUse=" + mInUse.get() +
+                ", allocatedBytes=" + mAllocatedBytes.get() + ", leaks=" + mLeaks.get() + "}";
+    }
+
+    /**
+     * Sets the flow controller credit is returned to as buffers are cleared
+     */
+    void setFlowController(FlowController flowController) {
+        mFlowController = flowController;
+    }
+
+    void releaseCredit(int credit) {
+        FlowController flowController = mFlowController;
+        if (credit > 0 && flowController != null) {
+            flowController.release(credit);
+        }
+    }
+
+    /**
+     * Enables disk spill.  Buffers that need to grow beyond threshold bytes of payload are
+     * backed by a memory mapped temp file in directory instead of a larger heap array.
+     *
+     * @param directory directory for temp files, or null to disable spilling
+     */
+    void setSpillDirectory(File directory, int threshold) {
+        mSpillThreshold = threshold;
+        mSpillDirectory = directory;
+    }
+
+    /**
+     * Returns the directory a payload of the requested size should be spilled to, or null
+     * if it should stay on the heap
+     */
+    File getSpillDirectory(int payloadSize) {
+        return (payloadSize > mSpillThreshold) ? mSpillDirectory : null;
+    }
+
+    private PacketBuffer getBufferFromClass(int sizeClass) {
+        PacketBuffer buf = mSlabs[sizeClass].poll();
+        if (buf != null) {
+            mHits.incrementAndGet();
+            return acquired(buf);
+        }
+
+        mMisses.incrementAndGet();
+        int size = 1 << (sizeClass + MIN_CLASS_SHIFT);
+        long deadline = deadline();
+        while (true) {
+            if (reserve(size, sizeClass)) {
+                return acquired(allocate(sizeClass));
+            }
+
+            buf = mSlabs[sizeClass].poll();
+            if (buf != null) {
+                return acquired(buf);
+            }
+
+            if (!awaitReturn(size, deadline)) {
+                return null;
+            }
+        }
+    }
+
+    private long deadline() {
+        long timeout = mBlockTimeout;
+        return (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+    }
+
+    /**
+     * Waits a while for buffers to be returned so a request for size bytes can be retried
+     *
+     * @return false if the request fails instead, because of the exhausted policy, because
+     * the deadline has passed or because size is more than the whole budget
+     */
+    private boolean awaitReturn(int size, long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (mExhaustedPolicy == EXHAUSTED_FAIL || remaining <= 0 || size > mBudget) {
+            mFailures.incrementAndGet();
+            return false;
+        }
+
+        synchronized (mWaitLock) {
+            mWaiters++;
+            try {
+                mWaitLock.wait(Math.min(remaining, WaitStrategy.MAX_WAIT_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mFailures.incrementAndGet();
+                return false;
+            } finally {
+                mWaiters--;
+            }
+        }
+        return true;
+    }
+
+    private void notifyWaiters() {
+        if (mWaiters > 0) {
+            synchronized (mWaitLock) {
+                mWaitLock.notifyAll();
+            }
+        }
+    }
+
+    private PacketBuffer acquired(PacketBuffer buf) {
+        mInUse.incrementAndGet();
+        int sizeClass = classFor(buf.pooledCapacity());
+        int inUse = mClassInUse.incrementAndGet(sizeClass);
+        raise(mClassPeak, sizeClass, inUse);
+        raise(mClassSessionPeak, sizeClass, inUse);
+        mClassRequests.incrementAndGet(sizeClass);
+        LeakReference leak = null;
+        if (mLeakDetection) {
+            reportLeaks();
+            leak = new LeakReference(buf, mLeakQueue);
+            mTracked.add(leak);
+        }
+        buf.acquired(leak);
+        return buf;
+    }
+
+    /**
+     * Accounts for size more bytes of buffers, releasing idle buffers of classes other than
+     * keepClass if that is needed to stay within the budget
+     *
+     * @param keepClass class whose idle buffers are left alone, or -1
+     * @return false if the budget cannot accommodate size more bytes
+     */
+    private boolean reserve(int size, int keepClass) {
+        while (true) {
+            long allocated = mAllocatedBytes.get();
+            if (allocated + size <= mBudget) {
+                if (mAllocatedBytes.compareAndSet(allocated, allocated + size)) {
+                    return true;
+                }
+            } else if (!releaseIdle(keepClass)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Drops one idle buffer of a class other than keepClass, preferring the largest classes
+     *
+     * @return false if there is no such buffer
+     */
+    private boolean releaseIdle(int keepClass) {
+        for (int i = mSlabs.length - 1; i >= 0; i--) {
+            if (i == keepClass) {
+                continue;
+            }
+            PacketBuffer buf = mSlabs[i].poll();
+            if (buf != null) {
+                freed(buf.pooledCapacity());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void warmClass(int sizeClass, int count) {
+        int inUse = mClassInUse.get(sizeClass);
+        int needed = count - (mClassAllocated.get(sizeClass) - inUse);
+        for (int i = 0; i < needed && reserve(1 << (sizeClass + MIN_CLASS_SHIFT), sizeClass);
+                i++) {
+            if (!mSlabs[sizeClass].offer(allocate(sizeClass))) {
+                freed(1 << (sizeClass + MIN_CLASS_SHIFT));
+                break;
+            }
+        }
+        raise(mClassPeak, sizeClass, inUse + count);
+    }
+
+    private static void raise(AtomicIntegerArray peaks, int sizeClass, int value) {
+        int peak;
+        while ((peak = peaks.get(sizeClass)) < value) {
+            if (peaks.compareAndSet(sizeClass, peak, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Accounts for a pooled buffer of the given capacity having been let go
+     */
+    private void freed(int capacity) {
+        mAllocatedBytes.addAndGet(-capacity);
+        int sizeClass = classFor(capacity);
+        if (sizeClass >= 0) {
+            mClassAllocated.decrementAndGet(sizeClass);
+        }
+    }
+
+    private PacketBuffer allocate(int sizeClass) {
+        mClassAllocated.incrementAndGet(sizeClass);
+        int capacity = 1 << (sizeClass + MIN_CLASS_SHIFT);
+        PacketBuffer buf = new PacketBuffer(capacity, this, capacity <= mMaxDirectCapacity);
+        buf.setChargedCapacity(capacity);
+        return buf;
+    }
+
+    /**
+     * Returns the index of the smallest class holding capacity bytes, or -1 if capacity is
+     * larger than the largest class
+     */
+    private static int classFor(int capacity) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(capacity - 1));
+        return (shift > MAX_CLASS_SHIFT) ? -1 : shift - MIN_CLASS_SHIFT;
+    }
 }
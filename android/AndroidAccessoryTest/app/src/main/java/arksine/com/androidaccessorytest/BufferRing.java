@@ -0,0 +1,86 @@
+package arksine.com.androidaccessorytest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi producer, multi consumer queue of pooled objects, PacketBuffers or
+ * message builders, over a fixed array.  Each slot carries a sequence number telling producers
+ * and consumers whose turn it is, so an offer or poll costs one CAS on the tail or head and
+ * never allocates.
+ */
+
+final class BufferRing<T> {
+    private final AtomicReferenceArray<T> mSlots;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong(0);
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    BufferRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mSlots = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(T buf) {
+        long position = mTail.get();
+        int index;
+        while (true) {
+            index = (int) position & mMask;
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = mTail.get();
+            }
+        }
+
+        mSlots.lazySet(index, buf);
+        mSequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * @return the oldest buffer in the ring, or null if it is empty
+     */
+    T poll() {
+        long position = mHead.get();
+        int index;
+        while (true) {
+            index = (int) position & mMask;
+            long difference = mSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mHead.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = mHead.get();
+            }
+        }
+
+        T buf = mSlots.get(index);
+        mSlots.lazySet(index, null);
+        mSequences.lazySet(index, position + mMask + 1);
+        return buf;
+    }
+}
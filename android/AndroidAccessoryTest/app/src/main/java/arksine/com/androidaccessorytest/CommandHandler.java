@@ -0,0 +1,29 @@
+package arksine.com.androidaccessorytest;
+
+/**
+ * Handler for packets carrying a specific AccessoryCommand.  Handlers are registered through
+ * the CommandRegistry, and each handler declares the thread it must be called on.  Packets
+ * for commands without a handler go to their subscribers in the TopicRegistry.
+ */
+
+public interface CommandHandler {
+    // Called inline on the accessory read thread.  The handler must not block, as no data is
+    // read from the accessory until it returns.
+    int THREAD_READ = 0;
+    // Called on the service's event handler thread
+    int THREAD_EVENT = 1;
+    // Called on the application's main thread
+    int THREAD_MAIN = 2;
+
+    /**
+     * Returns the thread this handler is called on, one of THREAD_READ, THREAD_EVENT or
+     * THREAD_MAIN
+     */
+    int getThread();
+
+    /**
+     * Called with each packet received for the command.  The handler takes ownership of the
+     * packet and is responsible for clearing it.
+     */
+    void onCommand(AccessoryCommand command, PacketBuffer packet);
+}
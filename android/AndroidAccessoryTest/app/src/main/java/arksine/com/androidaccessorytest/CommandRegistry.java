@@ -0,0 +1,87 @@
+package arksine.com.androidaccessorytest;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps each AccessoryCommand to its CommandHandler through a table indexed by the command
+ * ordinal, and dispatches packets to the thread each handler asks for.  Handlers may be
+ * registered and unregistered from any thread while packets are being dispatched.
+ */
+
+class CommandRegistry {
+    private static final int DISPATCH_COMMAND = 0;
+
+    private final AtomicReferenceArray<CommandHandler> mHandlers =
+            new AtomicReferenceArray<>(AccessoryCommand.values().length);
+
+    private final Handler.Callback mDispatchCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            AccessoryCommand command = AccessoryCommand.fromOrdinal(msg.arg1);
+            PacketBuffer packet = (PacketBuffer) msg.obj;
+            CommandHandler handler = mHandlers.get(command.ordinal());
+            if (handler != null) {
+                handler.onCommand(command, packet);
+            } else {
+                // Handler was removed while the packet was queued
+                packet.clear();
+            }
+            return true;
+        }
+    };
+
+    private final Handler mEventThreadHandler;
+    private final Handler mMainThreadHandler;
+
+    CommandRegistry(Looper eventLooper) {
+        mEventThreadHandler = new Handler(eventLooper, mDispatchCallback);
+        mMainThreadHandler = new Handler(Looper.getMainLooper(), mDispatchCallback);
+    }
+
+    /**
+     * Registers handler for command, replacing any existing handler
+     */
+    void register(AccessoryCommand command, CommandHandler handler) {
+        mHandlers.set(command.ordinal(), handler);
+    }
+
+    /**
+     * Unregisters handler if it is the current handler for command
+     */
+    void unregister(AccessoryCommand command, CommandHandler handler) {
+        mHandlers.compareAndSet(command.ordinal(), handler, null);
+    }
+
+    /**
+     * Dispatches packet to the handler registered for command.  Must be called from the
+     * read thread.
+     *
+     * @return false if no handler is registered, in which case the caller keeps ownership
+     * of the packet
+     */
+    boolean dispatch(AccessoryCommand command, PacketBuffer packet) {
+        CommandHandler handler = mHandlers.get(command.ordinal());
+        if (handler == null) {
+            return false;
+        }
+
+        switch (handler.getThread()) {
+            case CommandHandler.THREAD_READ:
+                handler.onCommand(command, packet);
+                break;
+            case CommandHandler.THREAD_EVENT:
+                mEventThreadHandler.sendMessage(mEventThreadHandler.obtainMessage(
+                        DISPATCH_COMMAND, command.ordinal(), 0, packet));
+                break;
+            default:
+                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(
+                        DISPATCH_COMMAND, command.ordinal(), 0, packet));
+                break;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,114 @@
+package arksine.com.androidaccessorytest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum.  The platform only provides java.util.zip.CRC32C from API
+ * 26, so this is a table driven implementation that processes eight bytes per step, which
+ * keeps the cost of checking a frame well below the cost of copying it.
+ *
+ * The checksum is updated incrementally, so frames can be checked as their bytes arrive
+ * rather than in a second pass once they are complete.
+ */
+
+final class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;   // reversed Castagnoli polynomial
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 1) != 0) ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            int crc = TABLES[0][i];
+            for (int table = 1; table < 8; table++) {
+                crc = TABLES[0][crc & 0xFF] ^ (crc >>> 8);
+                TABLES[table][i] = crc;
+            }
+        }
+    }
+
+    private int mCrc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        mCrc = TABLES[0][(mCrc ^ b) & 0xFF] ^ (mCrc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int crc = mCrc;
+        int end = off + len;
+
+        while (end - off >= 8) {
+            int low = crc ^ ((b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) |
+                    ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24));
+            crc = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^
+                    t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24] ^
+                    t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF] ^
+                    t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+            off += 8;
+        }
+
+        while (off < end) {
+            crc = t0[(crc ^ b[off++]) & 0xFF] ^ (crc >>> 8);
+        }
+
+        mCrc = crc;
+    }
+
+    /**
+     * Updates the checksum with len bytes of buffer starting at absolute index off.  The
+     * buffer's position is not changed.
+     */
+    void update(ByteBuffer buffer, int off, int len) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + off, len);
+        } else {
+            // Direct buffer, read it a word at a time in the order the tables expect
+            final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+            final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+            boolean swap = buffer.order() == ByteOrder.BIG_ENDIAN;
+            int crc = mCrc;
+            int end = off + len;
+
+            while (end - off >= 8) {
+                int low = buffer.getInt(off);
+                int high = buffer.getInt(off + 4);
+                if (swap) {
+                    low = Integer.reverseBytes(low);
+                    high = Integer.reverseBytes(high);
+                }
+                low ^= crc;
+                crc = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^
+                        t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24] ^
+                        t3[high & 0xFF] ^ t2[(high >>> 8) & 0xFF] ^
+                        t1[(high >>> 16) & 0xFF] ^ t0[high >>> 24];
+                off += 8;
+            }
+
+            while (off < end) {
+                crc = t0[(crc ^ buffer.get(off++)) & 0xFF] ^ (crc >>> 8);
+            }
+            mCrc = crc;
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return (~mCrc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0xFFFFFFFF;
+    }
+}
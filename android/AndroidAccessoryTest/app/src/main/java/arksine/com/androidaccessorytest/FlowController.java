@@ -0,0 +1,81 @@
+package arksine.com.androidaccessorytest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Credit based flow control for data sent by the host.  The host may only send while it
+ * holds credit, and every frame it sends costs its payload size in bytes.  A frame may take
+ * the credit below zero, so frames larger than the window can still be sent, but nothing more
+ * is sent until the credit is positive again.
+ *
+ * The app grants the whole window when flow control starts, and from then on grants bytes
+ * back as the buffers holding them are cleared.  Data the app has not finished with can
+ * therefore never exceed the window plus one frame, however far the consumers fall behind,
+ * and the host knows to hold back or drop stale frames at the source.  Grants are batched so
+ * that a CREDIT packet is not written for every buffer cleared.
+ */
+
+class FlowController {
+    static final int DEFAULT_WINDOW = 2 * 1024 * 1024;
+
+    // Fraction of the window, as a shift, collected before it is granted back (1/8)
+    private static final int BATCH_SHIFT = 3;
+
+    private final AccessoryWriter mWriter;
+    private final AtomicInteger mPending = new AtomicInteger(0);
+    // Credit released since start(), granted or not
+    private final AtomicLong mReleased = new AtomicLong(0);
+    private volatile boolean mEnabled = false;
+    private volatile int mBatchSize = DEFAULT_WINDOW >> BATCH_SHIFT;
+
+    FlowController(AccessoryWriter writer) {
+        this.mWriter = writer;
+    }
+
+    /**
+     * Starts flow control by granting the host window bytes of credit
+     */
+    void start(int window) {
+        mPending.set(0);
+        mReleased.set(0);
+        mBatchSize = Math.max(1, window >> BATCH_SHIFT);
+        mEnabled = true;
+        grant(window);
+    }
+
+    void stop() {
+        mEnabled = false;
+        mPending.set(0);
+    }
+
+    /**
+     * Returns bytes of credit once the data they covered has been consumed.  May be called
+     * from any thread.
+     */
+    void release(int bytes) {
+        if (!mEnabled || bytes <= 0) {
+            return;
+        }
+
+        mReleased.addAndGet(bytes);
+        if (mPending.addAndGet(bytes) >= mBatchSize) {
+            int granted = mPending.getAndSet(0);
+            if (granted > 0) {
+                grant(granted);
+            }
+        }
+    }
+
+    /**
+     * Returns the credit released since start(), which matches the bytes the host has sent
+     * once every buffer holding them has been cleared
+     */
+    long getReleasedBytes() {
+        return mReleased.get();
+    }
+
+    private void grant(int bytes) {
+        mWriter.obtainMessage(AccessoryCommand.CREDIT).putInt(bytes).send();
+    }
+}
@@ -0,0 +1,100 @@
+package arksine.com.androidaccessorytest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Capability block exchanged when the link is established.  The app sends its capabilities
+ * as the payload of APP_CONNECTED, and a host that understands them answers with its own
+ * APP_CONNECTED.  Both sides then use the intersection of the two blocks: the lower protocol
+ * version and limits, and only the features both support.  Hosts that ignore the payload
+ * never answer, and the link stays on legacy framing.
+ *
+ * The block is big endian: version (2 bytes), max frame size (4), preferred read size (4)
+ * and a feature bitmask (4).  Extra trailing bytes are ignored so the block can grow.
+ */
+
+final class LinkCapabilities {
+    static final short PROTOCOL_VERSION = 1;
+    static final int BLOCK_SIZE = 14;
+
+    static final int FEATURE_SYNC_MARKER = 1;
+    static final int FEATURE_CHECKSUM = 1 << 1;
+    static final int FEATURE_COMPRESSION = 1 << 2;
+    static final int FEATURE_TIMESTAMPS = 1 << 3;
+    static final int FEATURE_FRAGMENTS = 1 << 4;
+    static final int FEATURE_FLOW_CONTROL = 1 << 5;
+
+    private final short mVersion;
+    private final int mMaxFrameSize;
+    private final int mPreferredReadSize;
+    private final int mFeatures;
+
+    LinkCapabilities(short version, int maxFrameSize, int preferredReadSize, int features) {
+        this.mVersion = version;
+        this.mMaxFrameSize = maxFrameSize;
+        this.mPreferredReadSize = preferredReadSize;
+        this.mFeatures = features;
+    }
+
+    /**
+     * Parses a capability block from the remaining bytes of payload
+     *
+     * @return the capabilities, or null if payload does not contain a valid block
+     */
+    static LinkCapabilities fromPayload(ByteBuffer payload) {
+        if (payload.remaining() < BLOCK_SIZE) {
+            return null;
+        }
+
+        short version = payload.getShort();
+        int maxFrameSize = payload.getInt();
+        int preferredReadSize = payload.getInt();
+        int features = payload.getInt();
+        if (version <= 0 || maxFrameSize <= 0 || preferredReadSize <= 0) {
+            return null;
+        }
+        return new LinkCapabilities(version, maxFrameSize, preferredReadSize, features);
+    }
+
+    byte[] toByteArray() {
+        return ByteBuffer.allocate(BLOCK_SIZE)
+                .putShort(mVersion)
+                .putInt(mMaxFrameSize)
+                .putInt(mPreferredReadSize)
+                .putInt(mFeatures)
+                .array();
+    }
+
+    /**
+     * Returns the capabilities both this and remote support
+     */
+    LinkCapabilities intersect(LinkCapabilities remote) {
+        return new LinkCapabilities((short) Math.min(mVersion, remote.mVersion),
+                Math.min(mMaxFrameSize, remote.mMaxFrameSize),
+                Math.min(mPreferredReadSize, remote.mPreferredReadSize),
+                mFeatures & remote.mFeatures);
+    }
+
+    short getVersion() {
+        return mVersion;
+    }
+
+    int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    int getPreferredReadSize() {
+        return mPreferredReadSize;
+    }
+
+    boolean hasFeature(int feature) {
+        return (mFeatures & feature) == feature;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkCapabilities{version=" + mVersion + ", maxFrameSize=" + mMaxFrameSize +
+                ", preferredReadSize=" + mPreferredReadSize + ", features=0x" +
+                Integer.toHexString(mFeatures) + "}";
+    }
+}
@@ -0,0 +1,201 @@
+package arksine.com.androidaccessorytest;
+
+/**
+ * Framing options for an accessory link.  Both ends of the link must use the same
+ * configuration, so anything beyond the legacy defaults must be agreed with the host before
+ * it is used.  Instances are immutable and may be shared between the read and write threads.
+ *
+ * Legacy frames are a 2 byte command and a 4 byte payload size followed by the payload.
+ * With the sync marker enabled, every frame is prefixed with SYNC_MARKER so the decoder can
+ * find the next frame after a corrupted or misaligned header.  With checksums enabled, every
+ * frame is followed by a 4 byte big endian CRC32C of everything sent before it, marker and
+ * header included.  With compression enabled, the top bit of the size field marks a payload
+ * compressed by PayloadCodec, and the remaining bits give its compressed size.  With the
+ * extended header enabled, the size is followed by a 4 byte sequence number, counted per
+ * command, and an 8 byte timestamp from the sender's monotonic clock in nanoseconds.  With
+ * fragmentation enabled, the second bit of the size field marks a fragment of a larger
+ * message, as described in PacketDecoder.  With flow control enabled, the host only sends
+ * while it holds credit granted by the app, as described in FlowController.
+ */
+
+final class LinkConfig {
+    static final byte SYNC_MARKER_HIGH = (byte) 0xA5;
+    static final byte SYNC_MARKER_LOW = (byte) 0x5A;
+    static final int SYNC_MARKER_SIZE = 2;
+    static final int CHECKSUM_SIZE = 4;
+    static final int HEADER_EXTENSION_SIZE = 12;
+    static final int FRAGMENT_FLAG = 0x40000000;
+    // Largest payload whose size does not reach into the flag bits of the size field
+    static final int MAX_PAYLOAD_SIZE = FRAGMENT_FLAG - 1;
+    // Total message size following the header of the first fragment
+    static final int FRAGMENT_PREFIX_SIZE = 4;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Without a sync marker a rejected header loses the frame boundary for good, so legacy
+    // links accept any size the host sends
+    static final LinkConfig LEGACY = new Builder().setMaxFrameSize(MAX_PAYLOAD_SIZE).build();
+
+    private final boolean mSyncMarker;
+    private final boolean mChecksum;
+    private final boolean mCompression;
+    private final boolean mExtendedHeader;
+    private final boolean mFragments;
+    private final boolean mFlowControl;
+    private final int mMaxFrameSize;
+
+    private LinkConfig(Builder builder) {
+        this.mSyncMarker = builder.mSyncMarker;
+        this.mChecksum = builder.mChecksum;
+        this.mCompression = builder.mCompression;
+        this.mExtendedHeader = builder.mExtendedHeader;
+        this.mFragments = builder.mFragments;
+        this.mFlowControl = builder.mFlowControl;
+        this.mMaxFrameSize = builder.mMaxFrameSize;
+    }
+
+    boolean hasSyncMarker() {
+        return mSyncMarker;
+    }
+
+    boolean hasChecksum() {
+        return mChecksum;
+    }
+
+    boolean hasCompression() {
+        return mCompression;
+    }
+
+    boolean hasExtendedHeader() {
+        return mExtendedHeader;
+    }
+
+    boolean hasFragments() {
+        return mFragments;
+    }
+
+    boolean hasFlowControl() {
+        return mFlowControl;
+    }
+
+    /**
+     * Largest payload accepted in a single frame.  With the sync marker, a header announcing
+     * more than this is treated as corrupt.  Links without one cannot recover from dropping a
+     * header, so the limit is not enforced on them.
+     */
+    int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     * Number of bytes preceding the command in each frame
+     */
+    int getPrefixSize() {
+        return mSyncMarker ? SYNC_MARKER_SIZE : 0;
+    }
+
+    /**
+     * Total number of framing bytes preceding the payload
+     */
+    int getHeaderSize() {
+        return getPrefixSize() + PacketDecoder.PACKET_HEADER_SIZE +
+                (mExtendedHeader ? HEADER_EXTENSION_SIZE : 0);
+    }
+
+    /**
+     * Number of bytes following the payload in each frame
+     */
+    int getTrailerSize() {
+        return mChecksum ? CHECKSUM_SIZE : 0;
+    }
+
+    /**
+     * Returns the configuration for a link using the agreed capabilities
+     */
+    static LinkConfig fromCapabilities(LinkCapabilities capabilities) {
+        return new Builder()
+                .setSyncMarker(capabilities.hasFeature(LinkCapabilities.FEATURE_SYNC_MARKER))
+                .setChecksum(capabilities.hasFeature(LinkCapabilities.FEATURE_CHECKSUM))
+                .setCompression(capabilities.hasFeature(LinkCapabilities.FEATURE_COMPRESSION))
+                .setExtendedHeader(capabilities.hasFeature(LinkCapabilities.FEATURE_TIMESTAMPS))
+                .setFragments(capabilities.hasFeature(LinkCapabilities.FEATURE_FRAGMENTS))
+                .setFlowControl(capabilities.hasFeature(LinkCapabilities.FEATURE_FLOW_CONTROL))
+                .setMaxFrameSize(capabilities.getMaxFrameSize())
+                .build();
+    }
+
+    Builder buildUpon() {
+        return new Builder(this);
+    }
+
+    @Override
+    public String toString() {
+        return "LinkConfig{sync=" + mSyncMarker + ", checksum=" + mChecksum +
+                ", compression=" + mCompression + ", extendedHeader=" + mExtendedHeader +
+                ", fragments=" + mFragments + ", flowControl=" + mFlowControl +
+                ", maxFrameSize=" + mMaxFrameSize + "}";
+    }
+
+    static class Builder {
+        private boolean mSyncMarker = false;
+        private boolean mChecksum = false;
+        private boolean mCompression = false;
+        private boolean mExtendedHeader = false;
+        private boolean mFragments = false;
+        private boolean mFlowControl = false;
+        private int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+        Builder() {}
+
+        Builder(LinkConfig config) {
+            this.mSyncMarker = config.mSyncMarker;
+            this.mChecksum = config.mChecksum;
+            this.mCompression = config.mCompression;
+            this.mExtendedHeader = config.mExtendedHeader;
+            this.mFragments = config.mFragments;
+            this.mFlowControl = config.mFlowControl;
+            this.mMaxFrameSize = config.mMaxFrameSize;
+        }
+
+        Builder setSyncMarker(boolean syncMarker) {
+            this.mSyncMarker = syncMarker;
+            return this;
+        }
+
+        Builder setChecksum(boolean checksum) {
+            this.mChecksum = checksum;
+            return this;
+        }
+
+        Builder setCompression(boolean compression) {
+            this.mCompression = compression;
+            return this;
+        }
+
+        Builder setExtendedHeader(boolean extendedHeader) {
+            this.mExtendedHeader = extendedHeader;
+            return this;
+        }
+
+        Builder setFragments(boolean fragments) {
+            this.mFragments = fragments;
+            return this;
+        }
+
+        Builder setFlowControl(boolean flowControl) {
+            this.mFlowControl = flowControl;
+            return this;
+        }
+
+        Builder setMaxFrameSize(int maxFrameSize) {
+            if (maxFrameSize <= 0) {
+                throw new IllegalArgumentException("Invalid maximum frame size: " + maxFrameSize);
+            }
+            this.mMaxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        LinkConfig build() {
+            return new LinkConfig(this);
+        }
+    }
+}
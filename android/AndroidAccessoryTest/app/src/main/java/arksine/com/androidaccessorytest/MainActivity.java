@@ -12,12 +12,11 @@ import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -31,9 +30,16 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
 
 public class MainActivity extends AppCompatActivity implements SurfaceHolder.Callback {
     private static final String TAG = MainActivity.class.getSimpleName();
+    // Frames waiting to be drawn before newer ones are dropped
+    private static final int CANVAS_RING_CAPACITY = 4;
+    // How long a new connection waits for the previous canvas ring to finish its frame
+    private static final long CANVAS_STOP_WAIT_MS = 500;
 
     private EditText mNumberField;
     private SurfaceView mCameraView;
@@ -41,14 +47,17 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
     private BitmapFactory.Options mBitOptions;
     private Bitmap mCameraBitmap;
     private Rect mCameraWindow;
-    private Handler mCanvasHandler;
+    private PacketRing mCanvasRing;
     private Handler mUiHandler;
     private boolean mBound = false;
     private boolean mCameraOn = false;
     private AccessoryControlInterface mAccessoryControl;
 
 
-    private final AccessoryEvents mAccessoryEvents = new AccessoryEvents() {
+    private final AccessoryEvents mAccessoryEvents = new AccessoryStreamEvents() {
+        private int mStreamOffset = 0;
+        private boolean mStreamValid = true;
+
         @Override
         public void onConnected(final boolean status) throws RemoteException {
             mUiHandler.post(new Runnable() {
@@ -90,37 +99,145 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
 
         @Override
         public void onDataReceived(final PacketBuffer data) throws RemoteException {
+            // TEST and CAM_FRAME packets go to their subscribers, nothing else
+            // is used yet
+            data.clear();
+        }
+
+        @Override
+        public void onStreamBegin(AccessoryCommand command, int totalSize) throws RemoteException {
+            mStreamOffset = 0;
+            mStreamValid = true;
+        }
+
+        @Override
+        public void onStreamChunk(PacketBuffer chunk) throws RemoteException {
+            // Large transfers are verified one chunk at a time as they arrive
+            if (mStreamValid) {
+                mStreamValid = largeDataTest(chunk.getPayloadBuffer(), mStreamOffset);
+            }
+            mStreamOffset += chunk.getPayloadSize();
+            chunk.clear();
+        }
+
+        @Override
+        public void onStreamEnd(AccessoryCommand command, boolean complete) throws RemoteException {
+            final String msg = (complete && mStreamValid) ?
+                    "Data received and verified accurate" : "Data not valid";
             mUiHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    // TODO: Temporary for testing only
-                    if (data.getPayloadSize() == 2) {
-                        int val = data.getPayloadBuffer().getShort() & 0xFFFF;
-
-                        Toast.makeText(MainActivity.this, "Received Value: " +  val,
-                                Toast.LENGTH_SHORT).show();
-
-                        // Done with the buffer, so clear it and return to queue
-                        data.clear();
-                    } else {
-                        // Limit (size) is not 2, so during testing I know
-                        // it is a camera frame.  Send it to the canvas
-                        // handler for rendering
-                        Message msg = mCanvasHandler.obtainMessage();
-                        msg.obj = data;
-                        mCanvasHandler.sendMessage(msg);
-                    }
+                    Toast.makeText(MainActivity.this, msg,
+                            Toast.LENGTH_SHORT).show();
                 }
             });
         }
     };
 
+    // Runs subscribers on the main thread
+    private final Executor mMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mUiHandler.post(command);
+        }
+    };
+
+    private final PacketConsumer mTestConsumer = new PacketConsumer() {
+        @Override
+        public void onPacket(AccessoryCommand command, PacketBuffer packet, boolean endOfBatch) {
+            // TODO: Temporary for testing only
+            if (packet.getPayloadSize() == 2) {
+                int val = packet.getPayloadBuffer().getShort() & 0xFFFF;
+
+                Toast.makeText(MainActivity.this, "Received Value: " +  val,
+                        Toast.LENGTH_SHORT).show();
+            } else {
+                Log.d(TAG, "Unexpected " + command + " payload size: " +
+                        packet.getPayloadSize());
+            }
+
+            // Done with the buffer, so clear it and return to queue
+            packet.clear();
+        }
+    };
+
+    private final PacketConsumer mCanvasConsumer = new PacketConsumer() {
+        // Frame loss and latency as seen on screen, only accessed on the canvas thread
+        private final SequenceTracker mFrameTracker = new SequenceTracker();
+        private int mFrameIndex = 0;
+        // Holds frames copied out of buffers without an accessible array
+        private byte[] mFrameArray = null;
+
+        @Override
+        public void onPacket(AccessoryCommand command, PacketBuffer buf,
+                             boolean endOfBatch) {
+            if (!endOfBatch) {
+                // A newer frame is already waiting, only draw the latest
+                mFrameTracker.onPacket(AccessoryCommand.CAM_FRAME, buf);
+                buf.clear();
+                return;
+            }
+
+            int lost = mFrameTracker.onPacket(AccessoryCommand.CAM_FRAME, buf);
+            if (lost > 0) {
+                Log.d(TAG, "Camera frames lost: " + lost + ", total: " +
+                        mFrameTracker.getGapCount(AccessoryCommand.CAM_FRAME));
+            }
+
+            byte[] frame = buf.toArray(mFrameArray);
+            if (!buf.hasArray()) {
+                mFrameArray = frame;
+            }
+            mCameraBitmap = BitmapFactory.decodeByteArray(frame, buf.payloadArrayOffset(),
+                    buf.getPayloadSize(), mBitOptions);
+            Canvas canvas = mCameraHolder.lockCanvas();
+            if (canvas != null) {
+                canvas.drawBitmap(mCameraBitmap, null, mCameraWindow, null);
+            }
+            mCameraHolder.unlockCanvasAndPost(canvas);
+
+            long latency = mFrameTracker.latencyNanos(buf,
+                    SystemClock.elapsedRealtimeNanos());
+            if (latency >= 0 && ++mFrameIndex == 60) {
+                Log.d(TAG, "Camera frame delay above best case: " + (latency / 1000) + " us");
+                mFrameIndex = 0;
+            }
+
+            // we are done with the data buffer, so clear it and return it to the queue
+            buf.clear();
+        }
+    };
+
+    private AccessoryService.LocalBinder mServiceBinder;
+
     private ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
             final AccessoryService.LocalBinder binder = (AccessoryService.LocalBinder) iBinder;
 
             binder.registerCallback(mAccessoryEvents);
+            binder.subscribe(mTestConsumer, mMainExecutor, AccessoryCommand.TEST);
+
+            // The previous ring shares mCanvasConsumer, so let it finish drawing before the
+            // new one starts.  It was halted on unsubscribe, unless the service died first.
+            if (mCanvasRing != null) {
+                mCanvasRing.halt();
+                try {
+                    if (!mCanvasRing.awaitStopped(CANVAS_STOP_WAIT_MS)) {
+                        Log.w(TAG, "Previous canvas thread still drawing");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // Frames go straight from the read thread to the canvas thread, dropped if the
+            // canvas is still behind on the frames before them
+            mCanvasRing = new PacketRing("Canvas thread", CANVAS_RING_CAPACITY,
+                    WaitStrategy.BLOCKING, Process.THREAD_PRIORITY_DISPLAY, mCanvasConsumer);
+            mCanvasRing.setOverflow(PacketRing.OVERFLOW_DROP);
+            binder.subscribe(mCanvasRing, AccessoryCommand.CAM_FRAME);
+            mServiceBinder = binder;
             mAccessoryControl = binder.getControlInterface();
 
             final String initMsg;
@@ -147,6 +264,7 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mBound = false;
+            mServiceBinder = null;
         }
     };
 
@@ -170,30 +288,6 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         mBitOptions.outWidth = 640;
         mBitOptions.outHeight = 480;
 
-        HandlerThread canvasThread = new HandlerThread("Canvas thread",
-                Process.THREAD_PRIORITY_DISPLAY);
-        canvasThread.start();
-        Handler.Callback canvasCallback = new Handler.Callback() {
-            @Override
-            public boolean handleMessage(Message msg) {
-                PacketBuffer buf = (PacketBuffer)msg.obj;
-
-                mCameraBitmap = BitmapFactory.decodeByteArray(buf.getArray(), buf.payloadStartIndex(),
-                        buf.getPayloadSize(), mBitOptions);
-                Canvas canvas = mCameraHolder.lockCanvas();
-                if (canvas != null) {
-                    canvas.drawBitmap(mCameraBitmap, null, mCameraWindow, null);
-                }
-                mCameraHolder.unlockCanvasAndPost(canvas);
-
-                // we are done with the data buffer, so clear it and return it to the queue
-                buf.clear();
-                return true;
-            }
-        };
-        mCanvasHandler = new Handler(canvasThread.getLooper(), canvasCallback);
-
-
         mUiHandler = new Handler(Looper.getMainLooper());
 
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
@@ -226,7 +320,7 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
                         Toast.makeText(MainActivity.this, "Writing to Device: " + String.valueOf(data),
                                 Toast.LENGTH_SHORT).show();
                     } else {
-                        Toast.makeText(MainActivity.this, "Device closed, cannot write",
+                        Toast.makeText(MainActivity.this, "Device closed or busy, cannot write",
                                 Toast.LENGTH_SHORT).show();
                     }
                 }
@@ -240,12 +334,14 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         camBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                if (mCameraOn) {
-                    mAccessoryControl.sendCommand(AccessoryCommand.CAM_STOP, null);
+                AccessoryCommand command = mCameraOn ? AccessoryCommand.CAM_STOP :
+                        AccessoryCommand.CAM_START;
+                if (mAccessoryControl != null && mAccessoryControl.sendCommand(command, null)) {
+                    mCameraOn = !mCameraOn;
                 } else {
-                    mAccessoryControl.sendCommand(AccessoryCommand.CAM_START, null);
+                    Toast.makeText(MainActivity.this, "Unable to send " + command,
+                            Toast.LENGTH_SHORT).show();
                 }
-                mCameraOn = !mCameraOn;
             }
         });
 
@@ -268,11 +364,26 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         super.onStop();
 
         if (mBound) {
+            if (mServiceBinder != null) {
+                mServiceBinder.unsubscribe(mTestConsumer);
+                mServiceBinder.unsubscribe(mCanvasConsumer);
+                mServiceBinder = null;
+            }
             unbindService(mServiceConnection);
             mBound = false;
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Frames still waiting to be drawn are released, even if the service went away
+        // without unsubscribing
+        if (mCanvasRing != null) {
+            mCanvasRing.halt();
+        }
+    }
+
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -306,23 +417,19 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         return false;
     }
 
-    void largeDataTest(byte[] data) {
-        boolean valid = true;
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] != (byte)(i % 256)) {
-                valid = false;
-                break;
+    /**
+     * Checks a section of the large transfer test pattern, where each byte is its offset
+     * within the transfer modulo 256
+     */
+    static boolean largeDataTest(ByteBuffer data, int streamOffset) {
+        int offset = data.position();
+        int count = data.remaining();
+        for (int i = 0; i < count; i++) {
+            if (data.get(offset + i) != (byte)((streamOffset + i) % 256)) {
+                return false;
             }
         }
-
-        final String msg = valid ? "Data received and verified accurate" : "Data not valid";
-        mUiHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                Toast.makeText(MainActivity.this, msg,
-                        Toast.LENGTH_SHORT).show();
-            }
-        });
+        return true;
     }
 
     @Override
@@ -0,0 +1,216 @@
+package arksine.com.androidaccessorytest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable builder of an outbound packet.  Values are encoded big endian straight into a
+ * direct buffer that the writer reads the frame from, so building and sending a message does
+ * not allocate once the builder's buffer has grown to fit.
+ *
+ * Builders come from AccessoryWriter.obtainMessage() and go back to its pool once the writer
+ * is done with them, so a builder must not be touched after send().  Builders grown for
+ * messages of more than a few KB are not pooled, so a burst of large messages does not keep
+ * their direct memory.  Strings are encoded as
+ * UTF-8, putString() prefixed with their length in bytes as an int, the layout
+ * PayloadReader.getString() expects.
+ */
+
+public final class MessageBuilder extends PayloadSource {
+    static final int DEFAULT_CAPACITY = 256;
+
+    private final AccessoryWriter mWriter;
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(DEFAULT_CAPACITY);
+    private AccessoryCommand mCommand;
+    // Payload size once sent, -1 while the message is being built
+    private int mLength = -1;
+
+    MessageBuilder(AccessoryWriter writer) {
+        this.mWriter = writer;
+    }
+
+    MessageBuilder reset(AccessoryCommand command) {
+        mCommand = command;
+        mBuffer.clear();
+        mLength = -1;
+        return this;
+    }
+
+    public AccessoryCommand getCommand() {
+        return mCommand;
+    }
+
+    int capacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Returns the number of bytes written so far
+     */
+    public int size() {
+        return (mLength >= 0) ? mLength : mBuffer.position();
+    }
+
+    public MessageBuilder putByte(int value) {
+        ensure(1).put((byte) value);
+        return this;
+    }
+
+    public MessageBuilder putBoolean(boolean value) {
+        ensure(1).put(value ? (byte) 1 : (byte) 0);
+        return this;
+    }
+
+    public MessageBuilder putShort(int value) {
+        ensure(2).putShort((short) value);
+        return this;
+    }
+
+    public MessageBuilder putInt(int value) {
+        ensure(4).putInt(value);
+        return this;
+    }
+
+    public MessageBuilder putLong(long value) {
+        ensure(8).putLong(value);
+        return this;
+    }
+
+    public MessageBuilder putFloat(float value) {
+        ensure(4).putFloat(value);
+        return this;
+    }
+
+    public MessageBuilder putDouble(double value) {
+        ensure(8).putDouble(value);
+        return this;
+    }
+
+    public MessageBuilder putBytes(byte[] values, int offset, int length) {
+        ensure(length).put(values, offset, length);
+        return this;
+    }
+
+    public MessageBuilder putBytes(byte[] values) {
+        return putBytes(values, 0, values.length);
+    }
+
+    public MessageBuilder putShorts(short[] values, int offset, int length) {
+        ByteBuffer buffer = ensure(length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            buffer.putShort(values[i]);
+        }
+        return this;
+    }
+
+    public MessageBuilder putInts(int[] values, int offset, int length) {
+        ByteBuffer buffer = ensure(length * 4);
+        for (int i = offset; i < offset + length; i++) {
+            buffer.putInt(values[i]);
+        }
+        return this;
+    }
+
+    public MessageBuilder putFloats(float[] values, int offset, int length) {
+        ByteBuffer buffer = ensure(length * 4);
+        for (int i = offset; i < offset + length; i++) {
+            buffer.putFloat(values[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Writes value as UTF-8 preceded by its encoded length
+     */
+    public MessageBuilder putString(CharSequence value) {
+        int lengthIndex = ensure(4).position();
+        mBuffer.putInt(0);
+        putUtf8(value);
+        mBuffer.putInt(lengthIndex, mBuffer.position() - lengthIndex - 4);
+        return this;
+    }
+
+    /**
+     * Writes value as UTF-8 with nothing marking where it ends
+     */
+    public MessageBuilder putUtf8(CharSequence value) {
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                ensure(1).put((byte) c);
+            } else if (c < 0x800) {
+                ensure(2).put((byte) (0xC0 | (c >> 6)));
+                mBuffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count &&
+                    Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4).put((byte) (0xF0 | (codePoint >> 18)));
+                mBuffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                mBuffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                mBuffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, encoded as '?' like String.getBytes() does
+                ensure(1).put((byte) '?');
+            } else {
+                ensure(3).put((byte) (0xE0 | (c >> 12)));
+                mBuffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                mBuffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Queues the message.  The builder belongs to the writer from here on.
+     *
+     * @return false if the writer is closed or its queue stayed full, and the message was
+     * dropped
+     */
+    public boolean send() {
+        if (mLength >= 0) {
+            throw new IllegalStateException("Message already sent");
+        }
+        mLength = mBuffer.position();
+        return mWriter.writeSource(mCommand, this);
+    }
+
+    private ByteBuffer ensure(int count) {
+        if (mLength >= 0) {
+            throw new IllegalStateException("Message already sent");
+        }
+        if (mBuffer.remaining() < count) {
+            int capacity = mBuffer.capacity();
+            while (capacity - mBuffer.position() < count) {
+                capacity *= 2;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+            mBuffer.flip();
+            buffer.put(mBuffer);
+            mBuffer = buffer;
+        }
+        return mBuffer;
+    }
+
+    @Override
+    int length() {
+        return mLength;
+    }
+
+    @Override
+    int maxView() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    ByteBuffer view(int offset, int length) {
+        mBuffer.clear();
+        mBuffer.limit(offset + length);
+        mBuffer.position(offset);
+        return mBuffer;
+    }
+
+    @Override
+    void close() {
+        mWriter.recycle(this);
+    }
+}
@@ -1,26 +1,78 @@
 package arksine.com.androidaccessorytest;
 
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by eric on 3/4/17.
+ *
+ * A packet is stored either in a heap array or, for a direct buffer, in memory outside the
+ * managed heap that the GC never scans or moves.  getHeaderBuffer() and getPayloadBuffer()
+ * return a new view on every call, with a position and limit of its own, so threads sharing a
+ * packet can read it at once as long as each uses the views it got itself.  A view costs a
+ * small allocation, so a reader should take one per packet rather than one per field, or use a
+ * PayloadReader, which keeps its view across packets.
+ *
+ * A buffer is reference counted so it can be shared without copying.  It is handed out with
+ * one reference, retain() adds one for each additional holder, and every holder calls
+ * release(), or clear(), once done.  The buffer returns to its pool only when the last
+ * reference is released.
  */
 
 public class PacketBuffer {
+    private static final String TAG = PacketBuffer.class.getSimpleName();
     private static final int PACKET_HEADER_SIZE = 6;
 
 
+    // Backing array of a heap buffer, null for a direct buffer
     private byte[] mBuffer;
+    // mBuffer wrapped, or the direct memory holding the packet
+    private ByteBuffer mStorage;
+    private final boolean mDirect;
+    // Memory mapped temp file used in place of mStorage for oversized payloads
+    private MappedByteBuffer mSpillBuffer = null;
     private BufferManager mParent;
     private int mPosition = 0;
     private int mCapacity;
+    // Capacity the buffer was created with, before any resize
+    private final int mPooledCapacity;
+    // Bytes of growth past mPooledCapacity charged to the pool's budget
+    private int mGrownBytes = 0;
+    // Bytes the pool charged to its budget when it allocated the buffer, 0 if it did not
+    private int mChargedCapacity = 0;
     private int mPayloadSize = 0;
+    // Extended header fields, only valid when mHasExtension is set
+    private boolean mHasExtension = false;
+    private int mSequence = 0;
+    private long mTimestamp = 0;
+    // Bytes of flow control credit returned to the host when the buffer is cleared
+    private int mCredit = 0;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    // Set while the pool is tracking the buffer for leaks
+    private volatile BufferManager.LeakReference mLeak = null;
 
 
     public PacketBuffer(int capacity, BufferManager parent) {
+        this(capacity, parent, false);
+    }
+
+    /**
+     * @param direct true to hold the packet in direct memory rather than a heap array
+     */
+    public PacketBuffer(int capacity, BufferManager parent, boolean direct) {
         mCapacity = capacity;
+        mPooledCapacity = capacity;
         mParent = parent;
-        mBuffer = new byte[mCapacity];
+        mDirect = direct;
+        allocateStorage(capacity);
     }
 
     public PacketBuffer(BufferManager parent) {
@@ -43,16 +95,134 @@ public class PacketBuffer {
         return mPayloadSize;
     }
 
-    public void setPayloadsize(int newSize) {
+    /**
+     * Sets the size of the payload, growing the buffer if the payload does not fit.  A payload
+     * large enough is spilled to disk, otherwise the buffer is enlarged, and either way the
+     * growth is charged to the pool's budget.
+     *
+     * @return false if the budget could not accommodate the growth, in which case the payload
+     * size is left unchanged
+     */
+    public boolean setPayloadsize(int newSize) {
+        int required = newSize + PACKET_HEADER_SIZE;
+        if (required > capacity()) {
+            File spillDir = (mParent != null) ? mParent.getSpillDirectory(newSize) : null;
+            boolean spilled = false;
+            if (spillDir != null) {
+                // The mapping is held alongside the pooled storage
+                if (!charge(required)) {
+                    return false;
+                }
+                spilled = this.spill(newSize, spillDir);
+            }
+            if (!spilled) {
+                // Resizing replaces the pooled storage
+                if (!charge(required - mPooledCapacity)) {
+                    return false;
+                }
+                this.resize(newSize);
+            }
+        }
         mPayloadSize = newSize;
+        return true;
+    }
+
+    /**
+     * Returns true if the packet was received with an extended header, so its sequence
+     * number and timestamp are valid
+     */
+    public boolean hasHeaderExtension() {
+        return mHasExtension;
+    }
+
+    /**
+     * Returns the sender's sequence number for the packet, counted separately for each command
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Returns the time the sender captured or queued the packet, in nanoseconds of its
+     * monotonic clock
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    void setHeaderExtension(int sequence, long timestamp) {
+        this.mHasExtension = true;
+        this.mSequence = sequence;
+        this.mTimestamp = timestamp;
+    }
 
-        if ((mPayloadSize + PACKET_HEADER_SIZE) > mCapacity) {
-            this.resize(newSize);
+    int getCredit() {
+        return mCredit;
+    }
+
+    void setCredit(int credit) {
+        this.mCredit = credit;
+    }
+
+    /**
+     * Adds a reference to the buffer, which must be released separately
+     *
+     * @throws IllegalStateException if the buffer has already been released
+     */
+    public PacketBuffer retain() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("PacketBuffer retained after release");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
         }
     }
 
+    /**
+     * Releases a reference to the buffer, returning it to the pool if it was the last
+     *
+     * @return true if the buffer was returned to the pool
+     * @throws IllegalStateException if every reference has already been released
+     */
+    public boolean release() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("PacketBuffer released too many times");
+            }
+            if (mRefCount.compareAndSet(count, count - 1)) {
+                if (count == 1) {
+                    recycle();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    public int refCount() {
+        return mRefCount.get();
+    }
+
+    /**
+     * Called by the pool when handing the buffer out
+     */
+    void acquired(BufferManager.LeakReference leak) {
+        mLeak = leak;
+        mRefCount.set(1);
+    }
+
+    BufferManager.LeakReference takeLeakReference() {
+        BufferManager.LeakReference leak = mLeak;
+        mLeak = null;
+        return leak;
+    }
+
     public int remaining() {
-        return mCapacity - mPosition;
+        return capacity() - mPosition;
     }
 
 
@@ -69,44 +239,118 @@ public class PacketBuffer {
     }
 
 
+    int pooledCapacity() {
+        return mPooledCapacity;
+    }
+
+    int chargedCapacity() {
+        return mChargedCapacity;
+    }
+
+    void setChargedCapacity(int capacity) {
+        mChargedCapacity = capacity;
+    }
+
     public int capacity() {
-        return mCapacity;
-    }
-
-    public byte[] checkOverrun() {
-        int overrunCount = this.mPosition - (this.mPayloadSize + PACKET_HEADER_SIZE);
-        if (overrunCount > 0) {
-            byte[] overrrun = new byte[overrunCount];
-            int overRunPos = this.mPosition - overrunCount;
-            System.arraycopy(this.mBuffer, overRunPos, overrrun, 0, overrunCount);
-            // set the position back the the end of the payload
-            this.mPosition = overRunPos;
-            return overrrun;
-        } else {
-            // No overrun
-            return null;
+        return (mSpillBuffer != null) ? mSpillBuffer.capacity() : mCapacity;
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    /**
+     * Returns true if this packet's payload is too large for the heap and is backed by
+     * a memory mapped temp file.  A spilled packet has no backing array, its contents must
+     * be accessed through getHeaderBuffer() and getPayloadBuffer().
+     */
+    public boolean isSpilled() {
+        return mSpillBuffer != null;
+    }
+
+    /**
+     * Copies count bytes from the current position of data to the current position
+     */
+    public void put(ByteBuffer data, int count) {
+        if (count > 0) {
+            byte[] array = getArray();
+            if (array != null) {
+                data.get(array, this.mPosition, count);
+            } else {
+                ByteBuffer storage = storage();
+                int limit = data.limit();
+                data.limit(data.position() + count);
+                storage.position(this.mPosition);
+                storage.put(data);
+                data.limit(limit);
+            }
+            this.mPosition += count;
         }
     }
 
-    public void putBytes(byte[] data) {
-        if (data.length > 0) {
-            System.arraycopy(data, 0, this.mBuffer, this.mPosition, data.length);
-            this.mPosition += data.length;
+    /**
+     * Copies count bytes from data, starting at offset, to the current position
+     */
+    public void put(byte[] data, int offset, int count) {
+        if (count > 0) {
+            byte[] array = getArray();
+            if (array != null) {
+                System.arraycopy(data, offset, array, this.mPosition, count);
+            } else {
+                ByteBuffer storage = storage();
+                storage.position(this.mPosition);
+                storage.put(data, offset, count);
+            }
+            this.mPosition += count;
         }
     }
 
-    public void readIntoBuffer(byte[] data, int count) {
-        System.arraycopy(data, 0, this.mBuffer, this.mPosition, count);
-        this.mPosition += count;
+    /**
+     * Adds count bytes starting at offset to a running checksum
+     */
+    void updateChecksum(Crc32c checksum, int offset, int count) {
+        byte[] array = getArray();
+        if (array != null) {
+            checksum.update(array, offset, count);
+        } else {
+            checksum.update(storage(), offset, count);
+        }
     }
 
 
+    /**
+     * Releases the caller's reference, same as release()
+     */
     public void clear() {
+        release();
+    }
+
+    private void recycle() {
+        int credit = this.mCredit;
+        this.mCredit = 0;
         // Clear limit and return to queue
         this.mPosition = 0;
         this.mPayloadSize = 0;
-        if (this.mParent != null)
+        this.mHasExtension = false;
+        this.mSequence = 0;
+        this.mTimestamp = 0;
+        if (this.mGrownBytes > 0) {
+            if (this.mParent != null) {
+                this.mParent.releaseGrowth(this.mGrownBytes);
+            }
+            this.mGrownBytes = 0;
+        }
+        // The temp file was unlinked when it was mapped.  There is no way to unmap a
+        // MappedByteBuffer, so its pages and disk space are only reclaimed once the dropped
+        // mapping is garbage collected, which may be well after the budget was credited.
+        this.mSpillBuffer = null;
+        if (this.mParent != null) {
             this.mParent.returnToQueue(this);
+            this.mParent.releaseCredit(credit);
+        } else {
+            // Not pooled, the buffer is simply reused by its owner
+            this.mRefCount.set(1);
+        }
     }
 
     /**
@@ -116,31 +360,177 @@ public class PacketBuffer {
 
     private void resize(int payloadSize) {
 
-        byte[] newBuf = new byte[payloadSize + PACKET_HEADER_SIZE];
+        ByteBuffer oldStorage = mStorage;
+        allocateStorage(payloadSize + PACKET_HEADER_SIZE);
         if (this.mPosition > 0) {
-            System.arraycopy(mBuffer, 0, newBuf, 0, this.mPosition);
+            oldStorage.clear();
+            oldStorage.limit(this.mPosition);
+            mStorage.put(oldStorage);
         }
-        mBuffer = newBuf;
         mCapacity = payloadSize + PACKET_HEADER_SIZE;
 
     }
 
+    /**
+     * Charges the pool's budget for the buffer having grown grown bytes past its pooled
+     * capacity, releasing whatever was charged for earlier growth beyond that
+     *
+     * @return false if the budget could not accommodate the growth
+     */
+    private boolean charge(int grown) {
+        int extra = grown - mGrownBytes;
+        if (mParent != null) {
+            if (extra > 0 && !mParent.reserveGrowth(extra)) {
+                return false;
+            }
+            mParent.releaseGrowth(-extra);
+        }
+        mGrownBytes = grown;
+        BufferManager.LeakReference leak = mLeak;
+        if (leak != null) {
+            leak.grown = grown;
+        }
+        return true;
+    }
+
+    private void allocateStorage(int capacity) {
+        if (mDirect) {
+            mBuffer = null;
+            mStorage = ByteBuffer.allocateDirect(capacity);
+        } else {
+            mBuffer = new byte[capacity];
+            mStorage = ByteBuffer.wrap(mBuffer);
+        }
+    }
+
+    private ByteBuffer storage() {
+        return (mSpillBuffer != null) ? mSpillBuffer : mStorage;
+    }
+
+    /**
+     * Moves the packet to a memory mapped temp file large enough for the requested payload.
+     * The original storage is left untouched so the buffer returns to the pool at its
+     * original size once cleared.
+     *
+     * @return true if the packet was spilled, false if the temp file could not be mapped
+     */
+    private boolean spill(int payloadSize, File directory) {
+        int size = payloadSize + PACKET_HEADER_SIZE;
+        File spillFile = null;
+        RandomAccessFile raf = null;
+
+        try {
+            spillFile = File.createTempFile("payload", ".tmp", directory);
+            raf = new RandomAccessFile(spillFile, "rw");
+            raf.setLength(size);
+            MappedByteBuffer spillBuf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, size);
+            if (this.mPosition > 0) {
+                ByteBuffer received = mStorage.duplicate();
+                received.clear();
+                received.limit(this.mPosition);
+                spillBuf.put(received);
+            }
+            mSpillBuffer = spillBuf;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to spill payload to disk, keeping it on the heap", e);
+            return false;
+        } finally {
+            // The mapping stays valid after the file is closed and unlinked, and the space is
+            // reclaimed once the mapping has been garbage collected
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close spill file", e);
+                }
+            }
+            if (spillFile != null && !spillFile.delete()) {
+                Log.w(TAG, "Unable to delete spill file " + spillFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the backing array, or null if the packet is direct or has been spilled to disk
+     */
     public byte[] getArray() {
-        return mBuffer;
+        return (mSpillBuffer != null) ? null : mBuffer;
     }
 
+    /**
+     * Returns an array holding the packet for APIs that only accept arrays, such as
+     * BitmapFactory.decodeByteArray(), with the payload starting at payloadArrayOffset().
+     * The backing array is returned when the packet has one.  Otherwise the packet is copied
+     * into scratch, or into a new array if scratch is null or too small, so callers should
+     * pass the array returned by the previous call as scratch.  The copy costs a full pass over
+     * the packet, which for direct or spilled packets is paid by the consumer on every call,
+     * so pools keep the classes such payloads land in on the heap.
+     */
+    public byte[] toArray(byte[] scratch) {
+        ByteBuffer storage = storage();
+        if (storage.hasArray()) {
+            return storage.array();
+        }
+
+        int length = PACKET_HEADER_SIZE + mPayloadSize;
+        byte[] array = (scratch != null && scratch.length >= length) ? scratch : new byte[length];
+        // Read through a view of our own, other holders may be reading the packet as well
+        ByteBuffer source = storage.duplicate();
+        source.clear();
+        source.get(array, 0, length);
+        return array;
+    }
+
+    /**
+     * Returns true if toArray() returns the packet's own memory rather than a copy
+     */
+    public boolean hasArray() {
+        return storage().hasArray();
+    }
+
+    /**
+     * Returns the index of the payload in the array returned by toArray()
+     */
+    public int payloadArrayOffset() {
+        ByteBuffer storage = storage();
+        return (storage.hasArray() ? storage.arrayOffset() : 0) + PACKET_HEADER_SIZE;
+    }
+
+    /**
+     * Returns a new view of the header, independent of any other view of the packet
+     */
     public ByteBuffer getHeaderBuffer() {
-        ByteBuffer headerBuf = ByteBuffer.wrap(this.mBuffer);
-        headerBuf.position(0);
+        ByteBuffer headerBuf = view();
         headerBuf.limit(PACKET_HEADER_SIZE);
         return headerBuf;
     }
 
+    /**
+     * Returns a new view of the payload, independent of any other view of the packet
+     */
     public ByteBuffer getPayloadBuffer() {
-        ByteBuffer payloadBuf = ByteBuffer.wrap(this.mBuffer);
-        payloadBuf.position(PACKET_HEADER_SIZE);  // position starts after the packet index
+        ByteBuffer payloadBuf = view();
         payloadBuf.limit(PACKET_HEADER_SIZE + mPayloadSize);
+        payloadBuf.position(PACKET_HEADER_SIZE);  // position starts after the packet index
         return payloadBuf;
     }
 
+    /**
+     * Returns the buffer currently holding the packet, for readers that keep a view of their
+     * own across packets.  Its position and limit belong to the thread filling the packet.
+     */
+    ByteBuffer getStorage() {
+        return storage();
+    }
+
+    private ByteBuffer view() {
+        // duplicate() copies position and limit, which the read thread may still be moving
+        ByteBuffer view = storage().duplicate();
+        view.clear();
+        view.order(ByteOrder.BIG_ENDIAN);
+        return view;
+    }
+
  }
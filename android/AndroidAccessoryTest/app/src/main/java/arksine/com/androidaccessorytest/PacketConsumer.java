@@ -0,0 +1,17 @@
+package arksine.com.androidaccessorytest;
+
+/**
+ * Receives packets from a PacketRing on the ring's own consumer thread
+ */
+
+public interface PacketConsumer {
+
+    /**
+     * Called with each packet in the order they were published.  The consumer takes
+     * ownership of the packet's reference and is responsible for releasing it.
+     *
+     * @param endOfBatch true if no further packet was available when this one was taken, so
+     *                   a consumer can defer work such as rendering to the end of a batch
+     */
+    void onPacket(AccessoryCommand command, PacketBuffer packet, boolean endOfBatch);
+}
@@ -0,0 +1,599 @@
+package arksine.com.androidaccessorytest;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+/**
+ * Incremental decoder for the accessory packet stream, fed bytes as they are read regardless of
+ * where frames begin and end.  Payloads are copied once, from the read buffer into a pooled
+ * PacketBuffer, and are checked, inflated and reassembled from fragments as the LinkConfig
+ * requires.  Payloads above the streaming threshold are delivered as a sequence of chunks
+ * instead of in one buffer.  Corrupt frames are counted and dropped.
+ *
+ * One instance is used for the life of a connection, and only from the read thread.
+ */
+
+class PacketDecoder {
+    private static final String TAG = PacketDecoder.class.getSimpleName();
+
+    interface Listener {
+        /**
+         * Called on the decoding thread each time a complete packet is received.  The
+         * listener takes ownership of the packet and is responsible for clearing it.
+         *
+         * @return true to continue decoding, false to stop
+         */
+        boolean onPacketReceived(AccessoryCommand command, PacketBuffer packet);
+
+        /**
+         * Called when the header of a payload that will be streamed has been received
+         */
+        void onStreamBegin(AccessoryCommand command, int payloadSize);
+
+        /**
+         * Called for each chunk of a streamed payload, in order.  The listener takes
+         * ownership of the chunk and is responsible for clearing it.
+         */
+        void onStreamChunk(AccessoryCommand command, PacketBuffer chunk);
+
+        /**
+         * Called after the last chunk of a streamed payload, or with complete set to false
+         * if the stream was cut short.
+         */
+        void onStreamEnd(AccessoryCommand command, boolean complete);
+    }
+
+    /**
+     * A message being received, spread over one frame or several fragments
+     */
+    private static class Message {
+        boolean active = false;
+        boolean streaming = false;
+        boolean compressed = false;
+        boolean extended = false;
+        // Set when no buffer was available, the rest of the message is skipped
+        boolean discard = false;
+        AccessoryCommand command = AccessoryCommand.NONE;
+        // Payload bytes of the message not yet received
+        int remaining = 0;
+        int sequence = 0;
+        long timestamp = 0;
+        PacketBuffer packet = null;
+        // Plain packet header given to every buffer delivered for the message
+        final byte[] header = new byte[PACKET_HEADER_SIZE];
+    }
+
+    static final int PACKET_HEADER_SIZE = 6;
+    static final int DEFAULT_STREAMING_THRESHOLD = 512 * 1024;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_PAYLOAD = 1;
+    private static final int STATE_TRAILER = 2;
+
+    private final BufferManager mBufferManager;
+    private final Listener mListener;
+    private final EnumSet<AccessoryCommand> mWholePayloads =
+            EnumSet.noneOf(AccessoryCommand.class);
+    private final Crc32c mChecksum = new Crc32c();
+    private final byte[] mTrailer = new byte[LinkConfig.CHECKSUM_SIZE];
+    // Unfragmented messages, and the fragmented message in progress
+    private final Message mMessage = new Message();
+    private final Message mFragmented = new Message();
+    private PayloadCodec mCodec = null;
+
+    private LinkConfig mConfig = LinkConfig.LEGACY;
+    private byte[] mHeader = new byte[mConfig.getHeaderSize() + LinkConfig.FRAGMENT_PREFIX_SIZE];
+    private int mStreamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+    private boolean mResyncing = false;
+    private int mDroppedFrames = 0;
+    private int mCorruptFrames = 0;
+    private int mOverruns = 0;
+    private int mState = STATE_HEADER;
+    private int mHeaderPosition = 0;
+    private int mTrailerPosition = 0;
+    // Payload bytes of the current frame not yet received, and the message they belong to
+    private int mFrameRemaining = 0;
+    private Message mTarget = null;
+
+    PacketDecoder(BufferManager bufferManager, Listener listener) {
+        this.mBufferManager = bufferManager;
+        this.mListener = listener;
+    }
+
+    /**
+     * Sets the framing used for all following packets.  Must only be called between packets,
+     * either before decoding starts or from a listener callback.
+     */
+    void setLinkConfig(LinkConfig config) {
+        mConfig = config;
+        int headerSize = config.getHeaderSize() + LinkConfig.FRAGMENT_PREFIX_SIZE;
+        if (mHeader.length < headerSize) {
+            mHeader = new byte[headerSize];
+        }
+    }
+
+    /**
+     * Returns the number of frames dropped because of a corrupt header
+     */
+    int getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Returns the number of frames dropped because their checksum did not match
+     */
+    int getCorruptFrameCount() {
+        return mCorruptFrames;
+    }
+
+    /**
+     * Returns the number of messages skipped because no buffer was available for them
+     */
+    int getOverrunCount() {
+        return mOverruns;
+    }
+
+    /**
+     * Payloads larger than threshold bytes are streamed in chunks rather than delivered
+     * whole.
+     */
+    void setStreamingThreshold(int threshold) {
+        mStreamingThreshold = threshold;
+    }
+
+    /**
+     * Sets whether payloads for command are always delivered whole, regardless of the
+     * streaming threshold
+     */
+    void setKeepWhole(AccessoryCommand command, boolean keepWhole) {
+        if (keepWhole) {
+            mWholePayloads.add(command);
+        } else {
+            mWholePayloads.remove(command);
+        }
+    }
+
+    /**
+     * Decodes all remaining bytes in data.  On return the buffer's position is at its limit,
+     * unless the listener requested that decoding stop.
+     *
+     * @return false if the listener requested that decoding stop, true otherwise
+     */
+    boolean decode(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            if (mState == STATE_HEADER) {
+                if (!readHeader(data)) {
+                    // Partial header, wait for the next read
+                    break;
+                }
+
+                if (!parseHeader()) {
+                    if (!mResyncing) {
+                        mResyncing = true;
+                        mDroppedFrames++;
+                        Log.w(TAG, "Corrupt packet header, dropped frames: " + mDroppedFrames);
+                    }
+
+                    if (mConfig.hasSyncMarker()) {
+                        resync();
+                    } else {
+                        skipped(mHeaderPosition + data.remaining());
+                        mHeaderPosition = 0;
+                        data.position(data.limit());
+                    }
+                    continue;
+                }
+                mResyncing = false;
+            } else if (mState == STATE_TRAILER) {
+                int length = Math.min(LinkConfig.CHECKSUM_SIZE - mTrailerPosition,
+                        data.remaining());
+                data.get(mTrailer, mTrailerPosition, length);
+                mTrailerPosition += length;
+                if (mTrailerPosition < LinkConfig.CHECKSUM_SIZE) {
+                    break;
+                }
+
+                mTrailerPosition = 0;
+                if (!finishFrame(verifyChecksum())) {
+                    return false;
+                }
+                continue;
+            } else if (mTarget.discard) {
+                int length = Math.min(mFrameRemaining, data.remaining());
+                data.position(data.position() + length);
+                skipped(length);
+                mFrameRemaining -= length;
+                mTarget.remaining -= length;
+            } else {
+                Message message = mTarget;
+                PacketBuffer packet = message.packet;
+                int start = packet.position();
+                int length = Math.min(Math.min(mFrameRemaining, packet.payloadRemaining()),
+                        data.remaining());
+                packet.put(data, length);
+                if (mConfig.hasChecksum()) {
+                    packet.updateChecksum(mChecksum, start, length);
+                }
+                mFrameRemaining -= length;
+                message.remaining -= length;
+
+                if (message.streaming && packet.payloadRemaining() == 0) {
+                    message.packet = null;
+                    mListener.onStreamChunk(message.command, packet);
+                    if (message.remaining > 0) {
+                        nextChunk(message);
+                    }
+                }
+            }
+
+            if (mState == STATE_PAYLOAD && mFrameRemaining == 0) {
+                if (mConfig.hasChecksum()) {
+                    mState = STATE_TRAILER;
+                } else if (!finishFrame(true)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes still expected for the frame currently being received,
+     * or zero if the decoder is waiting on a header
+     */
+    int bytesPending() {
+        switch (mState) {
+            case STATE_PAYLOAD:
+                return mFrameRemaining;
+            case STATE_TRAILER:
+                return LinkConfig.CHECKSUM_SIZE - mTrailerPosition;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Discards any partially received packet and returns the decoder to its initial state
+     */
+    void reset() {
+        abort(mMessage);
+        abort(mFragmented);
+        mState = STATE_HEADER;
+        mHeaderPosition = 0;
+        mTrailerPosition = 0;
+        mFrameRemaining = 0;
+        mTarget = null;
+        mResyncing = false;
+        if (mCodec != null) {
+            mCodec.release();
+            mCodec = null;
+        }
+    }
+
+    /**
+     * Copies header bytes from data into the scratch header.  With a sync marker, bytes ahead
+     * of the marker are skipped.  The header of the first fragment of a message is followed
+     * by the total message size, which is read along with it.
+     *
+     * @return true once the complete header has been received
+     */
+    private boolean readHeader(ByteBuffer data) {
+        if (mHeaderPosition == 0 && mConfig.hasSyncMarker()) {
+            int position = data.position();
+            int limit = data.limit();
+            int start = position;
+            while (position < limit && data.get(position) != LinkConfig.SYNC_MARKER_HIGH) {
+                position++;
+            }
+            if (mResyncing) {
+                skipped(position - start);
+            }
+            data.position(position);
+            if (position == limit) {
+                return false;
+            }
+        }
+
+        int headerSize = mConfig.getHeaderSize();
+        if (mHeaderPosition < headerSize) {
+            int length = Math.min(headerSize - mHeaderPosition, data.remaining());
+            data.get(mHeader, mHeaderPosition, length);
+            mHeaderPosition += length;
+            if (mHeaderPosition < headerSize) {
+                return false;
+            }
+        }
+
+        if (startsFragmentedMessage()) {
+            headerSize += LinkConfig.FRAGMENT_PREFIX_SIZE;
+            int length = Math.min(headerSize - mHeaderPosition, data.remaining());
+            data.get(mHeader, mHeaderPosition, length);
+            mHeaderPosition += length;
+        }
+        return mHeaderPosition == headerSize;
+    }
+
+    private boolean startsFragmentedMessage() {
+        return mConfig.hasFragments() && !mFragmented.active &&
+                (mHeader[mConfig.getPrefixSize() + 2] & 0x40) != 0;
+    }
+
+    /**
+     * Drops the first byte of a rejected header and moves the scratch header to the next
+     * possible marker within it, so no received bytes are skipped while resynchronizing.
+     */
+    private void resync() {
+        int headerLength = mHeaderPosition;
+        int start = 1;
+        while (start < headerLength && (mHeader[start] != LinkConfig.SYNC_MARKER_HIGH ||
+                (start + 1 < headerLength && mHeader[start + 1] != LinkConfig.SYNC_MARKER_LOW))) {
+            start++;
+        }
+
+        skipped(start);
+        mHeaderPosition = headerLength - start;
+        if (mHeaderPosition > 0) {
+            System.arraycopy(mHeader, start, mHeader, 0, mHeaderPosition);
+        }
+    }
+
+    /**
+     * Parses a complete header and prepares to receive its payload
+     *
+     * @return false if the header is corrupt
+     */
+    private boolean parseHeader() {
+        int prefix = mConfig.getPrefixSize();
+        if (mConfig.hasSyncMarker() && (mHeader[0] != LinkConfig.SYNC_MARKER_HIGH ||
+                mHeader[1] != LinkConfig.SYNC_MARKER_LOW)) {
+            return false;
+        }
+
+        short value = (short) (((mHeader[prefix] & 0xFF) << 8) | (mHeader[prefix + 1] & 0xFF));
+        int size = readInt(mHeader, prefix + 2);
+
+        boolean compressed = false;
+        if (mConfig.hasCompression() && (size & PayloadCodec.COMPRESSED_FLAG) != 0) {
+            compressed = true;
+            size &= ~PayloadCodec.COMPRESSED_FLAG;
+        }
+        boolean fragment = false;
+        if (mConfig.hasFragments() && (size & LinkConfig.FRAGMENT_FLAG) != 0) {
+            fragment = true;
+            size &= ~LinkConfig.FRAGMENT_FLAG;
+        }
+        // Without a sync marker a bad size cannot be recovered from, so any size is accepted
+        if (size < 0 || (mConfig.hasSyncMarker() && size > mConfig.getMaxFrameSize())) {
+            return false;
+        }
+
+        AccessoryCommand command = AccessoryCommand.fromValue(value);
+        Message message;
+        if (!fragment) {
+            message = mMessage;
+            mFrameRemaining = size;
+        } else if (mFragmented.active) {
+            // Continuation of the fragmented message in progress
+            if (command != mFragmented.command || size > mFragmented.remaining) {
+                Log.w(TAG, "Unexpected fragment of " + command + ", dropping " +
+                        mFragmented.command);
+                abort(mFragmented);
+                return false;
+            }
+            message = null;
+            mFrameRemaining = size;
+        } else {
+            int total = readInt(mHeader, mConfig.getHeaderSize());
+            if (total < size ||
+                    (mConfig.hasSyncMarker() && total > mConfig.getMaxFrameSize())) {
+                return false;
+            }
+            message = mFragmented;
+            mFrameRemaining = size;
+            size = total;
+        }
+
+        // Nothing larger than MAX_COMPRESS_SIZE is ever compressed, and deflate only pays off
+        // if it shrinks the payload, so a compressed size beyond it marks a corrupt header
+        if (message != null && compressed && (size < PayloadCodec.LENGTH_PREFIX_SIZE ||
+                size > PayloadCodec.LENGTH_PREFIX_SIZE + PayloadCodec.MAX_COMPRESS_SIZE)) {
+            return false;
+        }
+
+        if (mConfig.hasChecksum()) {
+            mChecksum.reset();
+            mChecksum.update(mHeader, 0, mHeaderPosition);
+        }
+        mHeaderPosition = 0;
+        mState = STATE_PAYLOAD;
+
+        if (message == null) {
+            mTarget = mFragmented;
+        } else {
+            mTarget = message;
+            startMessage(message, command, size, compressed);
+        }
+        return true;
+    }
+
+    /**
+     * Prepares message to receive a payload of size bytes
+     */
+    private void startMessage(Message message, AccessoryCommand command, int size,
+                              boolean compressed) {
+        int prefix = mConfig.getPrefixSize();
+        message.active = true;
+        message.command = command;
+        message.remaining = size;
+        message.compressed = compressed;
+        message.discard = false;
+        message.extended = mConfig.hasExtendedHeader();
+        if (message.extended) {
+            int ext = prefix + PACKET_HEADER_SIZE;
+            message.sequence = readInt(mHeader, ext);
+            message.timestamp = ((long) readInt(mHeader, ext + 4) << 32) |
+                    (readInt(mHeader, ext + 8) & 0xFFFFFFFFL);
+        }
+
+        // Packets always carry the plain header, whatever flags were set on the link
+        byte[] header = message.header;
+        header[0] = mHeader[prefix];
+        header[1] = mHeader[prefix + 1];
+        header[2] = (byte) (size >>> 24);
+        header[3] = (byte) (size >>> 16);
+        header[4] = (byte) (size >>> 8);
+        header[5] = (byte) size;
+
+        if (size > mStreamingThreshold && !compressed && !mWholePayloads.contains(command)) {
+            message.streaming = true;
+            mListener.onStreamBegin(command, size);
+            nextChunk(message);
+        } else {
+            message.streaming = false;
+            PacketBuffer packet = mBufferManager.getBuffer(size);
+            if (packet == null) {
+                overrun(message);
+                return;
+            }
+            packet.put(header, 0, PACKET_HEADER_SIZE);
+            if (!packet.setPayloadsize(size)) {
+                packet.clear();
+                overrun(message);
+                return;
+            }
+            if (mConfig.hasFlowControl()) {
+                packet.setCredit(size);
+            }
+            message.packet = packet;
+        }
+    }
+
+    /**
+     * Completes the current frame.  Once the last frame of a message is in, a whole payload
+     * is delivered and a streamed payload is ended.  A frame failing its checksum drops the
+     * whole message.
+     *
+     * @return false if the listener requested that decoding stop
+     */
+    private boolean finishFrame(boolean intact) {
+        Message message = mTarget;
+        mTarget = null;
+        mState = STATE_HEADER;
+
+        if (message.discard) {
+            if (!intact || message.remaining == 0) {
+                message.active = false;
+                message.discard = false;
+            }
+            return true;
+        } else if (!intact) {
+            mCorruptFrames++;
+            Log.w(TAG, "Checksum mismatch for " + message.command + ", corrupt frames: " +
+                    mCorruptFrames);
+            abort(message);
+            return true;
+        } else if (message.remaining > 0) {
+            // Wait for the next fragment
+            return true;
+        }
+
+        message.active = false;
+        if (message.streaming) {
+            mListener.onStreamEnd(message.command, true);
+            return true;
+        }
+
+        PacketBuffer packet = message.packet;
+        message.packet = null;
+        if (message.compressed) {
+            if (mCodec == null) {
+                mCodec = new PayloadCodec();
+            }
+            packet = mCodec.inflate(packet, mBufferManager, mConfig.getMaxFrameSize());
+            if (packet == null) {
+                mCorruptFrames++;
+                Log.w(TAG, "Unable to inflate " + message.command + ", corrupt frames: " +
+                        mCorruptFrames);
+                return true;
+            }
+        }
+        if (message.extended) {
+            packet.setHeaderExtension(message.sequence, message.timestamp);
+        }
+        return mListener.onPacketReceived(message.command, packet);
+    }
+
+    /**
+     * Discards a partially received message
+     */
+    private void abort(Message message) {
+        if (!message.active) {
+            return;
+        }
+        message.active = false;
+        if (message.packet != null) {
+            message.packet.clear();
+            message.packet = null;
+        }
+        if (message.streaming && !message.discard) {
+            mListener.onStreamEnd(message.command, false);
+        }
+        message.discard = false;
+    }
+
+    /**
+     * Skips the rest of a message no buffer could be found for
+     */
+    private void overrun(Message message) {
+        mOverruns++;
+        Log.w(TAG, "No buffer available for " + message.command + ", overruns: " + mOverruns);
+        if (message.streaming) {
+            mListener.onStreamEnd(message.command, false);
+        }
+        message.discard = true;
+    }
+
+    /**
+     * Credits back bytes the host sent that are dropped without ever reaching a buffer.  While
+     * resynchronizing this includes the rejected header, which the host was not charged for,
+     * so the window can grow by a few bytes per corrupt frame rather than shrink for good.
+     */
+    private void skipped(int length) {
+        if (mConfig.hasFlowControl()) {
+            mBufferManager.releaseCredit(length);
+        }
+    }
+
+    private boolean verifyChecksum() {
+        return readInt(mTrailer, 0) == (int) mChecksum.getValue();
+    }
+
+    /**
+     * Starts a new chunk of a streamed payload, sized to fit the pooled buffer so it is
+     * never enlarged.  The chunk keeps the original packet header.
+     */
+    private void nextChunk(Message message) {
+        PacketBuffer chunk = mBufferManager.getBuffer();
+        if (chunk == null) {
+            overrun(message);
+            return;
+        }
+        chunk.put(message.header, 0, PACKET_HEADER_SIZE);
+        chunk.setPayloadsize(Math.min(message.remaining, chunk.capacity() - PACKET_HEADER_SIZE));
+        if (message.extended) {
+            chunk.setHeaderExtension(message.sequence, message.timestamp);
+        }
+        if (mConfig.hasFlowControl()) {
+            chunk.setCredit(chunk.getPayloadSize());
+        }
+        message.packet = chunk;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) |
+                ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+}
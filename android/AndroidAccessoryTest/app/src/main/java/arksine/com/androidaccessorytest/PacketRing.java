@@ -0,0 +1,392 @@
+package arksine.com.androidaccessorytest;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated single producer, single consumer ring that hands packets from one thread,
+ * normally the accessory read thread, to a PacketConsumer running on another.
+ * The producer and consumer each advance their own sequence, so handing a packet over costs
+ * two ordered writes and no lock, Message or allocation, and the consumer takes every packet
+ * published while it was busy in one batch.
+ *
+ * The consumer either runs on a thread of the ring's own, waiting for packets according to its
+ * WaitStrategy, or on an Executor the ring submits a drain task to whenever packets are waiting
+ * and no drain is already pending, so an executor runs one task per batch rather than one per
+ * packet.  When the ring is full publish() waits for the consumer, while tryPublish() fails so
+ * the producer can drop the packet instead, and offer() does either according to the ring's
+ * overflow policy.  Packets are taken out of their slots atomically, so when the ring is halted
+ * while the producer is publishing, whichever side takes a packet left in the ring releases it.
+ *
+ * A ring whose consumer is a StreamConsumer also carries streamed payloads, so the beginning,
+ * chunks and end of a stream reach the consumer in order with the packets around them.
+ */
+
+public final class PacketRing implements Runnable {
+    private static final String TAG = PacketRing.class.getSimpleName();
+
+    // Policies for offer() when the ring is full
+    public static final int OVERFLOW_BLOCK = 0;
+    public static final int OVERFLOW_DROP = 1;
+
+    // Kinds of entry held in a slot
+    private static final int ENTRY_PACKET = 0;
+    private static final int ENTRY_STREAM_BEGIN = 1;
+    private static final int ENTRY_STREAM_CHUNK = 2;
+    private static final int ENTRY_STREAM_END = 3;
+
+    // How long the producer waits for the consumer to free a slot in a full ring
+    private static final long FULL_RING_WAIT_NS = 50000;
+
+    private final AccessoryCommand[] mCommands;
+    private final AtomicReferenceArray<PacketBuffer> mPackets;
+    private final int[] mKinds;
+    // Total size of a stream for its beginning, 1 if it completed for its end
+    private final int[] mArgs;
+    private final int mMask;
+    private final String mName;
+    private final int mPriority;
+    private final PacketConsumer mConsumer;
+    private final StreamConsumer mStreamConsumer;
+    private final WaitStrategy mWaitStrategy;
+    private final Executor mExecutor;
+    // Set while a drain task is submitted to mExecutor and has not finished
+    private final AtomicBoolean mDrainPending = new AtomicBoolean(false);
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+    private volatile int mOverflow = OVERFLOW_BLOCK;
+    // Last sequence published by the producer and last one taken by the consumer
+    private final AtomicLong mPublished = new AtomicLong(-1);
+    private final AtomicLong mConsumed = new AtomicLong(-1);
+    private volatile boolean mHalted = false;
+    // Counted down once the consumer has stopped after a halt
+    private final CountDownLatch mStopped = new CountDownLatch(1);
+
+    // Only accessed by the producer
+    private long mNextSequence = 0;
+    private long mConsumedCache = -1;
+    // Set once a chunk of the current stream has been dropped
+    private boolean mStreamDropped = false;
+
+    // Only accessed by the consumer
+    private long mNextConsumed = 0;
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mHalted) {
+                // Left pending, so nothing is submitted again
+                releaseRemaining();
+                mStopped.countDown();
+                return;
+            }
+
+            consumeTo(mPublished.get());
+            mDrainPending.set(false);
+            if (mHalted || mPublished.get() >= mNextConsumed) {
+                scheduleDrain();
+            }
+        }
+    };
+
+    /**
+     * Creates a ring whose consumer runs on a thread of its own, started by start()
+     *
+     * @param capacity     number of slots, rounded up to a power of two
+     * @param waitStrategy WaitStrategy.BUSY_SPIN, YIELDING or BLOCKING
+     * @param priority     android.os.Process priority of the consumer thread
+     */
+    public PacketRing(String name, int capacity, int waitStrategy, int priority,
+                      PacketConsumer consumer) {
+        this(name, capacity, WaitStrategy.create(waitStrategy), priority, null, consumer);
+    }
+
+    /**
+     * Creates a ring whose consumer is run on executor rather than on a thread of its own.
+     * The consumer is never run for two batches at once.
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public PacketRing(String name, int capacity, Executor executor, PacketConsumer consumer) {
+        this(name, capacity, null, 0, executor, consumer);
+    }
+
+    private PacketRing(String name, int capacity, WaitStrategy waitStrategy, int priority,
+                       Executor executor, PacketConsumer consumer) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mCommands = new AccessoryCommand[size];
+        mPackets = new AtomicReferenceArray<>(size);
+        mKinds = new int[size];
+        mArgs = new int[size];
+        mMask = size - 1;
+        mName = name;
+        mPriority = priority;
+        mConsumer = consumer;
+        mStreamConsumer = (consumer instanceof StreamConsumer) ? (StreamConsumer) consumer : null;
+        mWaitStrategy = waitStrategy;
+        mExecutor = executor;
+    }
+
+    /**
+     * Starts the consumer thread.  Does nothing for a ring run on an executor, or if the
+     * thread has already been started.
+     */
+    public void start() {
+        if (mExecutor == null && mStarted.compareAndSet(false, true)) {
+            new Thread(null, this, mName).start();
+        }
+    }
+
+    /**
+     * Stops the consumer.  Packets not yet consumed are released.
+     */
+    public void halt() {
+        mHalted = true;
+        if (mExecutor != null) {
+            scheduleDrain();
+        } else {
+            mWaitStrategy.signal();
+        }
+    }
+
+    /**
+     * Waits for the consumer to stop after halt(), so a consumer shared with another ring is
+     * never run by both at once
+     *
+     * @return false if the consumer was still running when the timeout expired
+     */
+    public boolean awaitStopped(long timeoutMs) throws InterruptedException {
+        if (mExecutor == null && !mStarted.get()) {
+            return true;
+        }
+        return mStopped.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets what offer() does when the ring is full
+     *
+     * @param policy OVERFLOW_BLOCK or OVERFLOW_DROP
+     */
+    public void setOverflow(int policy) {
+        mOverflow = policy;
+    }
+
+    boolean isHalted() {
+        return mHalted;
+    }
+
+    PacketConsumer getConsumer() {
+        return mConsumer;
+    }
+
+    boolean isStreamConsumer() {
+        return mStreamConsumer != null;
+    }
+
+    /**
+     * Publishes packet unless the ring is full.  Must only be called by the producer.
+     *
+     * @return false if the ring is full or halted, in which case the caller keeps ownership
+     * of packet
+     */
+    public boolean tryPublish(AccessoryCommand command, PacketBuffer packet) {
+        return tryPublish(ENTRY_PACKET, command, packet, 0);
+    }
+
+    /**
+     * Publishes packet, waiting for the consumer if the ring is full.  The packet is released
+     * if the ring has been halted.  Must only be called by the producer.
+     */
+    public void publish(AccessoryCommand command, PacketBuffer packet) {
+        publish(ENTRY_PACKET, command, packet, 0);
+    }
+
+    /**
+     * Publishes packet, or when the ring is full waits or drops it according to the overflow
+     * policy.  Must only be called by the producer.
+     */
+    public void offer(AccessoryCommand command, PacketBuffer packet) {
+        if (mOverflow == OVERFLOW_DROP) {
+            if (!tryPublish(command, packet)) {
+                packet.clear();
+            }
+        } else {
+            publish(command, packet);
+        }
+    }
+
+    /**
+     * Publishes the beginning of a stream, waiting for the consumer if the ring is full so
+     * the consumer never misses one.  Must only be called by the producer, and only when the
+     * consumer is a StreamConsumer.
+     */
+    void publishStreamBegin(AccessoryCommand command, int totalSize) {
+        mStreamDropped = false;
+        publish(ENTRY_STREAM_BEGIN, command, null, totalSize);
+    }
+
+    /**
+     * Publishes a chunk of the current stream, or when the ring is full waits or drops it
+     * according to the overflow policy.  Once a chunk is dropped the rest of the stream is
+     * dropped too, and its end is published as incomplete.
+     */
+    void offerStreamChunk(AccessoryCommand command, PacketBuffer chunk) {
+        if (!mStreamDropped) {
+            if (mOverflow != OVERFLOW_DROP) {
+                publish(ENTRY_STREAM_CHUNK, command, chunk, 0);
+                return;
+            } else if (tryPublish(ENTRY_STREAM_CHUNK, command, chunk, 0)) {
+                return;
+            }
+            mStreamDropped = true;
+        }
+        chunk.release();
+    }
+
+    /**
+     * Publishes the end of the current stream, waiting for the consumer if the ring is full
+     */
+    void publishStreamEnd(AccessoryCommand command, boolean complete) {
+        publish(ENTRY_STREAM_END, command, null, (complete && !mStreamDropped) ? 1 : 0);
+        mStreamDropped = false;
+    }
+
+    private boolean tryPublish(int kind, AccessoryCommand command, PacketBuffer packet,
+                               int arg) {
+        if (mHalted) {
+            return false;
+        }
+
+        long sequence = mNextSequence;
+        long wrapPoint = sequence - mPackets.length();
+        if (wrapPoint > mConsumedCache) {
+            mConsumedCache = mConsumed.get();
+            if (wrapPoint > mConsumedCache) {
+                return false;
+            }
+        }
+
+        int index = (int) sequence & mMask;
+        mCommands[index] = command;
+        mKinds[index] = kind;
+        mArgs[index] = arg;
+        mPackets.lazySet(index, packet);
+        mNextSequence = sequence + 1;
+        mPublished.set(sequence);
+        if (mExecutor != null) {
+            if (!mDrainPending.get()) {
+                scheduleDrain();
+            }
+        } else {
+            mWaitStrategy.signal();
+        }
+
+        // The consumer checks the sequence once it sees the ring halted, so if it was halted
+        // since the check above the packet is released by whichever side takes it first
+        if (mHalted) {
+            take(index);
+        }
+        return true;
+    }
+
+    private void publish(int kind, AccessoryCommand command, PacketBuffer packet, int arg) {
+        while (!tryPublish(kind, command, packet, arg)) {
+            if (mHalted) {
+                if (packet != null) {
+                    packet.release();
+                }
+                return;
+            }
+            LockSupport.parkNanos(FULL_RING_WAIT_NS);
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(mPriority);
+        while (!mHalted) {
+            consumeTo(mWaitStrategy.waitFor(mNextConsumed, mPublished, this));
+        }
+        releaseRemaining();
+        mStopped.countDown();
+    }
+
+    private void scheduleDrain() {
+        if (mDrainPending.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mDrainTask);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, mName + " executor rejected the consumer", e);
+                mDrainPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Hands every entry up to sequence available to the consumer
+     */
+    private void consumeTo(long available) {
+        long next = mNextConsumed;
+        for (long sequence = next; sequence <= available; sequence++) {
+            int index = (int) sequence & mMask;
+            AccessoryCommand command = mCommands[index];
+            int kind = mKinds[index];
+            PacketBuffer packet = mPackets.getAndSet(index, null);
+            mCommands[index] = null;
+            if (packet == null && (kind == ENTRY_PACKET || kind == ENTRY_STREAM_CHUNK)) {
+                // Taken back by the producer after a halt
+                continue;
+            }
+            try {
+                switch (kind) {
+                    case ENTRY_PACKET:
+                        mConsumer.onPacket(command, packet, sequence == available);
+                        break;
+                    case ENTRY_STREAM_BEGIN:
+                        mStreamConsumer.onStreamBegin(command, mArgs[index]);
+                        break;
+                    case ENTRY_STREAM_CHUNK:
+                        mStreamConsumer.onStreamChunk(command, packet);
+                        break;
+                    default:
+                        mStreamConsumer.onStreamEnd(command, mArgs[index] != 0);
+                        break;
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, mName + " failed to consume " + command, e);
+            }
+        }
+        if (available >= next) {
+            mConsumed.lazySet(available);
+            mNextConsumed = available + 1;
+        }
+    }
+
+    /**
+     * Releases what the consumer will no longer take once halted
+     */
+    private void releaseRemaining() {
+        long published = mPublished.get();
+        for (long sequence = mNextConsumed; sequence <= published; sequence++) {
+            take((int) sequence & mMask);
+        }
+        mNextConsumed = published + 1;
+        mConsumed.lazySet(published);
+    }
+
+    private void take(int index) {
+        PacketBuffer packet = mPackets.getAndSet(index, null);
+        mCommands[index] = null;
+        if (packet != null) {
+            packet.release();
+        }
+    }
+}
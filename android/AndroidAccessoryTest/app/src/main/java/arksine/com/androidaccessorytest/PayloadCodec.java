@@ -0,0 +1,230 @@
+package arksine.com.androidaccessorytest;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame payload compression.  A compressed payload is a 4 byte big endian original
+ * length followed by a raw deflate stream, and is marked by setting COMPRESSED_FLAG in the
+ * size field of the frame header.  Compression uses the fastest deflate level, since the aim
+ * is to get more out of the USB link, not to minimize the size of each frame.
+ *
+ * Compressing is skipped for payloads that would not benefit: those of commands known to
+ * carry compressed media such as CAM_FRAME, payloads too small or too large, payloads that
+ * start with the signature of a compressed format, and payloads that do not shrink by at
+ * least an eighth.  The last check stops as soon as the output exceeds that budget, so
+ * incompressible data costs at most one partial deflate pass.
+ *
+ * Deflater and Inflater hold native state, so each thread should use its own codec and call
+ * release() when done with it.
+ */
+
+class PayloadCodec {
+    static final int COMPRESSED_FLAG = 0x80000000;
+    static final int LENGTH_PREFIX_SIZE = 4;
+
+    // Below this the deflate header and length prefix outweigh any gain
+    static final int MIN_COMPRESS_SIZE = 256;
+    // Larger payloads are streamed by the decoder, and compressed frames are never streamed
+    static final int MAX_COMPRESS_SIZE = 256 * 1024;
+
+    private static final int INFLATE_CHUNK_SIZE = 16384;
+
+    private final EnumSet<AccessoryCommand> mBypass = EnumSet.of(AccessoryCommand.CAM_FRAME);
+    private final byte[] mHeader = new byte[PacketDecoder.PACKET_HEADER_SIZE];
+    private final byte[] mOverflow = new byte[1];
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private byte[] mOutput = new byte[0];
+    private byte[] mScratch;
+    // Compressed payloads of packets without an array are copied here
+    private byte[] mInput;
+
+    /**
+     * Sets whether payloads of command are always sent uncompressed
+     */
+    void setBypass(AccessoryCommand command, boolean bypass) {
+        if (bypass) {
+            mBypass.add(command);
+        } else {
+            mBypass.remove(command);
+        }
+    }
+
+    /**
+     * Compresses data if it is worth doing.  On success the compressed payload, length prefix
+     * included, is at the start of getOutput().
+     *
+     * @return the length of the compressed payload, or -1 if data should be sent as is
+     */
+    int compress(AccessoryCommand command, byte[] data) {
+        if (data == null || data.length < MIN_COMPRESS_SIZE || data.length > MAX_COMPRESS_SIZE ||
+                mBypass.contains(command) || isCompressedFormat(data)) {
+            return -1;
+        }
+
+        int budget = LENGTH_PREFIX_SIZE + data.length - (data.length >> 3);
+        if (mOutput.length < budget) {
+            mOutput = new byte[budget];
+        }
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+
+        mDeflater.reset();
+        mDeflater.setInput(data);
+        mDeflater.finish();
+        int length = LENGTH_PREFIX_SIZE;
+        while (!mDeflater.finished() && length < budget) {
+            length += mDeflater.deflate(mOutput, length, budget - length);
+        }
+        if (!mDeflater.finished()) {
+            return -1;
+        }
+
+        mOutput[0] = (byte) (data.length >>> 24);
+        mOutput[1] = (byte) (data.length >>> 16);
+        mOutput[2] = (byte) (data.length >>> 8);
+        mOutput[3] = (byte) data.length;
+        return length;
+    }
+
+    /**
+     * Returns the buffer holding the result of the last successful compress()
+     */
+    byte[] getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Inflates a compressed packet into a new pooled buffer carrying the original payload
+     * size in its header.  The compressed packet is cleared.
+     *
+     * @return the inflated packet, or null if the payload is not valid or no buffer is
+     *         available for it
+     */
+    PacketBuffer inflate(PacketBuffer packet, BufferManager bufferManager, int maxSize) {
+        try {
+            return inflatePacket(packet, bufferManager, maxSize);
+        } finally {
+            packet.clear();
+        }
+    }
+
+    void release() {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+
+    private PacketBuffer inflatePacket(PacketBuffer packet, BufferManager bufferManager,
+                                       int maxSize) {
+        // Neither end compresses payloads larger than MAX_COMPRESS_SIZE, so anything claiming
+        // more is corrupt and must not size the inflated buffer
+        int compressedSize = packet.getPayloadSize() - LENGTH_PREFIX_SIZE;
+        if (compressedSize < 0 || compressedSize > MAX_COMPRESS_SIZE) {
+            return null;
+        }
+        ByteBuffer payload = packet.getPayloadBuffer();
+        int originalSize = payload.getInt();
+        if (originalSize < 0 || originalSize > Math.min(maxSize, MAX_COMPRESS_SIZE)) {
+            return null;
+        }
+
+        byte[] input = packet.getArray();
+        int inputOffset = packet.payloadStartIndex() + LENGTH_PREFIX_SIZE;
+        if (input == null) {
+            // Direct or spilled packet, the inflater only reads from arrays.  The copy is kept
+            // for the next packet.
+            if (mInput == null || mInput.length < compressedSize) {
+                mInput = new byte[compressedSize];
+            }
+            input = mInput;
+            payload.get(input, 0, compressedSize);
+            inputOffset = 0;
+        }
+
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+        }
+        mInflater.reset();
+        mInflater.setInput(input, inputOffset, compressedSize);
+
+        PacketBuffer inflated = bufferManager.getBuffer(originalSize);
+        if (inflated == null) {
+            return null;
+        }
+        packet.getHeaderBuffer().get(mHeader, 0, 2);
+        mHeader[2] = (byte) (originalSize >>> 24);
+        mHeader[3] = (byte) (originalSize >>> 16);
+        mHeader[4] = (byte) (originalSize >>> 8);
+        mHeader[5] = (byte) originalSize;
+        inflated.put(mHeader, 0, mHeader.length);
+        if (!inflated.setPayloadsize(originalSize)) {
+            inflated.clear();
+            return null;
+        }
+
+        try {
+            byte[] output = inflated.getArray();
+            while (inflated.payloadRemaining() > 0) {
+                int count;
+                if (output != null) {
+                    count = mInflater.inflate(output, inflated.position(),
+                            inflated.payloadRemaining());
+                    inflated.incrementPosition(count);
+                } else {
+                    if (mScratch == null) {
+                        mScratch = new byte[INFLATE_CHUNK_SIZE];
+                    }
+                    count = mInflater.inflate(mScratch, 0,
+                            Math.min(mScratch.length, inflated.payloadRemaining()));
+                    inflated.put(mScratch, 0, count);
+                }
+                if (count == 0 && (mInflater.finished() || mInflater.needsInput() ||
+                        mInflater.needsDictionary())) {
+                    break;
+                }
+            }
+
+            // The end of the stream may still be pending once all output has been produced.
+            // Any further output means the stream is longer than the original length claimed.
+            if (!mInflater.finished() && mInflater.inflate(mOverflow) > 0) {
+                inflated.clear();
+                return null;
+            }
+        } catch (DataFormatException e) {
+            inflated.clear();
+            return null;
+        }
+
+        if (inflated.payloadRemaining() > 0 || !mInflater.finished()) {
+            inflated.clear();
+            return null;
+        }
+
+        // The inflated packet now holds the data the host was charged credit for
+        inflated.setCredit(packet.getCredit());
+        packet.setCredit(0);
+        return inflated;
+    }
+
+    /**
+     * Returns true if data starts with the signature of a JPEG, PNG, gzip or zip file
+     */
+    private static boolean isCompressedFormat(byte[] data) {
+        int b0 = data[0] & 0xFF, b1 = data[1] & 0xFF, b2 = data[2] & 0xFF, b3 = data[3] & 0xFF;
+        return (b0 == 0xFF && b1 == 0xD8 && b2 == 0xFF) ||
+                (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') ||
+                (b0 == 0x1F && b1 == 0x8B) ||
+                (b0 == 'P' && b1 == 'K' && b2 == 0x03 && b3 == 0x04);
+    }
+}
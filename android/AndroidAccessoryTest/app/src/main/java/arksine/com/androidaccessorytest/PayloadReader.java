@@ -0,0 +1,168 @@
+package arksine.com.androidaccessorytest;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reusable reader of a packet payload, the counterpart of MessageBuilder.  Values are decoded
+ * in place with absolute reads through a view of the packet's storage, so reads of its own
+ * never disturb other holders of the packet.  The view is kept and reused for as long as the
+ * wrapped packets share that storage, so a consumer that keeps one reader and wraps each
+ * pooled packet it receives reads structured payloads without copying or allocating.
+ *
+ * The reader is only valid while the packet it wraps holds a reference.  Reading past the end
+ * of the payload throws BufferUnderflowException.
+ */
+
+public final class PayloadReader {
+    private ByteBuffer mBuffer = null;
+    // Storage mBuffer is a view of
+    private ByteBuffer mStorage = null;
+    private int mPosition = 0;
+    private int mLimit = 0;
+
+    public PayloadReader wrap(PacketBuffer packet) {
+        ByteBuffer storage = packet.getStorage();
+        if (storage != mStorage) {
+            // Only absolute reads are made, so the view's position and limit never move
+            mStorage = storage;
+            mBuffer = storage.duplicate();
+            mBuffer.clear();
+            mBuffer.order(ByteOrder.BIG_ENDIAN);
+        }
+        mPosition = packet.payloadStartIndex();
+        mLimit = mPosition + packet.getPayloadSize();
+        return this;
+    }
+
+    public int remaining() {
+        return mLimit - mPosition;
+    }
+
+    public PayloadReader skip(int count) {
+        advance(count);
+        return this;
+    }
+
+    public byte getByte() {
+        return mBuffer.get(advance(1));
+    }
+
+    public boolean getBoolean() {
+        return mBuffer.get(advance(1)) != 0;
+    }
+
+    public short getShort() {
+        return mBuffer.getShort(advance(2));
+    }
+
+    public int getInt() {
+        return mBuffer.getInt(advance(4));
+    }
+
+    public long getLong() {
+        return mBuffer.getLong(advance(8));
+    }
+
+    public float getFloat() {
+        return mBuffer.getFloat(advance(4));
+    }
+
+    public double getDouble() {
+        return mBuffer.getDouble(advance(8));
+    }
+
+    public void getBytes(byte[] dst, int offset, int length) {
+        int index = advance(length);
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = mBuffer.get(index + i);
+        }
+    }
+
+    public void getShorts(short[] dst, int offset, int length) {
+        int index = advance(length * 2);
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = mBuffer.getShort(index + i * 2);
+        }
+    }
+
+    public void getInts(int[] dst, int offset, int length) {
+        int index = advance(length * 4);
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = mBuffer.getInt(index + i * 4);
+        }
+    }
+
+    public void getFloats(float[] dst, int offset, int length) {
+        int index = advance(length * 4);
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = mBuffer.getFloat(index + i * 4);
+        }
+    }
+
+    /**
+     * Appends a string written by MessageBuilder.putString() to out
+     */
+    public StringBuilder getString(StringBuilder out) {
+        return getUtf8(out, getInt());
+    }
+
+    /**
+     * Reads a string written by MessageBuilder.putString().  Allocates the string, use
+     * getString(StringBuilder) to reuse a builder instead.
+     */
+    public String getString() {
+        return getString(new StringBuilder()).toString();
+    }
+
+    /**
+     * Decodes length bytes of UTF-8 and appends them to out
+     */
+    public StringBuilder getUtf8(StringBuilder out, int length) {
+        int index = advance(length);
+        int end = index + length;
+        while (index < end) {
+            int b = mBuffer.get(index++) & 0xFF;
+            int extra;
+            int codePoint;
+            if (b < 0x80) {
+                out.append((char) b);
+                continue;
+            } else if (b >= 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else if (b >= 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else {
+                extra = 1;
+                codePoint = b & 0x1F;
+            }
+            if (index + extra > end) {
+                // Truncated sequence
+                out.append('\uFFFD');
+                break;
+            }
+            for (int i = 0; i < extra; i++) {
+                codePoint = (codePoint << 6) | (mBuffer.get(index++) & 0x3F);
+            }
+            out.appendCodePoint(Character.isValidCodePoint(codePoint) ? codePoint : 0xFFFD);
+        }
+        return out;
+    }
+
+    /**
+     * Moves past count bytes
+     *
+     * @return the index of the first of them
+     */
+    private int advance(int count) {
+        if (count < 0 || count > mLimit - mPosition) {
+            throw new BufferUnderflowException();
+        }
+        int index = mPosition;
+        mPosition += count;
+        return index;
+    }
+}
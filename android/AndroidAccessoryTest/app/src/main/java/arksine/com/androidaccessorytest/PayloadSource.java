@@ -0,0 +1,182 @@
+package arksine.com.androidaccessorytest;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Payload of an outbound packet that is not held in a byte array.  The writer reads it one
+ * frame at a time through views, so the payload is written to the accessory without first
+ * being copied onto the heap.
+ *
+ * A buffer source views the caller's buffer directly.  A file source maps the file one chunk
+ * at a time, so sending a file of any size costs a mapping of MAP_CHUNK_SIZE bytes rather than
+ * a heap buffer of the whole file.
+ */
+
+abstract class PayloadSource {
+    private static final String TAG = PayloadSource.class.getSimpleName();
+
+    static final int MAP_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Wraps the remaining bytes of buffer.  The buffer's position and limit are not changed.
+     *
+     * @throws IllegalArgumentException if the payload is larger than a frame can announce
+     */
+    static PayloadSource forBuffer(ByteBuffer buffer) {
+        if (buffer.remaining() > LinkConfig.MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload too large: " + buffer.remaining());
+        }
+        return new BufferSource(buffer.slice());
+    }
+
+    /**
+     * Reads length bytes of channel starting at position.  The region is checked against
+     * the size of the file now, so a bad region fails here rather than on the writer thread.
+     *
+     * @param owned true to close channel once the payload has been written or dropped, or
+     *              if it is rejected here
+     * @throws IllegalArgumentException if the region is negative or larger than a frame can
+     *                                  announce
+     * @throws IOException if the region extends past the end of the file
+     */
+    static PayloadSource forFile(FileChannel channel, long position, int length,
+                                 boolean owned) throws IOException {
+        boolean accepted = false;
+        try {
+            if (position < 0 || length < 0 || length > LinkConfig.MAX_PAYLOAD_SIZE) {
+                throw new IllegalArgumentException("Invalid file region: " + position + ", " +
+                        length);
+            }
+            long size = channel.size();
+            if (position + length > size) {
+                throw new IOException("File region " + position + ", " + length +
+                        " extends past the end of the file, size " + size);
+            }
+            accepted = true;
+        } finally {
+            if (!accepted && owned) {
+                closeChannel(channel);
+            }
+        }
+        return new FileSource(channel, position, length, owned);
+    }
+
+    private static void closeChannel(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close payload file", e);
+        }
+    }
+
+    abstract int length();
+
+    /**
+     * Largest number of bytes a single view can cover
+     */
+    abstract int maxView();
+
+    /**
+     * Returns a buffer positioned at offset into the payload with length bytes remaining.
+     * The buffer is reused by the next call.
+     */
+    abstract ByteBuffer view(int offset, int length) throws IOException;
+
+    /**
+     * Releases the source once the writer is done with it
+     */
+    void close() {
+    }
+
+    private static final class BufferSource extends PayloadSource {
+        private final ByteBuffer mBuffer;
+
+        BufferSource(ByteBuffer buffer) {
+            this.mBuffer = buffer;
+        }
+
+        @Override
+        int length() {
+            return mBuffer.capacity();
+        }
+
+        @Override
+        int maxView() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        ByteBuffer view(int offset, int length) {
+            mBuffer.clear();
+            mBuffer.limit(offset + length);
+            mBuffer.position(offset);
+            return mBuffer;
+        }
+    }
+
+    private static final class FileSource extends PayloadSource {
+        private final FileChannel mChannel;
+        private final long mPosition;
+        private final int mLength;
+        private final boolean mOwned;
+        // Currently mapped chunk and the payload offset it starts at
+        private MappedByteBuffer mChunk = null;
+        private int mChunkOffset = 0;
+        private boolean mClosed = false;
+
+        FileSource(FileChannel channel, long position, int length, boolean owned) {
+            this.mChannel = channel;
+            this.mPosition = position;
+            this.mLength = length;
+            this.mOwned = owned;
+        }
+
+        @Override
+        int length() {
+            return mLength;
+        }
+
+        @Override
+        int maxView() {
+            return MAP_CHUNK_SIZE;
+        }
+
+        @Override
+        ByteBuffer view(int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("Payload source closed");
+            }
+            if (mChunk == null || offset < mChunkOffset ||
+                    offset + length > mChunkOffset + mChunk.capacity()) {
+                int size = Math.min(Math.max(length, MAP_CHUNK_SIZE), mLength - offset);
+                mChunk = mChannel.map(FileChannel.MapMode.READ_ONLY, mPosition + offset, size);
+                mChunkOffset = offset;
+            }
+
+            int start = offset - mChunkOffset;
+            mChunk.clear();
+            mChunk.limit(start + length);
+            mChunk.position(start);
+            return mChunk;
+        }
+
+        @Override
+        void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            // A mapping cannot be unmapped explicitly, the chunk is unmapped once it has been
+            // garbage collected.  It stays valid after the channel is closed.
+            mChunk = null;
+            if (mOwned) {
+                closeChannel(mChannel);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package arksine.com.androidaccessorytest;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Workload profile of the buffer pool, kept across sessions so that the next session can
+ * preallocate the buffers it is likely to need instead of missing the pool while it warms up.
+ *
+ * For each size class of the pool the profile holds a histogram count of the buffers requested
+ * and the most buffers that were in use at once.  Each session is folded into the profile with
+ * older sessions counting for less, so the profile follows a workload that changes over time.
+ * The profile is persisted in SharedPreferences as comma separated lists.
+ */
+
+class PoolProfile {
+    private static final String PREFS_NAME = "buffer_pool_profile";
+    private static final String KEY_CLASSES = "classes";
+    private static final String KEY_REQUESTS = "requests";
+    private static final String KEY_PEAKS = "peaks";
+
+    private final long[] mRequests;
+    private final int[] mPeaks;
+
+    PoolProfile(int classCount) {
+        mRequests = new long[classCount];
+        mPeaks = new int[classCount];
+    }
+
+    /**
+     * Loads the saved profile, or returns an empty one if none was saved for a pool with the
+     * same number of size classes
+     */
+    static PoolProfile load(Context context, int classCount) {
+        PoolProfile profile = new PoolProfile(classCount);
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (prefs.getInt(KEY_CLASSES, 0) != classCount) {
+            return profile;
+        }
+
+        String[] requests = prefs.getString(KEY_REQUESTS, "").split(",");
+        String[] peaks = prefs.getString(KEY_PEAKS, "").split(",");
+        if (requests.length != classCount || peaks.length != classCount) {
+            return profile;
+        }
+        try {
+            for (int i = 0; i < classCount; i++) {
+                profile.mRequests[i] = Long.parseLong(requests[i]);
+                profile.mPeaks[i] = Integer.parseInt(peaks[i]);
+            }
+        } catch (NumberFormatException e) {
+            return new PoolProfile(classCount);
+        }
+        return profile;
+    }
+
+    synchronized void save(Context context) {
+        StringBuilder requests = new StringBuilder();
+        StringBuilder peaks = new StringBuilder();
+        for (int i = 0; i < mRequests.length; i++) {
+            if (i > 0) {
+                requests.append(',');
+                peaks.append(',');
+            }
+            requests.append(mRequests[i]);
+            peaks.append(mPeaks[i]);
+        }
+
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_CLASSES, mRequests.length)
+                .putString(KEY_REQUESTS, requests.toString())
+                .putString(KEY_PEAKS, peaks.toString())
+                .apply();
+    }
+
+    /**
+     * Folds the statistics of a finished session into the profile.  Request counts of earlier
+     * sessions are halved, and a peak only drops by a quarter per session, so one short
+     * session does not undo what earlier sessions established.
+     */
+    synchronized void merge(int sizeClass, long requests, int peak) {
+        mRequests[sizeClass] = (mRequests[sizeClass] >> 1) + requests;
+        mPeaks[sizeClass] = Math.max(peak, mPeaks[sizeClass] - (mPeaks[sizeClass] >> 2));
+    }
+
+    synchronized long getRequests(int sizeClass) {
+        return mRequests[sizeClass];
+    }
+
+    synchronized int getPeak(int sizeClass) {
+        return mPeaks[sizeClass];
+    }
+
+    int getClassCount() {
+        return mRequests.length;
+    }
+}
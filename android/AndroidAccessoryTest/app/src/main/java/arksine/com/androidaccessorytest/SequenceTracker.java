@@ -0,0 +1,91 @@
+package arksine.com.androidaccessorytest;
+
+/**
+ * Tracks the sequence numbers carried by extended headers to count frames lost or reordered
+ * on the way, separately for each command.  Packets without an extended header are ignored.
+ *
+ * Capture timestamps come from the sender's monotonic clock, which has an unknown offset from
+ * ours.  The smallest difference seen between the two clocks is taken as the transit time of
+ * an undelayed frame, so latencyNanos() reports how much later than that a frame arrived.
+ *
+ * Not thread safe, each thread observing packets should use its own tracker.
+ */
+
+class SequenceTracker {
+    private static final int COMMAND_COUNT = AccessoryCommand.values().length;
+
+    private final int[] mLastSequence = new int[COMMAND_COUNT];
+    private final boolean[] mSeen = new boolean[COMMAND_COUNT];
+    private final long[] mGaps = new long[COMMAND_COUNT];
+    private final long[] mReordered = new long[COMMAND_COUNT];
+    private long mMinClockOffset = Long.MAX_VALUE;
+
+    /**
+     * Records a received packet
+     *
+     * @return the number of frames of the same command missing immediately before this one
+     */
+    int onPacket(AccessoryCommand command, PacketBuffer packet) {
+        if (!packet.hasHeaderExtension()) {
+            return 0;
+        }
+
+        int index = command.ordinal();
+        int sequence = packet.getSequence();
+        int gap = 0;
+        if (mSeen[index]) {
+            // Subtraction handles sequence wrap around
+            int distance = sequence - mLastSequence[index];
+            if (distance <= 0) {
+                mReordered[index]++;
+                return 0;
+            }
+            gap = distance - 1;
+            mGaps[index] += gap;
+        }
+        mSeen[index] = true;
+        mLastSequence[index] = sequence;
+        return gap;
+    }
+
+    /**
+     * Returns how much later than the fastest frame seen so far packet arrived, with now
+     * taken from SystemClock.elapsedRealtimeNanos(), or -1 if the packet carries no timestamp
+     */
+    long latencyNanos(PacketBuffer packet, long now) {
+        if (!packet.hasHeaderExtension()) {
+            return -1;
+        }
+
+        long offset = now - packet.getTimestamp();
+        if (offset < mMinClockOffset) {
+            mMinClockOffset = offset;
+        }
+        return offset - mMinClockOffset;
+    }
+
+    long getGapCount(AccessoryCommand command) {
+        return mGaps[command.ordinal()];
+    }
+
+    long getReorderedCount(AccessoryCommand command) {
+        return mReordered[command.ordinal()];
+    }
+
+    long getTotalGapCount() {
+        long total = 0;
+        for (long gaps : mGaps) {
+            total += gaps;
+        }
+        return total;
+    }
+
+    void reset() {
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            mSeen[i] = false;
+            mGaps[i] = 0;
+            mReordered[i] = 0;
+        }
+        mMinClockOffset = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,24 @@
+package arksine.com.androidaccessorytest;
+
+/**
+ * A PacketConsumer that also receives streamed payloads, through the same ring and in the
+ * same order as its packets.  For each stream onStreamBegin is called once, followed by
+ * onStreamChunk for each chunk in order, and finally onStreamEnd.
+ */
+
+public interface StreamConsumer extends PacketConsumer {
+
+    void onStreamBegin(AccessoryCommand command, int totalSize);
+
+    /**
+     * The consumer takes ownership of the chunk's reference and is responsible for
+     * releasing it
+     */
+    void onStreamChunk(AccessoryCommand command, PacketBuffer chunk);
+
+    /**
+     * @param complete false if the stream was cut short, or chunks were dropped because the
+     *                 ring was full
+     */
+    void onStreamEnd(AccessoryCommand command, boolean complete);
+}
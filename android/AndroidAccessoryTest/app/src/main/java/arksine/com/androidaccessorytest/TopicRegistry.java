@@ -0,0 +1,169 @@
+package arksine.com.androidaccessorytest;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps each AccessoryCommand to the PacketRings subscribed to it through a table indexed by the
+ * command ordinal, so a packet only reaches the consumers that asked for its command.  Packets
+ * for commands nobody subscribed to go to the fallback rings instead.  Streamed payloads are
+ * routed the same way, skipping rings whose consumer is not a StreamConsumer.  Each entry is
+ * an array replaced as a whole when a ring is added or removed, so rings may be subscribed and
+ * unsubscribed from any thread while the read thread publishes without locking.
+ */
+
+class TopicRegistry {
+    private static final PacketRing[] NO_RINGS = new PacketRing[0];
+
+    private final AtomicReferenceArray<PacketRing[]> mTopics =
+            new AtomicReferenceArray<>(AccessoryCommand.values().length);
+    private volatile PacketRing[] mFallback = NO_RINGS;
+    private final Object mLock = new Object();
+
+    TopicRegistry() {
+        for (int i = 0; i < mTopics.length(); i++) {
+            mTopics.set(i, NO_RINGS);
+        }
+    }
+
+    /**
+     * Subscribes ring to commands and starts its consumer
+     */
+    void subscribe(PacketRing ring, AccessoryCommand... commands) {
+        ring.start();
+        synchronized (mLock) {
+            for (AccessoryCommand command : commands) {
+                int ordinal = command.ordinal();
+                mTopics.set(ordinal, add(mTopics.get(ordinal), ring));
+            }
+        }
+    }
+
+    /**
+     * Subscribes ring to every command without a subscriber of its own and starts its consumer
+     */
+    void subscribeFallback(PacketRing ring) {
+        ring.start();
+        synchronized (mLock) {
+            mFallback = add(mFallback, ring);
+        }
+    }
+
+    /**
+     * Removes and halts every ring feeding consumer
+     */
+    void unsubscribe(PacketConsumer consumer) {
+        ArrayList<PacketRing> removed = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < mTopics.length(); i++) {
+                mTopics.set(i, remove(mTopics.get(i), consumer, removed));
+            }
+            mFallback = remove(mFallback, consumer, removed);
+        }
+        for (PacketRing ring : removed) {
+            ring.halt();
+        }
+    }
+
+    /**
+     * Hands packet to every ring subscribed to command, each holding a reference of its own.
+     * Must be called from the read thread.
+     *
+     * @return false if no ring is subscribed, in which case the caller keeps ownership of
+     * the packet
+     */
+    boolean publish(AccessoryCommand command, PacketBuffer packet) {
+        PacketRing[] rings = mTopics.get(command.ordinal());
+        if (rings.length == 0) {
+            rings = mFallback;
+            if (rings.length == 0) {
+                return false;
+            }
+        }
+
+        int last = rings.length - 1;
+        for (int i = 0; i < last; i++) {
+            rings[i].offer(command, packet.retain());
+        }
+        rings[last].offer(command, packet);
+        return true;
+    }
+
+    /**
+     * Hands the beginning of a stream to every stream consumer subscribed to command.  Must
+     * be called from the read thread.
+     */
+    void publishStreamBegin(AccessoryCommand command, int totalSize) {
+        for (PacketRing ring : streamRings(command)) {
+            if (ring.isStreamConsumer()) {
+                ring.publishStreamBegin(command, totalSize);
+            }
+        }
+    }
+
+    /**
+     * Hands chunk to every stream consumer subscribed to command, each holding a reference of
+     * its own, and releases the caller's reference.  Must be called from the read thread.
+     */
+    void publishStreamChunk(AccessoryCommand command, PacketBuffer chunk) {
+        for (PacketRing ring : streamRings(command)) {
+            if (ring.isStreamConsumer()) {
+                ring.offerStreamChunk(command, chunk.retain());
+            }
+        }
+        chunk.release();
+    }
+
+    /**
+     * Hands the end of a stream to every stream consumer subscribed to command.  Must be
+     * called from the read thread.
+     */
+    void publishStreamEnd(AccessoryCommand command, boolean complete) {
+        for (PacketRing ring : streamRings(command)) {
+            if (ring.isStreamConsumer()) {
+                ring.publishStreamEnd(command, complete);
+            }
+        }
+    }
+
+    private PacketRing[] streamRings(AccessoryCommand command) {
+        PacketRing[] rings = mTopics.get(command.ordinal());
+        for (PacketRing ring : rings) {
+            if (ring.isStreamConsumer()) {
+                return rings;
+            }
+        }
+        return mFallback;
+    }
+
+    private static PacketRing[] add(PacketRing[] rings, PacketRing ring) {
+        PacketRing[] added = new PacketRing[rings.length + 1];
+        System.arraycopy(rings, 0, added, 0, rings.length);
+        added[rings.length] = ring;
+        return added;
+    }
+
+    private static PacketRing[] remove(PacketRing[] rings, PacketConsumer consumer,
+                                       ArrayList<PacketRing> removed) {
+        int count = 0;
+        for (PacketRing ring : rings) {
+            if (ring.getConsumer() != consumer) {
+                count++;
+            }
+        }
+        if (count == rings.length) {
+            return rings;
+        }
+
+        PacketRing[] remaining = (count == 0) ? NO_RINGS : new PacketRing[count];
+        int index = 0;
+        for (PacketRing ring : rings) {
+            if (ring.getConsumer() != consumer) {
+                remaining[index++] = ring;
+            } else if (!removed.contains(ring)) {
+                removed.add(ring);
+            }
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,103 @@
+package arksine.com.androidaccessorytest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How the consumer of a PacketRing waits for packets to be published.  Busy spinning hands a
+ * packet over fastest but keeps a core busy, yielding spins briefly and then gives the core to
+ * other threads between checks, and blocking parks the consumer until the producer wakes it,
+ * costing a wakeup per batch but no CPU while idle.
+ */
+
+public abstract class WaitStrategy {
+    public static final int BUSY_SPIN = 0;
+    public static final int YIELDING = 1;
+    public static final int BLOCKING = 2;
+
+    // Longest single wait of a thread blocked in the buffer pool or the writer, so a missed
+    // wakeup only costs a short delay
+    static final long MAX_WAIT_MS = 10;
+    // Checks made by the yielding strategy before it starts yielding
+    private static final int SPIN_TRIES = 100;
+
+    static WaitStrategy create(int type) {
+        switch (type) {
+            case BUSY_SPIN:
+                return new BusySpin();
+            case YIELDING:
+                return new Yielding();
+            case BLOCKING:
+                return new Blocking();
+            default:
+                throw new IllegalArgumentException("Invalid wait strategy: " + type);
+        }
+    }
+
+    /**
+     * Waits until sequence has been published or the ring is halted
+     *
+     * @return the highest published sequence, which is below sequence if the ring was halted
+     */
+    abstract long waitFor(long sequence, AtomicLong published, PacketRing ring);
+
+    /**
+     * Called by the producer after publishing
+     */
+    void signal() {
+    }
+
+    private static final class BusySpin extends WaitStrategy {
+        @Override
+        long waitFor(long sequence, AtomicLong published, PacketRing ring) {
+            long available;
+            while ((available = published.get()) < sequence && !ring.isHalted()) {
+                // Spin
+            }
+            return available;
+        }
+    }
+
+    private static final class Yielding extends WaitStrategy {
+        @Override
+        long waitFor(long sequence, AtomicLong published, PacketRing ring) {
+            long available;
+            int tries = SPIN_TRIES;
+            while ((available = published.get()) < sequence && !ring.isHalted()) {
+                if (tries > 0) {
+                    tries--;
+                } else {
+                    Thread.yield();
+                }
+            }
+            return available;
+        }
+    }
+
+    private static final class Blocking extends WaitStrategy {
+        private volatile Thread mWaiter = null;
+
+        @Override
+        long waitFor(long sequence, AtomicLong published, PacketRing ring) {
+            long available;
+            while ((available = published.get()) < sequence && !ring.isHalted()) {
+                // The producer checks mWaiter after publishing, so either it sees it set or
+                // the sequence is seen as published here
+                mWaiter = Thread.currentThread();
+                if (published.get() < sequence && !ring.isHalted()) {
+                    LockSupport.park(this);
+                }
+                mWaiter = null;
+            }
+            return available;
+        }
+
+        @Override
+        void signal() {
+            Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
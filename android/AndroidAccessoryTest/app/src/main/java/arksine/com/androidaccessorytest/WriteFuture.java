@@ -0,0 +1,126 @@
+package arksine.com.androidaccessorytest;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completion handle of an asynchronous write.  The write completes once every frame of the
+ * packet has been written to the accessory, with the number of bytes it took on the link, or
+ * fails with the error that kept it from being written.  A packet dropped because the
+ * accessory closed, the framing changed or a newer packet superseded it fails as well.
+ *
+ * Until it completes the payload counts against the writer's in-flight limit, and the caller
+ * must not modify it.
+ */
+
+public class WriteFuture {
+
+    /**
+     * Notified on the writer thread when a write completes, so it must return quickly
+     */
+    public interface Listener {
+        void onWriteComplete(WriteFuture future);
+    }
+
+    private final AccessoryCommand mCommand;
+    private final int mSize;
+    private final Listener mListener;
+    private boolean mDone = false;
+    private int mBytesWritten = -1;
+    private IOException mError = null;
+
+    // Frame bytes written so far, only accessed from the writer thread
+    private int mPendingBytes = 0;
+
+    WriteFuture(AccessoryCommand command, int size, Listener listener) {
+        this.mCommand = command;
+        this.mSize = size;
+        this.mListener = listener;
+    }
+
+    public AccessoryCommand getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Returns the payload size counted against the in-flight limit
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized boolean isSuccess() {
+        return mDone && mError == null;
+    }
+
+    /**
+     * Returns the number of bytes written to the link, including framing, or -1 if the write
+     * has not completed or failed
+     */
+    public synchronized int getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Returns the error the write failed with, or null
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Waits for the write to complete
+     *
+     * @param timeoutMs how long to wait, or 0 to wait indefinitely
+     * @return the number of bytes written, or -1 if the timeout expired first
+     * @throws IOException if the write failed
+     */
+    public synchronized int await(long timeoutMs) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!mDone) {
+            if (timeoutMs == 0) {
+                wait();
+            } else {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return -1;
+                }
+                wait(remaining);
+            }
+        }
+        if (mError != null) {
+            throw mError;
+        }
+        return mBytesWritten;
+    }
+
+    int getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    void addPendingBytes(int written) {
+        mPendingBytes += written;
+    }
+
+    /**
+     * Does nothing if the write has already completed
+     */
+    void complete(int bytesWritten, IOException error) {
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mBytesWritten = (error == null) ? bytesWritten : -1;
+            mError = error;
+            notifyAll();
+        }
+        if (mListener != null) {
+            mListener.onWriteComplete(this);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package arksine.com.androidaccessorytest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of outbound packets with any number of producers and a single
+ * consumer, the writer thread.  Entries are stored in preallocated slot arrays, so queueing a
+ * packet never allocates.  Producers claim a slot with a CAS on the tail and publish it through
+ * the slot's sequence number, the consumer advances the head without contention.
+ *
+ * Every entry records the generation it was queued in, which lets the consumer skip entries
+ * left over from a previous connection without producers having to clear the queue.  An
+ * entry may also carry a supersede key and version, which the consumer checks to skip entries
+ * replaced by a newer one.
+ */
+
+final class WriteQueue {
+
+    /**
+     * Mutable holder the consumer polls entries into
+     */
+    static final class Entry {
+        AccessoryCommand command;
+        byte[] data;
+        // Payload that is not held in an array, data is null when set
+        PayloadSource source;
+        LinkConfig config;
+        boolean reset;
+        int generation;
+        // Supersede key, or -1, and the version of the key the entry was queued with
+        int key;
+        int version;
+        // Completion handle of an asynchronous write, or null
+        WriteFuture future;
+
+        void clear() {
+            command = null;
+            data = null;
+            source = null;
+            config = null;
+            future = null;
+        }
+    }
+
+    private final AccessoryCommand[] mCommands;
+    private final byte[][] mData;
+    private final PayloadSource[] mSources;
+    private final LinkConfig[] mConfigs;
+    private final boolean[] mResets;
+    private final int[] mGenerations;
+    private final int[] mKeys;
+    private final int[] mVersions;
+    private final WriteFuture[] mFutures;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong(0);
+    // Only accessed by the consumer
+    private long mHead = 0;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    WriteQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mCommands = new AccessoryCommand[size];
+        mData = new byte[size][];
+        mSources = new PayloadSource[size];
+        mConfigs = new LinkConfig[size];
+        mResets = new boolean[size];
+        mGenerations = new int[size];
+        mKeys = new int[size];
+        mVersions = new int[size];
+        mFutures = new WriteFuture[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    boolean offer(AccessoryCommand command, byte[] data, PayloadSource source, LinkConfig config,
+                  boolean reset, int generation, int key, int version, WriteFuture future) {
+        long position = mTail.get();
+        int index;
+        while (true) {
+            index = (int) position & mMask;
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = mTail.get();
+            }
+        }
+
+        mCommands[index] = command;
+        mData[index] = data;
+        mSources[index] = source;
+        mConfigs[index] = config;
+        mResets[index] = reset;
+        mGenerations[index] = generation;
+        mKeys[index] = key;
+        mVersions[index] = version;
+        mFutures[index] = future;
+        // A full volatile store, so the producer's following check of whether the writer is
+        // sleeping cannot be ordered before the entry is visible to it
+        mSequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Moves the oldest entry into entry.  Must only be called by the consumer.
+     *
+     * @return false if the queue is empty
+     */
+    boolean poll(Entry entry) {
+        int index = (int) mHead & mMask;
+        if (mSequences.get(index) != mHead + 1) {
+            return false;
+        }
+
+        entry.command = mCommands[index];
+        entry.data = mData[index];
+        entry.source = mSources[index];
+        entry.config = mConfigs[index];
+        entry.reset = mResets[index];
+        entry.generation = mGenerations[index];
+        entry.key = mKeys[index];
+        entry.version = mVersions[index];
+        entry.future = mFutures[index];
+        mCommands[index] = null;
+        mData[index] = null;
+        mSources[index] = null;
+        mConfigs[index] = null;
+        mFutures[index] = null;
+        mSequences.lazySet(index, mHead + mMask + 1);
+        mHead++;
+        return true;
+    }
+
+    /**
+     * Must only be called by the consumer
+     */
+    boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+}
@@ -0,0 +1,56 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks where pooled buffers are allocated and how they are charged to the budget
+ */
+public class BufferManagerTest {
+
+    @Test
+    public void largeClassesOnHeap() throws Exception {
+        BufferManager bufferManager = new BufferManager(0, 4096, 8192);
+        PacketBuffer small = bufferManager.getBuffer(100);
+        PacketBuffer medium = bufferManager.getBuffer(8000);
+        PacketBuffer large = bufferManager.getBuffer(20000);
+        assertFalse(small.hasArray());
+        assertFalse(medium.hasArray());
+        // Large payloads are decoded from the backing array without a copy
+        assertTrue(large.hasArray());
+        assertNotNull(large.getArray());
+        small.clear();
+        medium.clear();
+        large.clear();
+
+        assertFalse(new BufferManager(0, 4096, true).getBuffer(20000).hasArray());
+        assertTrue(new BufferManager(0, 4096, false).getBuffer(100).hasArray());
+    }
+
+    @Test
+    public void onlyChargedBytesCredited() throws Exception {
+        BufferManager bufferManager = new BufferManager(1, 4096);
+        long allocated = bufferManager.getAllocatedBytes();
+
+        // A buffer the pool did not allocate was never charged, so returning it changes nothing
+        PacketBuffer foreign = new PacketBuffer(4096, bufferManager);
+        foreign.clear();
+        assertEquals(allocated, bufferManager.getAllocatedBytes());
+        assertEquals(0, bufferManager.getInUseCount());
+
+        // An enlarged buffer is let go, crediting its pooled size and its growth
+        PacketBuffer grown = bufferManager.getBuffer();
+        assertTrue(grown.setPayloadsize(10000));
+        assertTrue(bufferManager.getAllocatedBytes() > allocated);
+        grown.clear();
+        assertEquals(0, bufferManager.getAllocatedBytes());
+        assertEquals(0, bufferManager.getInUseCount());
+
+        PacketBuffer pooled = bufferManager.getBuffer();
+        assertEquals(allocated, bufferManager.getAllocatedBytes());
+        pooled.clear();
+        assertEquals(allocated, bufferManager.getAllocatedBytes());
+        assertSame(pooled, bufferManager.getBuffer());
+    }
+}
@@ -0,0 +1,100 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks ordering and capacity of the ring, and that concurrent producers and consumers
+ * neither lose nor duplicate items
+ */
+public class BufferRingTest {
+
+    @Test
+    public void fifoAndCapacity() throws Exception {
+        // Rounded up to eight slots
+        BufferRing<Integer> ring = new BufferRing<>(5);
+        assertNull(ring.poll());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(8));
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 8; i++) {
+                assertEquals(Integer.valueOf(i), ring.poll());
+                assertTrue(ring.offer(i));
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 50000;
+        final BufferRing<Integer> ring = new BufferRing<>(64);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(producers * perProducer);
+        final AtomicInteger consumed = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers * 2];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!ring.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[producers + p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    while (consumed.get() < producers * perProducer) {
+                        Integer item = ring.poll();
+                        if (item == null) {
+                            Thread.yield();
+                        } else {
+                            seen.incrementAndGet(item);
+                            consumed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(30000);
+            assertFalse(thread.isAlive());
+        }
+
+        for (int i = 0; i < seen.length(); i++) {
+            assertEquals("item " + i, 1, seen.get(i));
+        }
+        assertNull(ring.poll());
+    }
+
+    static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
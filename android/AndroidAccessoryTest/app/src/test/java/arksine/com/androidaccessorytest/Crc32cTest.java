@@ -0,0 +1,115 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the table driven CRC-32C against published vectors and a bitwise reference
+ */
+public class Crc32cTest {
+
+    @Test
+    public void knownVectors() throws Exception {
+        assertEquals(0xE3069283L, crc("123456789".getBytes(Charset.forName("US-ASCII"))));
+
+        // RFC 3720, appendix B.4
+        byte[] data = new byte[32];
+        assertEquals(0x8A9136AAL, crc(data));
+        Arrays.fill(data, (byte) 0xFF);
+        assertEquals(0x62A8AB43L, crc(data));
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertEquals(0x46DD794EL, crc(data));
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (31 - i);
+        }
+        assertEquals(0x113FDB5CL, crc(data));
+
+        assertEquals(0L, crc(new byte[0]));
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        Random random = new Random(1);
+        byte[] data = TestFrames.random(1024, 2);
+        for (int i = 0; i < 500; i++) {
+            int off = random.nextInt(64);
+            int len = random.nextInt(data.length - off);
+            Crc32c crc = new Crc32c();
+            crc.update(data, off, len);
+            assertEquals("off " + off + " len " + len, reference(data, off, len), crc.getValue());
+        }
+    }
+
+    @Test
+    public void incrementalUpdates() throws Exception {
+        byte[] data = TestFrames.random(777, 3);
+        long expected = reference(data, 0, data.length);
+        for (int split = 0; split <= data.length; split += 13) {
+            Crc32c crc = new Crc32c();
+            crc.update(data, 0, split);
+            crc.update(0x5A);
+            crc.reset();
+
+            crc.update(data, 0, split);
+            for (int i = split; i < Math.min(split + 3, data.length); i++) {
+                crc.update(data[i]);
+            }
+            if (split + 3 < data.length) {
+                crc.update(data, split + 3, data.length - split - 3);
+            }
+            assertEquals("split " + split, expected, crc.getValue());
+        }
+    }
+
+    @Test
+    public void directBuffers() throws Exception {
+        byte[] data = TestFrames.random(300, 4);
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length).order(order);
+            direct.put(data);
+            direct.position(5);
+            for (int off = 0; off < 9; off++) {
+                int len = data.length - off - 7;
+                Crc32c crc = new Crc32c();
+                crc.update(direct, off, len);
+                assertEquals(order + " off " + off, reference(data, off, len), crc.getValue());
+            }
+            // Absolute reads leave the position alone
+            assertEquals(5, direct.position());
+        }
+
+        ByteBuffer heap = ByteBuffer.wrap(data, 10, 100).slice();
+        Crc32c crc = new Crc32c();
+        crc.update(heap, 2, 50);
+        assertEquals(reference(data, 12, 50), crc.getValue());
+    }
+
+    private static long crc(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * One bit at a time, straight from the definition
+     */
+    private static long reference(byte[] data, int off, int len) {
+        int crc = 0xFFFFFFFF;
+        for (int i = off; i < off + len; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+        }
+        return ~crc & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,117 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that every payload byte the host sends is credited back, including bytes the
+ * decoder skips without a buffer
+ */
+public class FlowControlTest {
+    private static final int WINDOW = 64 * 1024;
+    private static final LinkConfig SYNC = new LinkConfig.Builder().setSyncMarker(true).build();
+
+    private BufferManager mBufferManager;
+    private FlowController mFlowController;
+    private final List<PacketBuffer> mHeld = new ArrayList<>();
+    private boolean mHold = false;
+
+    private final PacketDecoder.Listener mListener = new PacketDecoder.Listener() {
+        @Override
+        public boolean onPacketReceived(AccessoryCommand command, PacketBuffer packet) {
+            if (mHold) {
+                mHeld.add(packet);
+            } else {
+                packet.clear();
+            }
+            return true;
+        }
+
+        @Override
+        public void onStreamBegin(AccessoryCommand command, int payloadSize) {}
+
+        @Override
+        public void onStreamChunk(AccessoryCommand command, PacketBuffer chunk) {
+            chunk.clear();
+        }
+
+        @Override
+        public void onStreamEnd(AccessoryCommand command, boolean complete) {}
+    };
+
+    @Before
+    public void setUp() {
+        mBufferManager = new BufferManager(0, 4096);
+        // Room for two buffers, anything more overruns straight away
+        mBufferManager.setBudget(8192, BufferManager.EXHAUSTED_FAIL, 0);
+        mFlowController = new FlowController(new AccessoryWriter());
+        mBufferManager.setFlowController(mFlowController);
+        mFlowController.start(WINDOW);
+    }
+
+    @Test
+    public void overrunCreditsSkippedBytes() throws Exception {
+        PacketDecoder decoder = newDecoder(new LinkConfig.Builder().setSyncMarker(true)
+                .setFlowControl(true).build());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 4; i++) {
+            stream.write(frame(AccessoryCommand.TEST, filled(3000, 0x11)));
+        }
+
+        mHold = true;
+        TestFrames.feed(decoder, stream.toByteArray(), 700);
+        assertEquals(2, mHeld.size());
+        assertEquals(2, decoder.getOverrunCount());
+        assertEquals(6000, mFlowController.getReleasedBytes());
+
+        for (PacketBuffer packet : mHeld) {
+            packet.clear();
+        }
+        assertEquals(12000, mFlowController.getReleasedBytes());
+    }
+
+    @Test
+    public void resyncCreditsDroppedPayload() throws Exception {
+        PacketDecoder decoder = newDecoder(new LinkConfig.Builder().setSyncMarker(true)
+                .setFlowControl(true).setMaxFrameSize(65536).build());
+        byte[] corrupt = frame(AccessoryCommand.TEST, filled(1000, 0x11));
+        // Announce far more than the frame size limit
+        corrupt[4] = 0x00;
+        corrupt[5] = (byte) 0xFF;
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(frame(AccessoryCommand.TEST, filled(100, 0x22)));
+        stream.write(corrupt);
+        stream.write(frame(AccessoryCommand.TEST, filled(100, 0x33)));
+        TestFrames.feed(decoder, stream.toByteArray(), 333);
+
+        assertEquals(1, decoder.getDroppedFrameCount());
+        long released = mFlowController.getReleasedBytes();
+        // The rejected header is credited along with its payload
+        assertTrue("released " + released, released >= 1200);
+        assertTrue("released " + released, released <= 1200 + corrupt.length - 1000);
+    }
+
+    private PacketDecoder newDecoder(LinkConfig config) {
+        PacketDecoder decoder = new PacketDecoder(mBufferManager, mListener);
+        decoder.setLinkConfig(config);
+        return decoder;
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static byte[] frame(AccessoryCommand command, byte[] payload) {
+        return TestFrames.encode(SYNC, command, payload);
+    }
+}
@@ -0,0 +1,110 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes large payloads split into fragments, with control packets written between them,
+ * and checks that the decoder puts every message back together
+ */
+public class FragmentationTest {
+    private static final LinkConfig FRAGMENTS = new LinkConfig.Builder().setSyncMarker(true)
+            .setChecksum(true).setExtendedHeader(true).setFragments(true).build();
+    private static final int FRAGMENT_SIZE = 4096;
+
+    @Test
+    public void reassembly() throws Exception {
+        final byte[] whole = TestFrames.random(100000, 1);
+        final byte[] streamed = TestFrames.random(70000, 2);
+        final byte[] control = {1, 2, 3, 4};
+        final byte[] small = TestFrames.random(1000, 3);
+
+        byte[] data = TestFrames.written(FRAGMENTS, new TestFrames.Writes() {
+            @Override
+            public void run(AccessoryWriter writer) throws Exception {
+                writer.setFragmentSize(FRAGMENT_SIZE);
+                List<WriteFuture> futures = new ArrayList<>();
+                futures.add(writer.writeAsync(AccessoryCommand.TEST, whole, null));
+                for (int i = 0; i < 10; i++) {
+                    futures.add(writer.writeAsync(AccessoryCommand.CAM_START, control, null));
+                }
+                futures.add(writer.writeAsync(AccessoryCommand.CAM_FRAME, streamed, null));
+                futures.add(writer.writeAsync(AccessoryCommand.TEST, small, null));
+                for (WriteFuture future : futures) {
+                    assertNotNull(future);
+                    future.await(10000);
+                    assertTrue(future.isSuccess());
+                }
+            }
+        });
+        // Each fragment after the first adds a frame header and checksum
+        int overhead = FRAGMENTS.getHeaderSize() + FRAGMENTS.getTrailerSize();
+        int unfragmented = whole.length + streamed.length + small.length + 10 * control.length +
+                13 * overhead;
+        assertTrue(data.length >= unfragmented + 40 * overhead);
+
+        for (int readSize : new int[] {1, 100, 16384}) {
+            String name = "read " + readSize;
+            TestFrames.Recorder recorder = new TestFrames.Recorder();
+            PacketDecoder decoder = new PacketDecoder(new BufferManager(4, 4096), recorder);
+            decoder.setLinkConfig(FRAGMENTS);
+            decoder.setStreamingThreshold(50000);
+            decoder.setKeepWhole(AccessoryCommand.TEST, true);
+            TestFrames.feed(decoder, data, readSize);
+
+            assertEquals(name, 0, decoder.getDroppedFrameCount());
+            assertEquals(name, 0, decoder.getCorruptFrameCount());
+
+            List<byte[]> bulk = new ArrayList<>();
+            int controlCount = 0;
+            for (int i = 0; i < recorder.commands.size(); i++) {
+                if (recorder.commands.get(i) == AccessoryCommand.CAM_START) {
+                    assertArrayEquals(name, control, recorder.payloads.get(i));
+                    controlCount++;
+                } else {
+                    assertEquals(name, AccessoryCommand.TEST, recorder.commands.get(i));
+                    bulk.add(recorder.payloads.get(i));
+                }
+            }
+            assertEquals(name, 10, controlCount);
+            assertEquals(name, 2, bulk.size());
+            assertArrayEquals(name, whole, bulk.get(0));
+            assertArrayEquals(name, small, bulk.get(1));
+
+            // The streamed message is announced whole and ends only once it is complete
+            assertEquals(name, Arrays.asList(streamed.length), recorder.streamSizes);
+            assertEquals(name, Arrays.asList(true), recorder.streamEnds);
+            assertArrayEquals(name, streamed, recorder.streamData.toByteArray());
+        }
+    }
+
+    @Test
+    public void corruptFragmentDropsMessage() throws Exception {
+        final byte[] first = TestFrames.random(20000, 4);
+        final byte[] second = TestFrames.random(20000, 5);
+        byte[] data = TestFrames.written(FRAGMENTS, new TestFrames.Writes() {
+            @Override
+            public void run(AccessoryWriter writer) throws Exception {
+                writer.setFragmentSize(FRAGMENT_SIZE);
+                writer.writeAsync(AccessoryCommand.TEST, first, null).await(10000);
+                writer.writeAsync(AccessoryCommand.TEST, second, null).await(10000);
+            }
+        });
+        // Damage a byte in the middle of the first message
+        data[10000] ^= 0x10;
+
+        TestFrames.Recorder recorder = new TestFrames.Recorder();
+        PacketDecoder decoder = new PacketDecoder(new BufferManager(4, 4096), recorder);
+        decoder.setLinkConfig(FRAGMENTS);
+        TestFrames.feed(decoder, data, 1000);
+
+        assertEquals(1, decoder.getCorruptFrameCount());
+        assertEquals(Arrays.asList(AccessoryCommand.TEST), recorder.commands);
+        assertArrayEquals(second, recorder.payloads.get(0));
+    }
+}
@@ -0,0 +1,103 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks parsing of the capability block and the negotiated link configuration
+ */
+public class LinkCapabilitiesTest {
+    private static final int ALL_FEATURES = LinkCapabilities.FEATURE_SYNC_MARKER |
+            LinkCapabilities.FEATURE_CHECKSUM | LinkCapabilities.FEATURE_COMPRESSION |
+            LinkCapabilities.FEATURE_TIMESTAMPS | LinkCapabilities.FEATURE_FRAGMENTS |
+            LinkCapabilities.FEATURE_FLOW_CONTROL;
+
+    @Test
+    public void roundTrip() throws Exception {
+        LinkCapabilities capabilities = new LinkCapabilities((short) 3, 1 << 20, 16384,
+                LinkCapabilities.FEATURE_CHECKSUM | LinkCapabilities.FEATURE_FRAGMENTS);
+        byte[] block = capabilities.toByteArray();
+        assertEquals(LinkCapabilities.BLOCK_SIZE, block.length);
+
+        LinkCapabilities parsed = LinkCapabilities.fromPayload(ByteBuffer.wrap(block));
+        assertNotNull(parsed);
+        assertEquals(3, parsed.getVersion());
+        assertEquals(1 << 20, parsed.getMaxFrameSize());
+        assertEquals(16384, parsed.getPreferredReadSize());
+        assertTrue(parsed.hasFeature(LinkCapabilities.FEATURE_CHECKSUM));
+        assertTrue(parsed.hasFeature(LinkCapabilities.FEATURE_FRAGMENTS));
+        assertFalse(parsed.hasFeature(LinkCapabilities.FEATURE_SYNC_MARKER));
+    }
+
+    @Test
+    public void trailingBytesIgnored() throws Exception {
+        ByteBuffer payload = ByteBuffer.allocate(LinkCapabilities.BLOCK_SIZE + 6);
+        payload.put(new LinkCapabilities((short) 1, 4096, 512, ALL_FEATURES).toByteArray());
+        payload.putShort((short) 7).putInt(-1);
+        payload.flip();
+
+        LinkCapabilities parsed = LinkCapabilities.fromPayload(payload);
+        assertNotNull(parsed);
+        assertEquals(4096, parsed.getMaxFrameSize());
+        assertTrue(parsed.hasFeature(ALL_FEATURES));
+    }
+
+    @Test
+    public void invalidBlocksRejected() throws Exception {
+        byte[] block = new LinkCapabilities((short) 1, 4096, 512, 0).toByteArray();
+        assertNull(LinkCapabilities.fromPayload(ByteBuffer.wrap(block, 0, block.length - 1)));
+        assertNull(LinkCapabilities.fromPayload(ByteBuffer.allocate(0)));
+
+        assertNull(parse(new LinkCapabilities((short) 0, 4096, 512, 0)));
+        assertNull(parse(new LinkCapabilities((short) 1, 0, 512, 0)));
+        assertNull(parse(new LinkCapabilities((short) 1, 4096, -1, 0)));
+    }
+
+    @Test
+    public void intersection() throws Exception {
+        LinkCapabilities local = new LinkCapabilities((short) 2, 1 << 20, 16384, ALL_FEATURES);
+        LinkCapabilities remote = new LinkCapabilities((short) 1, 1 << 24, 4096,
+                LinkCapabilities.FEATURE_SYNC_MARKER | LinkCapabilities.FEATURE_CHECKSUM | 1 << 30);
+
+        LinkCapabilities agreed = local.intersect(remote);
+        assertEquals(1, agreed.getVersion());
+        assertEquals(1 << 20, agreed.getMaxFrameSize());
+        assertEquals(4096, agreed.getPreferredReadSize());
+        assertTrue(agreed.hasFeature(LinkCapabilities.FEATURE_SYNC_MARKER));
+        assertTrue(agreed.hasFeature(LinkCapabilities.FEATURE_CHECKSUM));
+        assertFalse(agreed.hasFeature(LinkCapabilities.FEATURE_COMPRESSION));
+        // Bits only the host knows about are dropped
+        assertFalse(agreed.hasFeature(1 << 30));
+
+        LinkConfig config = LinkConfig.fromCapabilities(agreed);
+        assertTrue(config.hasSyncMarker());
+        assertTrue(config.hasChecksum());
+        assertFalse(config.hasCompression());
+        assertFalse(config.hasExtendedHeader());
+        assertFalse(config.hasFragments());
+        assertFalse(config.hasFlowControl());
+        assertEquals(1 << 20, config.getMaxFrameSize());
+        assertEquals(LinkConfig.SYNC_MARKER_SIZE + PacketDecoder.PACKET_HEADER_SIZE,
+                config.getHeaderSize());
+        assertEquals(LinkConfig.CHECKSUM_SIZE, config.getTrailerSize());
+    }
+
+    @Test
+    public void allFeatures() throws Exception {
+        LinkCapabilities local = new LinkCapabilities((short) 1, 1 << 20, 16384, ALL_FEATURES);
+        LinkConfig config = LinkConfig.fromCapabilities(local.intersect(local));
+        assertTrue(config.hasCompression());
+        assertTrue(config.hasExtendedHeader());
+        assertTrue(config.hasFragments());
+        assertTrue(config.hasFlowControl());
+        assertEquals(LinkConfig.SYNC_MARKER_SIZE + PacketDecoder.PACKET_HEADER_SIZE +
+                LinkConfig.HEADER_EXTENSION_SIZE, config.getHeaderSize());
+    }
+
+    private static LinkCapabilities parse(LinkCapabilities capabilities) {
+        return LinkCapabilities.fromPayload(ByteBuffer.wrap(capabilities.toByteArray()));
+    }
+}
@@ -0,0 +1,185 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds messages, writes them, decodes the output and reads the values back
+ */
+public class MessageRoundTripTest {
+    // Two, three and four byte sequences, the last a surrogate pair
+    private static final String TEXT = "caf\u00e9 \u00b5s \u20ac \u65e5\u672c \ud83d\ude00!";
+
+    @Test
+    public void valuesRoundTrip() throws Exception {
+        final short[] shorts = {-1, 0, Short.MAX_VALUE};
+        final int[] ints = {Integer.MIN_VALUE, 42, Integer.MAX_VALUE};
+        final float[] floats = {-0.5f, Float.MAX_VALUE, Float.NaN};
+        final byte[] bytes = TestFrames.random(300, 1);
+
+        PacketBuffer packet = roundTrip(new Build() {
+            @Override
+            public void build(MessageBuilder message) {
+                message.putByte(0x7F).putBoolean(true).putShort(-2).putInt(0xCAFEBABE)
+                        .putLong(Long.MIN_VALUE).putFloat(1.5f).putDouble(Math.PI)
+                        .putShorts(shorts, 0, shorts.length).putInts(ints, 1, 2)
+                        .putFloats(floats, 0, floats.length).putBytes(bytes)
+                        .putString(TEXT).putString("");
+            }
+        });
+
+        PayloadReader reader = new PayloadReader().wrap(packet);
+        assertEquals(0x7F, reader.getByte());
+        assertTrue(reader.getBoolean());
+        assertEquals(-2, reader.getShort());
+        assertEquals(0xCAFEBABE, reader.getInt());
+        assertEquals(Long.MIN_VALUE, reader.getLong());
+        assertEquals(1.5f, reader.getFloat(), 0f);
+        assertEquals(Math.PI, reader.getDouble(), 0d);
+
+        short[] readShorts = new short[3];
+        reader.getShorts(readShorts, 0, 3);
+        assertArrayEquals(shorts, readShorts);
+        int[] readInts = new int[3];
+        reader.getInts(readInts, 1, 2);
+        assertArrayEquals(new int[] {0, 42, Integer.MAX_VALUE}, readInts);
+        float[] readFloats = new float[3];
+        reader.getFloats(readFloats, 0, 3);
+        assertArrayEquals(floats, readFloats, 0f);
+        byte[] readBytes = new byte[bytes.length];
+        reader.getBytes(readBytes, 0, readBytes.length);
+        assertArrayEquals(bytes, readBytes);
+
+        assertEquals(TEXT, reader.getString());
+        StringBuilder out = new StringBuilder("x");
+        assertEquals("x", reader.getString(out).toString());
+        assertEquals(0, reader.remaining());
+        try {
+            reader.getByte();
+            fail("Read past the end of the payload");
+        } catch (BufferUnderflowException e) {
+            // expected
+        }
+        packet.clear();
+    }
+
+    @Test
+    public void utf8MatchesPlatformEncoder() throws Exception {
+        PacketBuffer packet = roundTrip(new Build() {
+            @Override
+            public void build(MessageBuilder message) {
+                message.putUtf8(TEXT);
+            }
+        });
+        assertArrayEquals(TEXT.getBytes("UTF-8"), TestFrames.payload(packet));
+
+        StringBuilder out = new StringBuilder();
+        new PayloadReader().wrap(packet).getUtf8(out, packet.getPayloadSize());
+        assertEquals(TEXT, out.toString());
+        packet.clear();
+    }
+
+    @Test
+    public void unpairedSurrogate() throws Exception {
+        PacketBuffer packet = roundTrip(new Build() {
+            @Override
+            public void build(MessageBuilder message) {
+                message.putString("a\ud83db").putString("\ude00");
+            }
+        });
+
+        PayloadReader reader = new PayloadReader().wrap(packet);
+        assertEquals("a?b", reader.getString());
+        assertEquals("?", reader.getString());
+        packet.clear();
+    }
+
+    @Test
+    public void truncatedSequence() throws Exception {
+        BufferManager bufferManager = new BufferManager(1, 4096);
+        // The euro sign is three bytes, only two of them are inside the read
+        byte[] utf8 = "a\u20ac".getBytes("UTF-8");
+        PacketBuffer packet = TestFrames.packet(bufferManager, AccessoryCommand.TEST, utf8);
+
+        StringBuilder out = new StringBuilder();
+        PayloadReader reader = new PayloadReader().wrap(packet);
+        reader.getUtf8(out, utf8.length - 1);
+        assertEquals("a\ufffd", out.toString());
+        assertEquals(1, reader.remaining());
+
+        // A length beyond the payload is rejected without reading anything
+        reader.wrap(packet);
+        try {
+            reader.getUtf8(new StringBuilder(), utf8.length + 1);
+            fail("Read past the end of the payload");
+        } catch (BufferUnderflowException e) {
+            assertEquals(utf8.length, reader.remaining());
+        }
+        packet.clear();
+    }
+
+    @Test
+    public void readerReusedAcrossPackets() throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            BufferManager bufferManager = new BufferManager(2, 4096, direct);
+            PayloadReader reader = new PayloadReader();
+            for (int i = 0; i < 4; i++) {
+                byte[] payload = new byte[8 + i];
+                payload[3] = (byte) i;
+                payload[7 + i] = (byte) (0x40 + i);
+                PacketBuffer packet = TestFrames.packet(bufferManager, AccessoryCommand.TEST,
+                        payload);
+                reader.wrap(packet);
+                assertEquals(i, reader.getInt());
+                reader.skip(3 + i);
+                assertEquals(0x40 + i, reader.getByte());
+                assertEquals(0, reader.remaining());
+                packet.clear();
+            }
+        }
+    }
+
+    private interface Build {
+        void build(MessageBuilder message);
+    }
+
+    /**
+     * Sends one message built by build and returns the packet the decoder makes of it
+     */
+    private static PacketBuffer roundTrip(final Build build) throws Exception {
+        final LinkConfig config = new LinkConfig.Builder().setSyncMarker(true).setChecksum(true)
+                .build();
+        byte[] data = TestFrames.written(config, new TestFrames.Writes() {
+            @Override
+            public void run(AccessoryWriter writer) throws Exception {
+                MessageBuilder message = writer.obtainMessage(AccessoryCommand.CAM_START);
+                build.build(message);
+                message.send();
+                // Same lane, so the message has been written once this completes
+                writer.writeAsync(AccessoryCommand.CAM_STOP, new byte[0], null).await(10000);
+            }
+        });
+
+        final PacketBuffer[] received = new PacketBuffer[1];
+        PacketDecoder decoder = new PacketDecoder(new BufferManager(1, 4096),
+                new TestFrames.Recorder() {
+                    @Override
+                    public boolean onPacketReceived(AccessoryCommand command,
+                                                    PacketBuffer packet) {
+                        if (command == AccessoryCommand.CAM_START) {
+                            received[0] = packet;
+                        } else {
+                            packet.clear();
+                        }
+                        return true;
+                    }
+                });
+        decoder.setLinkConfig(config);
+        TestFrames.feed(decoder, data, 100);
+        assertNotNull(received[0]);
+        return received[0];
+    }
+}
@@ -0,0 +1,218 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds encoded frames to the decoder in reads of varying sizes, including reads that split
+ * headers, and frames damaged on the way
+ */
+public class PacketDecoderTest {
+    private static final int[] READ_SIZES = {1, 2, 5, 7, 64, 4096, 1 << 20};
+    private static final LinkConfig SYNC = new LinkConfig.Builder().setSyncMarker(true).build();
+    private static final LinkConfig FULL = new LinkConfig.Builder().setSyncMarker(true)
+            .setChecksum(true).setExtendedHeader(true).setCompression(true).build();
+
+    private BufferManager mBufferManager;
+    private TestFrames.Recorder mRecorder;
+
+    @Before
+    public void setUp() {
+        mBufferManager = new BufferManager(4, 4096);
+        mRecorder = new TestFrames.Recorder();
+    }
+
+    @Test
+    public void splitReads() throws Exception {
+        for (LinkConfig config : new LinkConfig[] {LinkConfig.LEGACY, SYNC, FULL}) {
+            byte[] small = TestFrames.random(10, 1);
+            byte[] large = TestFrames.random(20000, 2);
+            byte[] data = TestFrames.concat(
+                    TestFrames.encode(config, AccessoryCommand.TEST, small, 0, 1, 100L),
+                    TestFrames.encode(config, AccessoryCommand.CAM_START, new byte[0], 0, 2, 200L),
+                    TestFrames.encode(config, AccessoryCommand.CAM_FRAME, large, 0, 3, 300L));
+
+            for (int readSize : READ_SIZES) {
+                String name = config + " read " + readSize;
+                setUp();
+                PacketDecoder decoder = newDecoder(config);
+                TestFrames.feed(decoder, data, readSize);
+
+                assertEquals(name, Arrays.asList(AccessoryCommand.TEST, AccessoryCommand.CAM_START,
+                        AccessoryCommand.CAM_FRAME), mRecorder.commands);
+                assertArrayEquals(name, small, mRecorder.payloads.get(0));
+                assertEquals(name, 0, mRecorder.payloads.get(1).length);
+                assertArrayEquals(name, large, mRecorder.payloads.get(2));
+                if (config.hasExtendedHeader()) {
+                    assertEquals(name, Arrays.asList(1, 2, 3), mRecorder.sequences);
+                    assertEquals(name, Arrays.asList(100L, 200L, 300L), mRecorder.timestamps);
+                }
+                assertEquals(name, 0, decoder.bytesPending());
+                assertEquals(name, 0, decoder.getDroppedFrameCount());
+                assertEquals(name, 0, decoder.getCorruptFrameCount());
+            }
+        }
+    }
+
+    @Test
+    public void partialHeader() throws Exception {
+        byte[] payload = TestFrames.random(100, 3);
+        byte[] frame = TestFrames.encode(FULL, AccessoryCommand.TEST, payload);
+        PacketDecoder decoder = newDecoder(FULL);
+
+        // Everything up to the last header byte
+        int headerSize = FULL.getHeaderSize();
+        assertTrue(decoder.decode(ByteBuffer.wrap(frame, 0, headerSize - 1)));
+        assertEquals(0, decoder.bytesPending());
+        assertTrue(mRecorder.commands.isEmpty());
+
+        assertTrue(decoder.decode(ByteBuffer.wrap(frame, headerSize - 1, 1)));
+        assertEquals(payload.length, decoder.bytesPending());
+        assertTrue(decoder.decode(ByteBuffer.wrap(frame, headerSize, frame.length - headerSize)));
+        assertEquals(1, mRecorder.commands.size());
+        assertArrayEquals(payload, mRecorder.payloads.get(0));
+    }
+
+    @Test
+    public void streamedPayload() throws Exception {
+        byte[] payload = TestFrames.random(10000, 4);
+        byte[] data = TestFrames.concat(TestFrames.encode(SYNC, AccessoryCommand.TEST, payload),
+                TestFrames.encode(SYNC, AccessoryCommand.CAM_STOP, new byte[0]));
+        PacketDecoder decoder = newDecoder(SYNC);
+        decoder.setStreamingThreshold(1000);
+        decoder.setKeepWhole(AccessoryCommand.CAM_FRAME, true);
+        TestFrames.feed(decoder, data, 777);
+
+        assertEquals(Arrays.asList(payload.length), mRecorder.streamSizes);
+        assertEquals(Arrays.asList(true), mRecorder.streamEnds);
+        assertArrayEquals(payload, mRecorder.streamData.toByteArray());
+        assertTrue(mRecorder.chunks > 1);
+        assertEquals(Arrays.asList(AccessoryCommand.CAM_STOP), mRecorder.commands);
+
+        // Commands kept whole are delivered in one packet whatever their size
+        setUp();
+        decoder = newDecoder(SYNC);
+        decoder.setStreamingThreshold(1000);
+        decoder.setKeepWhole(AccessoryCommand.CAM_FRAME, true);
+        TestFrames.feed(decoder, TestFrames.encode(SYNC, AccessoryCommand.CAM_FRAME, payload), 777);
+        assertTrue(mRecorder.streamSizes.isEmpty());
+        assertArrayEquals(payload, mRecorder.payloads.get(0));
+    }
+
+    @Test
+    public void resyncAfterGarbage() throws Exception {
+        byte[] first = TestFrames.random(300, 5);
+        byte[] second = TestFrames.random(50, 6);
+        byte[] corrupt = TestFrames.encode(SYNC, AccessoryCommand.TEST, new byte[200]);
+        // Announce more than the frame size limit
+        corrupt[4] = 0x7F;
+
+        byte[] garbage = TestFrames.random(100, 7);
+        // Include a false marker in the garbage
+        garbage[40] = LinkConfig.SYNC_MARKER_HIGH;
+        byte[] data = TestFrames.concat(garbage,
+                TestFrames.encode(SYNC, AccessoryCommand.TEST, first),
+                corrupt,
+                TestFrames.encode(SYNC, AccessoryCommand.CAM_STOP, second));
+
+        for (int readSize : READ_SIZES) {
+            setUp();
+            PacketDecoder decoder = newDecoder(SYNC);
+            TestFrames.feed(decoder, data, readSize);
+
+            String name = "read " + readSize;
+            assertEquals(name, Arrays.asList(AccessoryCommand.TEST, AccessoryCommand.CAM_STOP),
+                    mRecorder.commands.subList(mRecorder.commands.size() - 2,
+                            mRecorder.commands.size()));
+            assertArrayEquals(name, first, mRecorder.payloads.get(mRecorder.payloads.size() - 2));
+            assertArrayEquals(name, second, mRecorder.payloads.get(mRecorder.payloads.size() - 1));
+            assertTrue(name, decoder.getDroppedFrameCount() >= 1);
+        }
+    }
+
+    @Test
+    public void legacySizeUnbounded() throws Exception {
+        // Legacy links never reject a size, a dropped header would lose every frame after it
+        byte[] payload = TestFrames.random(LinkConfig.DEFAULT_MAX_FRAME_SIZE + 1000, 11);
+        byte[] data = TestFrames.concat(
+                TestFrames.encode(LinkConfig.LEGACY, AccessoryCommand.TEST, payload),
+                TestFrames.encode(LinkConfig.LEGACY, AccessoryCommand.CAM_STOP, new byte[4]));
+        PacketDecoder decoder = newDecoder(LinkConfig.LEGACY);
+        TestFrames.feed(decoder, data, 65536);
+
+        assertEquals(0, decoder.getDroppedFrameCount());
+        assertEquals(Arrays.asList(payload.length), mRecorder.streamSizes);
+        assertEquals(Arrays.asList(true), mRecorder.streamEnds);
+        assertArrayEquals(payload, mRecorder.streamData.toByteArray());
+        assertEquals(Arrays.asList(AccessoryCommand.CAM_STOP), mRecorder.commands);
+
+        // The same frame is rejected once a sync marker makes recovery possible
+        setUp();
+        decoder = newDecoder(SYNC);
+        // Zeros, so the payload holds no marker to resync on
+        TestFrames.feed(decoder, TestFrames.encode(SYNC, AccessoryCommand.TEST,
+                new byte[payload.length]), 65536);
+        assertEquals(1, decoder.getDroppedFrameCount());
+        assertTrue(mRecorder.streamSizes.isEmpty());
+    }
+
+    @Test
+    public void checksumMismatch() throws Exception {
+        LinkConfig config = new LinkConfig.Builder().setSyncMarker(true).setChecksum(true).build();
+        byte[] damaged = TestFrames.encode(config, AccessoryCommand.TEST,
+                TestFrames.random(500, 8));
+        damaged[100] ^= 0x04;
+        byte[] intact = TestFrames.random(500, 9);
+        byte[] data = TestFrames.concat(damaged,
+                TestFrames.encode(config, AccessoryCommand.TEST, intact));
+
+        PacketDecoder decoder = newDecoder(config);
+        TestFrames.feed(decoder, data, 64);
+        assertEquals(1, decoder.getCorruptFrameCount());
+        assertEquals(1, mRecorder.commands.size());
+        assertArrayEquals(intact, mRecorder.payloads.get(0));
+    }
+
+    @Test
+    public void compressedPayload() throws Exception {
+        byte[] original = new byte[8000];
+        for (int i = 0; i < original.length; i++) {
+            original[i] = (byte) (i % 50);
+        }
+        PayloadCodec codec = new PayloadCodec();
+        int length = codec.compress(AccessoryCommand.TEST, original);
+        assertTrue(length > 0);
+        byte[] compressed = Arrays.copyOf(codec.getOutput(), length);
+        codec.release();
+
+        PacketDecoder decoder = newDecoder(FULL);
+        TestFrames.feed(decoder, TestFrames.encode(FULL, AccessoryCommand.TEST, compressed,
+                PayloadCodec.COMPRESSED_FLAG, 9, 900L), 100);
+        assertEquals(1, mRecorder.commands.size());
+        assertArrayEquals(original, mRecorder.payloads.get(0));
+        assertEquals(Integer.valueOf(9), mRecorder.sequences.get(0));
+    }
+
+    @Test
+    public void resetDropsPartialPacket() throws Exception {
+        byte[] frame = TestFrames.encode(SYNC, AccessoryCommand.TEST, TestFrames.random(100, 10));
+        PacketDecoder decoder = newDecoder(SYNC);
+        assertTrue(decoder.decode(ByteBuffer.wrap(frame, 0, 50)));
+        decoder.reset();
+        assertEquals(0, decoder.bytesPending());
+
+        TestFrames.feed(decoder, frame, frame.length);
+        assertEquals(1, mRecorder.commands.size());
+    }
+
+    private PacketDecoder newDecoder(LinkConfig config) {
+        PacketDecoder decoder = new PacketDecoder(mBufferManager, mRecorder);
+        decoder.setLinkConfig(config);
+        return decoder;
+    }
+}
@@ -0,0 +1,108 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that streams and packets reach a consumer in the order they were published, and that
+ * a full ring set to drop loses packets rather than waiting
+ */
+public class PacketRingTest {
+    private final BufferManager mBufferManager = new BufferManager(0, 4096);
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+    };
+
+    @Test
+    public void streamsInOrderWithPackets() throws Exception {
+        Events events = new Events();
+        PacketRing ring = new PacketRing("Test", 8, mExecutor, events);
+        ring.publish(AccessoryCommand.CAM_START, packet(1));
+        ring.publishStreamBegin(AccessoryCommand.TEST, 6);
+        ring.offerStreamChunk(AccessoryCommand.TEST, packet(2));
+        ring.offerStreamChunk(AccessoryCommand.TEST, packet(3));
+        ring.publishStreamEnd(AccessoryCommand.TEST, true);
+        ring.publish(AccessoryCommand.CAM_STOP, packet(4));
+        drain();
+
+        assertEquals(Arrays.asList("packet CAM_START 1", "begin TEST 6", "chunk TEST 2",
+                "chunk TEST 3", "end TEST true", "packet CAM_STOP 4"), events.log);
+    }
+
+    @Test
+    public void dropWhenFull() throws Exception {
+        Events events = new Events();
+        PacketRing ring = new PacketRing("Test", 4, mExecutor, events);
+        ring.setOverflow(PacketRing.OVERFLOW_DROP);
+        for (int i = 0; i < 6; i++) {
+            ring.offer(AccessoryCommand.TEST, packet(i));
+        }
+        drain();
+        assertEquals(Arrays.asList("packet TEST 0", "packet TEST 1", "packet TEST 2",
+                "packet TEST 3"), events.log);
+
+        // Once a chunk is dropped so is the rest of its stream, which ends incomplete
+        events.log.clear();
+        ring.publishStreamBegin(AccessoryCommand.TEST, 4);
+        for (int i = 0; i < 4; i++) {
+            ring.offerStreamChunk(AccessoryCommand.TEST, packet(i));
+        }
+        drain();
+        ring.offerStreamChunk(AccessoryCommand.TEST, packet(4));
+        ring.publishStreamEnd(AccessoryCommand.TEST, true);
+        drain();
+        assertEquals(Arrays.asList("begin TEST 4", "chunk TEST 0", "chunk TEST 1",
+                "chunk TEST 2", "end TEST false"), events.log);
+
+        // Every dropped packet went back to the pool
+        ring.halt();
+        drain();
+        assertEquals(0, mBufferManager.getInUseCount());
+    }
+
+    private PacketBuffer packet(int value) {
+        return TestFrames.packet(mBufferManager, AccessoryCommand.TEST, new byte[] {(byte) value});
+    }
+
+    private void drain() {
+        while (!mTasks.isEmpty()) {
+            mTasks.remove(0).run();
+        }
+    }
+
+    private static class Events implements StreamConsumer {
+        final List<String> log = new ArrayList<>();
+
+        @Override
+        public void onPacket(AccessoryCommand command, PacketBuffer packet, boolean endOfBatch) {
+            log.add("packet " + command + " " + TestFrames.payload(packet)[0]);
+            packet.release();
+        }
+
+        @Override
+        public void onStreamBegin(AccessoryCommand command, int totalSize) {
+            log.add("begin " + command + " " + totalSize);
+        }
+
+        @Override
+        public void onStreamChunk(AccessoryCommand command, PacketBuffer chunk) {
+            log.add("chunk " + command + " " + TestFrames.payload(chunk)[0]);
+            chunk.release();
+        }
+
+        @Override
+        public void onStreamEnd(AccessoryCommand command, boolean complete) {
+            log.add("end " + command + " " + complete);
+        }
+    }
+}
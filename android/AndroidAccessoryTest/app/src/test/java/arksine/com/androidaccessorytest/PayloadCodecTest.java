@@ -0,0 +1,116 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that compressed payloads inflate back to the original, and that payloads which
+ * would not benefit are left alone
+ */
+public class PayloadCodecTest {
+    private final PayloadCodec mCodec = new PayloadCodec();
+    private final BufferManager mBufferManager = new BufferManager(2, 4096);
+
+    @After
+    public void tearDown() {
+        mCodec.release();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (int size : new int[] {PayloadCodec.MIN_COMPRESS_SIZE, 5000, 100000,
+                PayloadCodec.MAX_COMPRESS_SIZE}) {
+            byte[] original = text(size);
+            int length = mCodec.compress(AccessoryCommand.TEST, original);
+            assertTrue("size " + size, length > 0 && length < size);
+
+            byte[] compressed = Arrays.copyOf(mCodec.getOutput(), length);
+            PacketBuffer packet = TestFrames.packet(mBufferManager, AccessoryCommand.TEST,
+                    compressed);
+            PacketBuffer inflated = mCodec.inflate(packet, mBufferManager, Integer.MAX_VALUE);
+            assertNotNull("size " + size, inflated);
+            assertEquals(AccessoryCommand.TEST.getValue(), inflated.getHeaderBuffer().getShort());
+            assertArrayEquals("size " + size, original, TestFrames.payload(inflated));
+            inflated.clear();
+        }
+    }
+
+    @Test
+    public void bypass() throws Exception {
+        byte[] text = text(5000);
+        assertEquals(-1, mCodec.compress(AccessoryCommand.CAM_FRAME, text));
+        assertEquals(-1, mCodec.compress(AccessoryCommand.TEST,
+                text(PayloadCodec.MIN_COMPRESS_SIZE - 1)));
+        assertEquals(-1, mCodec.compress(AccessoryCommand.TEST,
+                text(PayloadCodec.MAX_COMPRESS_SIZE + 1)));
+        assertEquals(-1, mCodec.compress(AccessoryCommand.TEST, null));
+
+        // Random bytes do not shrink by an eighth
+        assertEquals(-1, mCodec.compress(AccessoryCommand.TEST, TestFrames.random(5000, 1)));
+
+        byte[] jpeg = text(5000);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        assertEquals(-1, mCodec.compress(AccessoryCommand.TEST, jpeg));
+        byte[] gzip = text(5000);
+        gzip[0] = 0x1F;
+        gzip[1] = (byte) 0x8B;
+        assertEquals(-1, mCodec.compress(AccessoryCommand.TEST, gzip));
+
+        mCodec.setBypass(AccessoryCommand.TEST, true);
+        assertEquals(-1, mCodec.compress(AccessoryCommand.TEST, text));
+        mCodec.setBypass(AccessoryCommand.TEST, false);
+        assertTrue(mCodec.compress(AccessoryCommand.TEST, text) > 0);
+        mCodec.setBypass(AccessoryCommand.CAM_FRAME, false);
+        assertTrue(mCodec.compress(AccessoryCommand.CAM_FRAME, text) > 0);
+    }
+
+    @Test
+    public void invalidPayloadsRejected() throws Exception {
+        byte[] original = text(5000);
+        int length = mCodec.compress(AccessoryCommand.TEST, original);
+        byte[] compressed = Arrays.copyOf(mCodec.getOutput(), length);
+
+        // Larger than the caller allows
+        PacketBuffer packet = TestFrames.packet(mBufferManager, AccessoryCommand.TEST, compressed);
+        assertNull(mCodec.inflate(packet, mBufferManager, original.length - 1));
+
+        // Original length claims less than the stream holds
+        byte[] shortLength = compressed.clone();
+        shortLength[3] = (byte) (shortLength[3] - 1);
+        packet = TestFrames.packet(mBufferManager, AccessoryCommand.TEST, shortLength);
+        assertNull(mCodec.inflate(packet, mBufferManager, Integer.MAX_VALUE));
+
+        // Truncated stream
+        packet = TestFrames.packet(mBufferManager, AccessoryCommand.TEST,
+                Arrays.copyOf(compressed, compressed.length / 2));
+        assertNull(mCodec.inflate(packet, mBufferManager, Integer.MAX_VALUE));
+
+        // Shorter than the length prefix
+        packet = TestFrames.packet(mBufferManager, AccessoryCommand.TEST, new byte[2]);
+        assertNull(mCodec.inflate(packet, mBufferManager, Integer.MAX_VALUE));
+
+        // The codec is still usable after a failure
+        packet = TestFrames.packet(mBufferManager, AccessoryCommand.TEST, compressed);
+        PacketBuffer inflated = mCodec.inflate(packet, mBufferManager, Integer.MAX_VALUE);
+        assertArrayEquals(original, TestFrames.payload(inflated));
+        inflated.clear();
+    }
+
+    /**
+     * Compressible text of the given size
+     */
+    private static byte[] text(int size) {
+        byte[] words = "the quick brown fox jumps over the lazy dog ".getBytes();
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = words[(i * 7 / 5) % words.length];
+        }
+        return data;
+    }
+}
@@ -0,0 +1,95 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks gap and reorder counting, including across the wrap of the sequence number
+ */
+public class SequenceTrackerTest {
+    private final BufferManager mBufferManager = new BufferManager(2, 4096);
+    private final SequenceTracker mTracker = new SequenceTracker();
+    private PacketBuffer mPacket;
+
+    @After
+    public void tearDown() {
+        if (mPacket != null) {
+            mPacket.clear();
+        }
+    }
+
+    @Test
+    public void gapsAndReordering() throws Exception {
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, 10));
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, 11));
+        assertEquals(3, onPacket(AccessoryCommand.CAM_FRAME, 15));
+        // Late and repeated frames are counted as reordered, not as gaps
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, 13));
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, 15));
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, 16));
+
+        // Every command is tracked on its own
+        assertEquals(0, onPacket(AccessoryCommand.TEST, 500));
+        assertEquals(1, onPacket(AccessoryCommand.TEST, 502));
+
+        assertEquals(3, mTracker.getGapCount(AccessoryCommand.CAM_FRAME));
+        assertEquals(2, mTracker.getReorderedCount(AccessoryCommand.CAM_FRAME));
+        assertEquals(1, mTracker.getGapCount(AccessoryCommand.TEST));
+        assertEquals(0, mTracker.getReorderedCount(AccessoryCommand.TEST));
+        assertEquals(4, mTracker.getTotalGapCount());
+
+        mTracker.reset();
+        assertEquals(0, mTracker.getTotalGapCount());
+        assertEquals(0, mTracker.getReorderedCount(AccessoryCommand.CAM_FRAME));
+        // The first packet after a reset starts over rather than counting from 16
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, 100));
+    }
+
+    @Test
+    public void wrapAround() throws Exception {
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, Integer.MAX_VALUE - 1));
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, Integer.MAX_VALUE));
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, Integer.MIN_VALUE));
+        assertEquals(2, onPacket(AccessoryCommand.CAM_FRAME, Integer.MIN_VALUE + 3));
+        // From before the wrap, so late
+        assertEquals(0, onPacket(AccessoryCommand.CAM_FRAME, Integer.MAX_VALUE));
+
+        assertEquals(0, onPacket(AccessoryCommand.TEST, -1));
+        assertEquals(1, onPacket(AccessoryCommand.TEST, 1));
+
+        assertEquals(2, mTracker.getGapCount(AccessoryCommand.CAM_FRAME));
+        assertEquals(1, mTracker.getReorderedCount(AccessoryCommand.CAM_FRAME));
+        assertEquals(1, mTracker.getGapCount(AccessoryCommand.TEST));
+    }
+
+    @Test
+    public void packetsWithoutExtension() throws Exception {
+        mPacket = TestFrames.packet(mBufferManager, AccessoryCommand.TEST, new byte[4]);
+        assertEquals(0, mTracker.onPacket(AccessoryCommand.TEST, mPacket));
+        assertEquals(-1, mTracker.latencyNanos(mPacket, 1000));
+    }
+
+    @Test
+    public void latency() throws Exception {
+        mPacket = TestFrames.packet(mBufferManager, AccessoryCommand.CAM_FRAME, new byte[4]);
+        mPacket.setHeaderExtension(1, 5000);
+        assertEquals(0, mTracker.latencyNanos(mPacket, 8000));
+        mPacket.setHeaderExtension(2, 6000);
+        assertEquals(500, mTracker.latencyNanos(mPacket, 9500));
+        // A faster frame becomes the new baseline
+        mPacket.setHeaderExtension(3, 7000);
+        assertEquals(0, mTracker.latencyNanos(mPacket, 9000));
+        mPacket.setHeaderExtension(4, 8000);
+        assertEquals(100, mTracker.latencyNanos(mPacket, 10100));
+    }
+
+    private int onPacket(AccessoryCommand command, int sequence) {
+        if (mPacket == null) {
+            mPacket = TestFrames.packet(mBufferManager, command, new byte[4]);
+        }
+        mPacket.setHeaderExtension(sequence, 0);
+        return mTracker.onPacket(command, mPacket);
+    }
+}
@@ -0,0 +1,182 @@
+package arksine.com.androidaccessorytest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames and packets for local tests, built independently of AccessoryWriter so the decoder
+ * can be checked against exactly the bytes a host would send
+ */
+final class TestFrames {
+
+    private TestFrames() {}
+
+    /**
+     * Encodes an unfragmented frame using the options of config
+     *
+     * @param sizeFlags flags or'ed into the size field, such as PayloadCodec.COMPRESSED_FLAG
+     */
+    static byte[] encode(LinkConfig config, AccessoryCommand command, byte[] payload,
+                         int sizeFlags, int sequence, long timestamp) {
+        ByteBuffer frame = ByteBuffer.allocate(config.getHeaderSize() + payload.length +
+                config.getTrailerSize());
+        if (config.hasSyncMarker()) {
+            frame.put(LinkConfig.SYNC_MARKER_HIGH);
+            frame.put(LinkConfig.SYNC_MARKER_LOW);
+        }
+        frame.putShort(command.getValue());
+        frame.putInt(payload.length | sizeFlags);
+        if (config.hasExtendedHeader()) {
+            frame.putInt(sequence);
+            frame.putLong(timestamp);
+        }
+        frame.put(payload);
+        if (config.hasChecksum()) {
+            Crc32c checksum = new Crc32c();
+            checksum.update(frame.array(), 0, frame.position());
+            frame.putInt((int) checksum.getValue());
+        }
+        return frame.array();
+    }
+
+    static byte[] encode(LinkConfig config, AccessoryCommand command, byte[] payload) {
+        return encode(config, command, payload, 0, 0, 0);
+    }
+
+    /**
+     * Returns a pooled packet of command holding payload
+     */
+    static PacketBuffer packet(BufferManager bufferManager, AccessoryCommand command,
+                               byte[] payload) {
+        PacketBuffer packet = bufferManager.getBuffer(payload.length);
+        byte[] header = ByteBuffer.allocate(PacketDecoder.PACKET_HEADER_SIZE)
+                .putShort(command.getValue())
+                .putInt(payload.length)
+                .array();
+        packet.put(header, 0, header.length);
+        assertTrue(packet.setPayloadsize(payload.length));
+        packet.put(payload, 0, payload.length);
+        return packet;
+    }
+
+    /**
+     * Copies the payload of packet
+     */
+    static byte[] payload(PacketBuffer packet) {
+        ByteBuffer buffer = packet.getPayloadBuffer();
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+        return payload;
+    }
+
+    static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Feeds data to decoder in reads of at most readSize bytes
+     */
+    static void feed(PacketDecoder decoder, byte[] data, int readSize) {
+        for (int offset = 0; offset < data.length; offset += readSize) {
+            int length = Math.min(readSize, data.length - offset);
+            assertTrue(decoder.decode(ByteBuffer.wrap(data, offset, length)));
+        }
+    }
+
+    static byte[] concat(byte[]... frames) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            stream.write(frame);
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Runs writes against an AccessoryWriter opened on a temp file and returns what it wrote
+     */
+    static byte[] written(LinkConfig config, Writes writes) throws Exception {
+        File file = File.createTempFile("frames", ".bin");
+        try {
+            FileOutputStream stream = new FileOutputStream(file);
+            AccessoryWriter writer = new AccessoryWriter();
+            writer.open(stream, config);
+            try {
+                writes.run(writer);
+            } finally {
+                writer.close();
+                stream.close();
+            }
+
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                byte[] data = new byte[(int) input.length()];
+                input.readFully(data);
+                return data;
+            } finally {
+                input.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    interface Writes {
+        /**
+         * Must wait for everything it queues to be written before returning
+         */
+        void run(AccessoryWriter writer) throws Exception;
+    }
+
+    /**
+     * Decoder listener that copies and clears everything it is handed
+     */
+    static class Recorder implements PacketDecoder.Listener {
+        final List<AccessoryCommand> commands = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<Integer> sequences = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> streamSizes = new ArrayList<>();
+        final List<Boolean> streamEnds = new ArrayList<>();
+        final ByteArrayOutputStream streamData = new ByteArrayOutputStream();
+        int chunks = 0;
+
+        @Override
+        public boolean onPacketReceived(AccessoryCommand command, PacketBuffer packet) {
+            commands.add(command);
+            payloads.add(payload(packet));
+            sequences.add(packet.hasHeaderExtension() ? packet.getSequence() : -1);
+            timestamps.add(packet.hasHeaderExtension() ? packet.getTimestamp() : -1);
+            packet.clear();
+            return true;
+        }
+
+        @Override
+        public void onStreamBegin(AccessoryCommand command, int payloadSize) {
+            streamSizes.add(payloadSize);
+        }
+
+        @Override
+        public void onStreamChunk(AccessoryCommand command, PacketBuffer chunk) {
+            byte[] payload = payload(chunk);
+            streamData.write(payload, 0, payload.length);
+            chunks++;
+            chunk.clear();
+        }
+
+        @Override
+        public void onStreamEnd(AccessoryCommand command, boolean complete) {
+            streamEnds.add(complete);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package arksine.com.androidaccessorytest;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that entries come out of the writer queue whole and in order, with any number of
+ * producers feeding the single consumer
+ */
+public class WriteQueueTest {
+
+    @Test
+    public void entriesRoundTrip() throws Exception {
+        WriteQueue queue = new WriteQueue(3);
+        WriteQueue.Entry entry = new WriteQueue.Entry();
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.poll(entry));
+
+        byte[] data = {1, 2, 3};
+        WriteFuture future = new WriteFuture(AccessoryCommand.TEST, 3, null);
+        assertTrue(queue.offer(AccessoryCommand.TEST, data, null, LinkConfig.LEGACY, true, 7,
+                2, 9, future));
+        assertTrue(queue.offer(AccessoryCommand.CAM_STOP, null, null, null, false, 8, -1, 0,
+                null));
+        assertFalse(queue.isEmpty());
+
+        assertTrue(queue.poll(entry));
+        assertEquals(AccessoryCommand.TEST, entry.command);
+        assertSame(data, entry.data);
+        assertSame(LinkConfig.LEGACY, entry.config);
+        assertTrue(entry.reset);
+        assertEquals(7, entry.generation);
+        assertEquals(2, entry.key);
+        assertEquals(9, entry.version);
+        assertSame(future, entry.future);
+
+        entry.clear();
+        assertTrue(queue.poll(entry));
+        assertEquals(AccessoryCommand.CAM_STOP, entry.command);
+        assertNull(entry.data);
+        assertNull(entry.config);
+        assertNull(entry.future);
+        assertFalse(entry.reset);
+        assertEquals(-1, entry.key);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void capacity() throws Exception {
+        // Rounded up to four slots
+        WriteQueue queue = new WriteQueue(3);
+        WriteQueue.Entry entry = new WriteQueue.Entry();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(offer(queue, i));
+            }
+            assertFalse(offer(queue, 4));
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.poll(entry));
+                assertEquals(i, entry.generation);
+            }
+            assertFalse(queue.poll(entry));
+        }
+    }
+
+    @Test
+    public void concurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 50000;
+        final WriteQueue queue = new WriteQueue(32);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    BufferRingTest.awaitQuietly(start);
+                    for (int i = 0; i < perProducer; i++) {
+                        // The key identifies the producer, the generation its count
+                        while (!queue.offer(AccessoryCommand.TEST, null, null, null, false, i,
+                                producer, 0, null)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        // Each producer's entries must arrive in the order it queued them
+        int[] next = new int[producers];
+        WriteQueue.Entry entry = new WriteQueue.Entry();
+        int received = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (received < producers * perProducer && System.currentTimeMillis() < deadline) {
+            if (queue.poll(entry)) {
+                assertEquals(next[entry.key], entry.generation);
+                next[entry.key]++;
+                received++;
+            } else {
+                Thread.yield();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+
+        assertEquals(producers * perProducer, received);
+        assertTrue(queue.isEmpty());
+    }
+
+    private static boolean offer(WriteQueue queue, int generation) {
+        return queue.offer(AccessoryCommand.TEST, null, null, null, false, generation, -1, 0,
+                null);
+    }
+}
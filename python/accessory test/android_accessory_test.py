@@ -16,10 +16,11 @@ import threading
 import os
 from multiprocessing import Queue, Pipe
 import queue
-from bitstring import  BitStream
 import usb1
 from uvcprocess import UVCProcess
 from constants import *
+from link import (FrameDecoder, FrameEncoder, LinkCapabilities, LinkConfig,
+                  HOST_CAPABILITIES)
 
 SHUTDOWN = False
 
@@ -29,14 +30,9 @@ class ReadCallback(object):
     """
     TODO: Docstring
     """
-    HEADER_SIZE = 6  # header size in bytes
-
     def __init__(self, acc, write_queue):
         self._accessory = acc
-        self._buffer = None
-        self._is_header = True
-        self._command = None
-        self._packet_size = self.HEADER_SIZE
+        self._decoder = FrameDecoder()
 
         self._write_queue = write_queue
         self._uvc_process = None
@@ -50,61 +46,54 @@ class ReadCallback(object):
         length = transfer.getActualLength()
         if not length:
             return True
-        data = transfer.getBuffer()[:length]
-
-        if not self._buffer:
-            self._buffer = BitStream(data)
-        else:
-            self._buffer += BitStream(data)
-
+        self._decoder.feed(transfer.getBuffer()[:length])
         return self._parse_packet()
 
     def _parse_packet(self):
         """
-        TODO: Docstring
+        Executes every complete packet received so far.  Packets are taken one
+        at a time, since a packet may change the framing of the ones after it.
         """
-        while len(self._buffer) >= (self._packet_size * 8):
-            if self._is_header:
-                self._command = self._buffer.read('bytes:2')
-                self._packet_size = self._buffer.read('uintbe:32')
-                print("Packet size %d:" % self._packet_size)
-                del self._buffer[:self.HEADER_SIZE * 8]
-                self._buffer.pos = 0
-                if self._packet_size == 0:
-                    self._packet_size = self.HEADER_SIZE
-                    return self._execute_command(None)
-                else:
-                    self._is_header = False
-
-            else:
-                parse_token = 'bytes:{0}'.format(self._packet_size)
-                data = self._buffer.read(parse_token)
-                del self._buffer[:(self._packet_size * 8)]
-                self._buffer.pos = 0
-                self._is_header = True
-                return self._execute_command(data)
-
-        return True
-
-    def _execute_command(self, data):
-        if self._command == CMD_TERMINATE:
+        while True:
+            packet = self._decoder.next_packet()
+            if packet is None:
+                return True
+            command, data = packet
+            if not self._execute_command(command, data):
+                return False
+
+    def _execute_command(self, command, data):
+        if command == CMD_TERMINATE:
             print('Terminate Command Received')
             shutdown_thread = threading.Timer(1, self._shutdown_thread_proc)
             shutdown_thread.start()
             return False
-        elif self._command == CMD_EXIT:
+        elif command == CMD_EXIT:
             print('Exit app Command Received')
             self._accessory.signal_app_exit()
-        elif self._command == CMD_APP_CONNECTED:
+        elif command == CMD_APP_CONNECTED:
             print('Android Application Connected')
             self._accessory.app_connected = True
-        elif self._command == CMD_CAM_START:
+            # Apps that negotiate framing send their capabilities along
+            app_capabilities = LinkCapabilities.from_payload(data)
+            if app_capabilities is not None:
+                self._accessory.answer_capabilities(app_capabilities)
+        elif command == CMD_LINK_CONFIG:
+            # Last packet the app sends with the old framing
+            agreed = LinkCapabilities.from_payload(data)
+            if agreed is not None:
+                print('App switched framing: %r' % agreed)
+                self._decoder.set_config(LinkConfig(agreed))
+        elif command == CMD_CREDIT:
+            if data and len(data) == 4:
+                self._accessory.grant_credit(unpack('>i', data)[0])
+        elif command == CMD_CAM_START:
             self._start_uvc_process()
-        elif self._command == CMD_CAM_STOP:
+        elif command == CMD_CAM_STOP:
             # stop the uvc process in another thread so this one isn't blocked
             stop_uvc_thread = threading.Thread(target=self._stop_uvc_thread_proc)
             stop_uvc_thread.start()
-        elif self._command == CMD_TEST:
+        elif command == CMD_TEST:
             # Test simply takes a short, parses it, and echoes it
             # back to the device
             assert len(data) == 2
@@ -188,6 +177,11 @@ class AndroidAccessory(object):
             self._read_list.append(data_reader)
 
         self._write_queue = write_queue
+        # Only used by the write thread, except when switching framing
+        self._encoder = FrameEncoder()
+        # Bytes the app allows us to send under flow control
+        self._credit = 0
+        self._credit_cond = threading.Condition()
         self._is_running = True
         self._write_thread = threading.Thread(target=self._write_thread_proc)
         self._write_thread.start()
@@ -318,26 +312,63 @@ class AndroidAccessory(object):
         # TODO: may want to add a callback for writes
         while self._is_running:
             try:
-                data = self._write_queue.get(timeout=1)
+                command, data = self._write_queue.get(timeout=1)
             except queue.Empty:
                 continue
-            for packet in data:
-                self._handle.bulkWrite(self._out_endpoint, packet)
+            if command is None:
+                # Framing agreed with the app, used for every packet after this
+                self._encoder.set_config(data)
+                continue
+            if self._encoder.config.flow_control and not self._await_credit(command):
+                continue
+            frame, cost = self._encoder.encode(command, data)
+            if self._encoder.config.flow_control:
+                with self._credit_cond:
+                    self._credit -= cost
+            for chunk in frame:
+                self._handle.bulkWrite(self._out_endpoint, chunk)
+
+    def _await_credit(self, command):
+        """
+        Waits until the app has granted credit.  Camera frames are dropped
+        rather than waited on, a newer one is on its way by the time credit is.
+        """
+        with self._credit_cond:
+            while self._credit <= 0:
+                if command == CMD_CAM_FRAME or not self._is_running:
+                    return False
+                self._credit_cond.wait(1)
+            return True
 
-    def write_command(self, command, data):
+    def grant_credit(self, count):
         """
-        TODO: Docstring
+        Adds credit granted by the app with CMD_CREDIT
         """
+        with self._credit_cond:
+            self._credit += count
+            self._credit_cond.notify_all()
 
-        if not data:
-            # send command with data length of zero
-            header = command + b'\x00\x00\x00\x00'
-            self._write_queue.put((header,))
-        else:
-            size = len(data)
-            size_bytes = pack('>I', size)
-            header = command + size_bytes
-            self._write_queue.put((header, data))
+    def answer_capabilities(self, app_capabilities):
+        """
+        Answers the capabilities the app sent with CMD_APP_CONNECTED with our
+        own, and switches our framing to the agreed options right after the
+        answer is written.  The app switches its decoder when it receives the
+        answer, and follows with CMD_LINK_CONFIG and, if flow control was
+        agreed, its first grant of credit.
+        """
+        agreed = HOST_CAPABILITIES.intersect(app_capabilities)
+        print('Negotiated %r' % agreed)
+        with self._credit_cond:
+            self._credit = 0
+        self.write_command(CMD_APP_CONNECTED, HOST_CAPABILITIES.to_bytes())
+        self._write_queue.put((None, LinkConfig(agreed)))
+
+    def write_command(self, command, data):
+        """
+        Queues a packet for the write thread, which frames it with whatever
+        framing is in use when it is written
+        """
+        self._write_queue.put((command, data))
 
     def signal_app_exit(self):
         """
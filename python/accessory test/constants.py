@@ -19,6 +19,8 @@ CMD_TEST = b'\x00\x01'           # signals that the payload received is a short
 CMD_CAM_FRAME = b'\x00\x02'      # signals that the payload sent is a camera frame
 CMD_CAM_START = b'\x00\x03'
 CMD_CAM_STOP = b'\x00\x04'
+CMD_CREDIT = b'\xFF\xFB'         # bytes of credit granted by the app under flow control
+CMD_LINK_CONFIG = b'\xFF\xFC'    # agreed link capabilities, last packet in old framing
 CMD_APP_CONNECTED = b'\xFF\xFD'  # signal from app that it is connected
 CMD_TERMINATE = b'\xFF\xFE'      # signal to terminate both the app and this process
 CMD_EXIT = b'\xFF\xFF'           # signal the accessory app to close
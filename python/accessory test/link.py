@@ -0,0 +1,405 @@
+"""
+Link framing shared with the Android app.
+
+The app offers its capabilities as the payload of CMD_APP_CONNECTED.  The host
+answers with its own capabilities in a CMD_APP_CONNECTED of its own, and both
+sides then use the intersection of the two blocks.  The host frames everything
+it writes after its answer with the agreed options, while the app echoes the
+agreement in CMD_LINK_CONFIG, the last packet it writes with the old framing.
+
+A capability block is big endian: version (2 bytes), max frame size (4),
+preferred read size (4) and a feature bitmask (4).  Frames are an optional sync
+marker, the 2 byte command and 4 byte size, an optional extended header with a
+per command sequence number and a monotonic timestamp, the payload, and an
+optional CRC32C of everything before it.  Flags in the size field mark
+compressed payloads and fragments of a larger message.
+"""
+
+# pylint: disable=W0511,R0902
+
+from struct import pack, unpack_from
+import time
+import zlib
+
+try:
+    import crc32c as _crc32c_module
+except ImportError:
+    _crc32c_module = None
+
+PROTOCOL_VERSION = 1
+CAPABILITIES_SIZE = 14
+
+FEATURE_SYNC_MARKER = 1
+FEATURE_CHECKSUM = 1 << 1
+FEATURE_COMPRESSION = 1 << 2
+FEATURE_TIMESTAMPS = 1 << 3
+FEATURE_FRAGMENTS = 1 << 4
+FEATURE_FLOW_CONTROL = 1 << 5
+
+SYNC_MARKER = b'\xA5\x5A'
+HEADER_SIZE = 6
+HEADER_EXTENSION_SIZE = 12
+FRAGMENT_PREFIX_SIZE = 4
+CHECKSUM_SIZE = 4
+COMPRESSED_FLAG = 0x80000000
+FRAGMENT_FLAG = 0x40000000
+DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024
+# Same as the app's AccessoryWriter
+DEFAULT_FRAGMENT_SIZE = 16384
+
+# Same bounds as the app's PayloadCodec
+LENGTH_PREFIX_SIZE = 4
+MIN_COMPRESS_SIZE = 256
+MAX_COMPRESS_SIZE = 256 * 1024
+# Payloads that are already compressed media are never deflated again
+COMPRESSION_BYPASS = (b'\x00\x02',)
+
+
+def _make_crc_table():
+    table = []
+    for i in range(256):
+        crc = i
+        for _ in range(8):
+            crc = (crc >> 1) ^ 0x82F63B78 if crc & 1 else crc >> 1
+        table.append(crc)
+    return table
+
+_CRC_TABLE = _make_crc_table()
+
+
+def crc32c(data, crc=0):
+    """
+    Returns the CRC32C of data, continuing from crc.  Uses the crc32c package
+    when it is installed, which is much faster than the table below.
+    """
+    if _crc32c_module is not None:
+        return _crc32c_module.crc32c(data, crc)
+    crc ^= 0xFFFFFFFF
+    table = _CRC_TABLE
+    for byte in bytearray(data):
+        crc = table[(crc ^ byte) & 0xFF] ^ (crc >> 8)
+    return crc ^ 0xFFFFFFFF
+
+
+class LinkCapabilities(object):
+    """
+    Capability block exchanged on CMD_APP_CONNECTED
+    """
+    def __init__(self, version, max_frame_size, preferred_read_size, features):
+        self.version = version
+        self.max_frame_size = max_frame_size
+        self.preferred_read_size = preferred_read_size
+        self.features = features
+
+    @classmethod
+    def from_payload(cls, data):
+        """
+        Parses a capability block, returning None if data does not hold one
+        """
+        if not data or len(data) < CAPABILITIES_SIZE:
+            return None
+        version, max_frame, read_size, features = unpack_from('>hiii', data)
+        if version <= 0 or max_frame <= 0 or read_size <= 0:
+            return None
+        return cls(version, max_frame, read_size, features & 0xFFFFFFFF)
+
+    def to_bytes(self):
+        return pack('>hiiI', self.version, self.max_frame_size,
+                    self.preferred_read_size, self.features)
+
+    def intersect(self, remote):
+        """
+        Returns the capabilities both this and remote support
+        """
+        return LinkCapabilities(min(self.version, remote.version),
+                                min(self.max_frame_size, remote.max_frame_size),
+                                min(self.preferred_read_size,
+                                    remote.preferred_read_size),
+                                self.features & remote.features)
+
+    def has_feature(self, feature):
+        return (self.features & feature) == feature
+
+    def __repr__(self):
+        return ('LinkCapabilities(version=%d, max_frame_size=%d, '
+                'preferred_read_size=%d, features=0x%x)' %
+                (self.version, self.max_frame_size, self.preferred_read_size,
+                 self.features))
+
+
+# Everything this host implements
+HOST_CAPABILITIES = LinkCapabilities(
+    PROTOCOL_VERSION, DEFAULT_MAX_FRAME_SIZE, 0x10000,
+    FEATURE_SYNC_MARKER | FEATURE_CHECKSUM | FEATURE_COMPRESSION |
+    FEATURE_TIMESTAMPS | FEATURE_FRAGMENTS | FEATURE_FLOW_CONTROL)
+
+
+class LinkConfig(object):
+    """
+    Framing options for one direction of the link
+    """
+    def __init__(self, capabilities=None):
+        if capabilities is None:
+            self.sync_marker = False
+            self.checksum = False
+            self.compression = False
+            self.extended_header = False
+            self.fragments = False
+            self.flow_control = False
+            self.max_frame_size = DEFAULT_MAX_FRAME_SIZE
+        else:
+            has = capabilities.has_feature
+            self.sync_marker = has(FEATURE_SYNC_MARKER)
+            self.checksum = has(FEATURE_CHECKSUM)
+            self.compression = has(FEATURE_COMPRESSION)
+            self.extended_header = has(FEATURE_TIMESTAMPS)
+            self.fragments = has(FEATURE_FRAGMENTS)
+            self.flow_control = has(FEATURE_FLOW_CONTROL)
+            self.max_frame_size = capabilities.max_frame_size
+
+    @property
+    def prefix_size(self):
+        return len(SYNC_MARKER) if self.sync_marker else 0
+
+    @property
+    def header_size(self):
+        return (self.prefix_size + HEADER_SIZE +
+                (HEADER_EXTENSION_SIZE if self.extended_header else 0))
+
+    @property
+    def trailer_size(self):
+        return CHECKSUM_SIZE if self.checksum else 0
+
+LEGACY = LinkConfig()
+
+
+def _monotonic_ns():
+    if hasattr(time, 'monotonic_ns'):
+        return time.monotonic_ns()
+    return int(time.monotonic() * 1000000000)
+
+
+class FrameEncoder(object):
+    """
+    Frames packets written to the app.  When fragments are agreed, payloads
+    larger than fragment_size are split over several frames.
+    """
+    def __init__(self, config=LEGACY, fragment_size=DEFAULT_FRAGMENT_SIZE):
+        self.config = config
+        self.fragment_size = fragment_size
+        self._sequences = {}
+
+    def set_config(self, config):
+        """
+        Sets the framing used for every following packet
+        """
+        self.config = config
+        self._sequences = {}
+
+    def encode(self, command, data):
+        """
+        Returns a tuple of byte strings holding the frames of one message, and
+        the size of its payload on the wire, which is what the message costs in
+        flow control credit
+        """
+        config = self.config
+        data = bytes(data) if data else b''
+        flags = 0
+        if config.compression:
+            compressed = self._compress(command, data)
+            if compressed is not None:
+                data = compressed
+                flags = COMPRESSED_FLAG
+        if len(data) & (COMPRESSED_FLAG | FRAGMENT_FLAG):
+            raise ValueError('Payload too large for a single frame')
+        fragmented = config.fragments and len(data) > self.fragment_size
+        if fragmented:
+            flags |= FRAGMENT_FLAG
+
+        # Every fragment carries the sequence and timestamp of the message
+        extension = b''
+        if config.extended_header:
+            sequence = self._sequences.get(command, 0)
+            self._sequences[command] = (sequence + 1) & 0xFFFFFFFF
+            extension = pack('>IQ', sequence, _monotonic_ns())
+
+        parts = []
+        offset = 0
+        while True:
+            if fragmented:
+                payload = data[offset:offset + self.fragment_size]
+            else:
+                payload = data
+            header = command + pack('>I', len(payload) | flags) + extension
+            if config.sync_marker:
+                header = SYNC_MARKER + header
+            if fragmented and offset == 0:
+                header += pack('>I', len(data))
+            parts.append(header)
+            if payload:
+                parts.append(payload)
+            if config.checksum:
+                parts.append(pack('>I', crc32c(payload, crc32c(header))))
+            offset += len(payload)
+            if offset >= len(data):
+                return tuple(parts), len(data)
+
+    def _compress(self, command, data):
+        if (len(data) < MIN_COMPRESS_SIZE or len(data) > MAX_COMPRESS_SIZE or
+                command in COMPRESSION_BYPASS):
+            return None
+        compressor = zlib.compressobj(1, zlib.DEFLATED, -15)
+        deflated = compressor.compress(data) + compressor.flush()
+        # Only worth it if the payload shrinks by at least an eighth
+        if LENGTH_PREFIX_SIZE + len(deflated) > len(data) - (len(data) >> 3):
+            return None
+        return pack('>I', len(data)) + deflated
+
+
+class FrameDecoder(object):
+    """
+    Incremental decoder for frames read from the app.  Bytes are added with
+    feed() as they arrive and complete messages are taken with next_packet(),
+    so the framing can be changed between any two packets.
+    """
+    def __init__(self, config=LEGACY):
+        self.config = config
+        self._buffer = bytearray()
+        # Command, compressed flag, total size and bytes of the fragmented
+        # message in progress
+        self._fragment = None
+        self.dropped_frames = 0
+        self.corrupt_frames = 0
+
+    def set_config(self, config):
+        """
+        Sets the framing used for every following frame
+        """
+        self.config = config
+        self._fragment = None
+
+    def feed(self, data):
+        self._buffer += data
+
+    def next_packet(self):
+        """
+        Returns the next complete message as a (command, payload) tuple, with a
+        payload of None when it is empty, or None if more bytes are needed
+        """
+        while True:
+            result = self._next_frame()
+            if result is not True:
+                return result
+
+    def _drop(self, count, reason):
+        self.dropped_frames += 1
+        print('Dropped frame, %s, total: %d' % (reason, self.dropped_frames))
+        if self.config.sync_marker:
+            del self._buffer[:count]
+        else:
+            # Nothing to resynchronize on, skip what has been read so far
+            del self._buffer[:]
+
+    def _next_frame(self):
+        """
+        Decodes one frame.  Returns a message once one is complete, None if more
+        bytes are needed, or True if a frame was consumed without completing one.
+        """
+        config = self.config
+        buf = self._buffer
+        if config.sync_marker:
+            start = buf.find(SYNC_MARKER)
+            if start < 0:
+                # Keep a trailing first marker byte in case the rest follows
+                keep = 1 if buf[-1:] == SYNC_MARKER[:1] else 0
+                del buf[:len(buf) - keep]
+                return None
+            if start > 0:
+                del buf[:start]
+
+        header_size = config.header_size
+        if len(buf) < header_size:
+            return None
+
+        offset = config.prefix_size
+        command = bytes(buf[offset:offset + 2])
+        size = unpack_from('>I', buf, offset + 2)[0]
+        compressed = config.compression and bool(size & COMPRESSED_FLAG)
+        fragment = config.fragments and bool(size & FRAGMENT_FLAG)
+        if compressed:
+            size &= ~COMPRESSED_FLAG
+        if fragment:
+            size &= ~FRAGMENT_FLAG
+        # Without a sync marker a dropped header loses the frame boundary for
+        # good, so the limit only applies to links that can resync
+        if config.sync_marker and size > config.max_frame_size:
+            self._drop(1, 'corrupt header')
+            return True
+
+        total = size
+        if fragment and self._fragment is None:
+            header_size += FRAGMENT_PREFIX_SIZE
+            if len(buf) < header_size:
+                return None
+            total = unpack_from('>I', buf, header_size - FRAGMENT_PREFIX_SIZE)[0]
+            if total < size or (config.sync_marker and
+                                total > config.max_frame_size):
+                self._drop(1, 'corrupt fragment header')
+                return True
+
+        frame_size = header_size + size + config.trailer_size
+        if len(buf) < frame_size:
+            return None
+
+        payload = bytes(buf[header_size:header_size + size])
+        if config.checksum:
+            expected = unpack_from('>I', buf, header_size + size)[0]
+            if crc32c(memoryview(buf)[:header_size + size]) != expected:
+                self.corrupt_frames += 1
+                print('Checksum mismatch, corrupt frames: %d' % self.corrupt_frames)
+                del buf[:frame_size]
+                if fragment:
+                    self._fragment = None
+                return True
+        del buf[:frame_size]
+
+        if fragment:
+            if self._fragment is None:
+                self._fragment = [command, compressed, total, bytearray(payload)]
+            else:
+                if (command != self._fragment[0] or
+                        len(self._fragment[3]) + size > self._fragment[2]):
+                    print('Unexpected fragment, dropping message')
+                    self._fragment = None
+                    return True
+                self._fragment[3] += payload
+            if len(self._fragment[3]) < self._fragment[2]:
+                return True
+            command, compressed, _, payload = self._fragment
+            payload = bytes(payload)
+            self._fragment = None
+
+        if compressed:
+            payload = self._inflate(payload)
+            if payload is None:
+                self.corrupt_frames += 1
+                print('Unable to inflate, corrupt frames: %d' % self.corrupt_frames)
+                return True
+        return command, (payload if payload else None)
+
+    @staticmethod
+    def _inflate(payload):
+        if len(payload) < LENGTH_PREFIX_SIZE:
+            return None
+        original_size = unpack_from('>I', payload)[0]
+        if original_size > MAX_COMPRESS_SIZE:
+            return None
+        inflater = zlib.decompressobj(-15)
+        try:
+            data = inflater.decompress(payload[LENGTH_PREFIX_SIZE:],
+                                       original_size + 1)
+        except zlib.error:
+            return None
+        if len(data) != original_size or not inflater.eof:
+            return None
+        return data
@@ -283,22 +283,21 @@ class AndroidAccessory(object):
 
     def write_command(self, command, data):
         """
-        Writes a command and its accompanying data to the device
+        Writes a command and its accompanying data to the device.  This host
+        never answers the app's capabilities, so packets use legacy framing.
         """
-        size = len(data)
-        size_bytes = pack('>I', size)
-        header = command + size_bytes
-        self._write_queue.put((header, data))
+        self._write_queue.put((command, data))
 
     def _write_thread(self):
         # TODO: I should rename this to _write_process, and I can't use
         # the shutdown method here.
         while self._is_writing:
             try:
-                data = self._write_queue.get(timeout=1)
+                command, payload = self._write_queue.get(timeout=1)
             except queue.Empty:
                 continue
             else:
+                data = (command + pack('>I', len(payload)), payload)
                 try:
                     bytes_written = self._endpoint_out.write(data[0], timeout=2000) # header
                     bytes_written += self._endpoint_out.write(data[1], timeout=2000) # data
@@ -1,7 +1,6 @@
 from multiprocessing import Process
 import queue
 import signal
-from struct import pack
 import threading
 from constants import CMD_CAM_FRAME
 import uvclite
@@ -15,11 +14,9 @@ class UVCProcess(Process):
         self._cap_dev = None
 
     def _read_callback(self, frame, user):
-        size = len(frame.data)
-        size_bytes = pack('>I', size)
-        header = CMD_CAM_FRAME + size_bytes
+        # Framed by the accessory's write thread
         try:
-            self._write_queue.put((header, frame.data), block=False)
+            self._write_queue.put((CMD_CAM_FRAME, frame.data), block=False)
         except queue.Full:
             pass
 